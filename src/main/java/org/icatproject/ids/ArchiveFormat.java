@@ -0,0 +1,55 @@
+package org.icatproject.ids;
+
+import org.icatproject.ids.exceptions.BadRequestException;
+
+/**
+ * The formats in which datafiles may be packed together for download
+ */
+public enum ArchiveFormat {
+
+    ZIP("zip"), TAR("tar");
+
+    private final String name;
+
+    ArchiveFormat(String name) {
+        this.name = name;
+    }
+
+    /**
+     * The extension of the file name for the archive. A compressed tar file
+     * is gzipped as a whole.
+     */
+    String getExtension(boolean compress) {
+        return this == TAR && compress ? "tar.gz" : name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Parse the value of the format parameter. Null is returned if it is not
+     * set. A value of "tar.gz" gives TAR and {@link #isCompressed(String)}
+     * reports that compression is required.
+     */
+    static ArchiveFormat parse(String format) throws BadRequestException {
+        if (format == null) {
+            return null;
+        }
+        if (isCompressed(format)) {
+            return TAR;
+        }
+        for (ArchiveFormat value : values()) {
+            if (value.name.equals(format)) {
+                return value;
+            }
+        }
+        throw new BadRequestException("The format '" + format + "' is not one of zip, tar or tar.gz");
+    }
+
+    static boolean isCompressed(String format) {
+        return "tar.gz".equals(format);
+    }
+
+}
@@ -0,0 +1,56 @@
+package org.icatproject.ids;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Precomputed layout of an archive in which the data of every datafile are
+ * stored as they are, so that the position of everything within it is known
+ * before anything is written.
+ */
+interface ArchiveLayout {
+
+    /**
+     * Provides the data of the datafiles in the layout.
+     */
+    interface DataSource {
+
+        /**
+         * Write length bytes of the datafile, starting at position, to output.
+         * An IOException must be thrown if the datafile does not hold the
+         * expected number of bytes.
+         */
+        void write(DfInfoImpl dfInfo, long position, long length, OutputStream output) throws IOException;
+    }
+
+    /**
+     * The total length in bytes of the archive
+     */
+    long getLength();
+
+    /**
+     * The datafiles, in order, whose data lie at least partly within count
+     * bytes starting at offset. A null count means everything after the
+     * offset.
+     */
+    List<DfInfoImpl> getDfInfos(long offset, Long count);
+
+    /**
+     * The CRC32 which length bytes of the datafile, starting at position,
+     * must have or null if there is nothing to check. Only a layout which
+     * takes the CRC of each entry from ICAT has one, and only when the whole
+     * of the datafile is written.
+     */
+    default Long getCrc(DfInfoImpl dfInfo, long position, long length) {
+        return null;
+    }
+
+    /**
+     * Write count bytes of the archive, starting at offset, to the output. A
+     * null count means everything after the offset. Entries which lie
+     * completely outside the range are not read at all.
+     */
+    void write(OutputStream output, long offset, Long count, DataSource source) throws IOException;
+
+}
@@ -0,0 +1,293 @@
+package org.icatproject.ids;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.icatproject.ids.exceptions.InternalException;
+
+/**
+ * Sends the body of a getData response with non-blocking servlet I/O. Each
+ * buffer is read from storage by a thread of a small, shared pool, and only
+ * once the container reports that the client can accept more, so no thread
+ * is held while waiting for a slow client and no container thread waits for
+ * the storage.
+ *
+ * Only a body which can be read as a stream, such as a single file, an
+ * uncompressed archive with a known layout or a cached zip, can be sent this
+ * way. Anything else is written by its StreamingOutput as before.
+ */
+class AsyncDownload implements WriteListener, AsyncListener {
+
+    /**
+     * The entity of a getData response which may be sent asynchronously.
+     */
+    interface Source {
+
+        /**
+         * Return the body as a stream or null if it can only be written as a
+         * StreamingOutput.
+         */
+        InputStream openContent() throws IOException;
+
+        /**
+         * Report the end of the download and release what it holds. Called
+         * once when the whole body has been sent or sending it has failed.
+         *
+         * @param e the reason for failure or null if successful
+         */
+        void done(IOException e);
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(AsyncDownload.class);
+
+    /**
+     * Start sending the response asynchronously if its entity allows it.
+     * Returns false, having done nothing, if the asyncResponse must instead
+     * be resumed with the response. If the download cannot be started the
+     * entity is released and the asyncResponse is resumed with an
+     * InternalException.
+     *
+     * Once started the download writes to the response until the body has
+     * been sent or sending it has failed. Only then is the asyncResponse
+     * resumed, so that the JAX-RS runtime completes the request, with a
+     * response which has no entity as everything has already been written.
+     *
+     * @param request  the request which must already be in asynchronous mode
+     *                 as the resource method is suspended
+     * @param response the servlet response to which the status, headers and
+     *                 body are written directly
+     * @param readers  the threads which read the data from storage
+     */
+    static boolean start(AsyncResponse asyncResponse, HttpServletRequest request, HttpServletResponse response,
+                         Response built, BufferPool bufferPool, Executor readers) {
+        if (!(built.getEntity() instanceof Source) || !request.isAsyncStarted()) {
+            return false;
+        }
+        Source source = (Source) built.getEntity();
+        InputStream content = null;
+        try {
+            content = source.openContent();
+            if (content == null) {
+                return false;
+            }
+            AsyncContext context = request.getAsyncContext();
+            ServletOutputStream output = response.getOutputStream();
+            response.setStatus(built.getStatus());
+            for (Map.Entry<String, List<String>> header : built.getStringHeaders().entrySet()) {
+                for (String value : header.getValue()) {
+                    response.addHeader(header.getKey(), value);
+                }
+            }
+            MediaType type = built.getMediaType();
+            response.setContentType(type == null ? MediaType.APPLICATION_OCTET_STREAM : type.toString());
+            context.setTimeout(0);
+            AsyncDownload download = new AsyncDownload(asyncResponse, response, built.getStatus(), output, content,
+                    source, bufferPool, readers);
+            context.addListener(download);
+            output.setWriteListener(download);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            if (content != null) {
+                try {
+                    content.close();
+                } catch (IOException ce) {
+                    logger.debug("Failed to close content " + ce.getMessage());
+                }
+            }
+            source.done(e instanceof IOException ? (IOException) e : new IOException(e));
+            if (!response.isCommitted()) {
+                response.reset();
+            }
+            asyncResponse.resume(new InternalException(e.getClass() + " " + e.getMessage()));
+            return true;
+        }
+    }
+
+    private final AsyncResponse asyncResponse;
+    private final HttpServletResponse response;
+    private final int status;
+    private final ServletOutputStream output;
+    private final InputStream content;
+    private final Source source;
+    private final BufferPool bufferPool;
+    private final Executor readers;
+    private byte[] bytes;
+
+    /* The number of bytes read into the buffer but not yet written */
+    private int filled;
+
+    /* Set while a reader is filling the buffer, which it then owns */
+    private boolean reading;
+
+    private boolean finished;
+    private IOException failure;
+
+    private AsyncDownload(AsyncResponse asyncResponse, HttpServletResponse response, int status,
+                          ServletOutputStream output, InputStream content, Source source, BufferPool bufferPool,
+                          Executor readers) {
+        this.asyncResponse = asyncResponse;
+        this.response = response;
+        this.status = status;
+        this.output = output;
+        this.content = content;
+        this.source = source;
+        this.bufferPool = bufferPool;
+        this.readers = readers;
+        bytes = bufferPool.acquire();
+    }
+
+    /**
+     * Called by the container each time the client can accept more data.
+     */
+    @Override
+    public synchronized void onWritePossible() {
+        send();
+    }
+
+    /*
+     * Write what has been read for as long as the client can accept it and
+     * then have the next buffer read. Once the output is not ready the
+     * container calls onWritePossible when it is.
+     */
+    private void send() {
+        try {
+            while (!finished && !reading && output.isReady()) {
+                if (filled > 0) {
+                    output.write(bytes, 0, filled);
+                    filled = 0;
+                } else {
+                    reading = true;
+                    readers.execute(this::read);
+                }
+            }
+        } catch (IOException e) {
+            finish(e);
+            complete();
+        } catch (RejectedExecutionException e) {
+            reading = false;
+            finish(new IOException(e));
+            complete();
+        }
+    }
+
+    /* Run by a reader to fill the buffer and then send it */
+    private void read() {
+        int n;
+        IOException e = null;
+        try {
+            n = content.read(bytes);
+        } catch (IOException re) {
+            n = 0;
+            e = re;
+        }
+        synchronized (this) {
+            reading = false;
+            if (finished) {
+                release();
+            } else if (e != null) {
+                finish(e);
+                complete();
+            } else if (n < 0) {
+                finish(null);
+                complete();
+            } else {
+                filled = n;
+                send();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        if (!finished) {
+            finish(t instanceof IOException ? (IOException) t : new IOException(t));
+            complete();
+        }
+    }
+
+    @Override
+    public synchronized void onComplete(AsyncEvent event) {
+        finish(new IOException("Response completed before all data were sent"));
+    }
+
+    @Override
+    public synchronized void onTimeout(AsyncEvent event) {
+        if (!finished) {
+            finish(new IOException("Timed out"));
+            complete();
+        }
+    }
+
+    @Override
+    public synchronized void onError(AsyncEvent event) {
+        if (!finished) {
+            Throwable t = event.getThrowable();
+            finish(t instanceof IOException ? (IOException) t : new IOException(String.valueOf(t)));
+            complete();
+        }
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    /*
+     * Only the first call has any effect. If a reader holds the buffer it is
+     * released by the reader when it returns.
+     */
+    private void finish(IOException e) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        failure = e;
+        if (!reading) {
+            release();
+        }
+    }
+
+    /*
+     * Resume the asyncResponse so that the JAX-RS runtime completes the
+     * request. If nothing has been sent the failure can still be reported,
+     * otherwise the response, which has already been written, is resumed
+     * without an entity.
+     */
+    private void complete() {
+        if (failure != null && !response.isCommitted()) {
+            response.reset();
+            asyncResponse.resume(new InternalException(failure.getClass() + " " + failure.getMessage()));
+        } else {
+            asyncResponse.resume(Response.status(status).build());
+        }
+    }
+
+    private void release() {
+        try {
+            content.close();
+        } catch (IOException ce) {
+            logger.debug("Failed to close content " + ce.getMessage());
+        }
+        bufferPool.release(bytes);
+        bytes = null;
+        source.done(failure);
+    }
+
+}
@@ -0,0 +1,181 @@
+package org.icatproject.ids;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.json.stream.JsonGenerator;
+
+/**
+ * A pool of byte arrays of a single size for the loops which copy data
+ * between streams. Buffers are taken with {@link #acquire()} and should be
+ * given back with {@link #release(byte[])} when no longer needed; if the pool
+ * is empty a new buffer is allocated and if it is full a returned buffer is
+ * left for the garbage collector.
+ *
+ * Heap arrays rather than direct ByteBuffers are pooled as the storage
+ * plugins only offer InputStreams and OutputStreams.
+ */
+public class BufferPool {
+
+    /**
+     * A BufferedInputStream whose buffer comes from the pool and is returned
+     * when the stream is closed.
+     */
+    private static class PooledInputStream extends BufferedInputStream {
+
+        private final BufferPool pool;
+        private byte[] pooled;
+
+        private PooledInputStream(InputStream in, BufferPool pool) {
+            super(in, 1);
+            this.pool = pool;
+            pooled = buf = pool.acquire();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (pooled != null) {
+                    pool.release(pooled);
+                    pooled = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * A BufferedOutputStream whose buffer comes from the pool and is returned
+     * when the stream is closed.
+     */
+    private static class PooledOutputStream extends BufferedOutputStream {
+
+        private final BufferPool pool;
+        private boolean closed;
+
+        private PooledOutputStream(OutputStream out, BufferPool pool) {
+            super(out, 1);
+            this.pool = pool;
+            buf = pool.acquire();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                pool.release(buf);
+                buf = null;
+            }
+        }
+    }
+
+    private static BufferPool instance;
+
+    /**
+     * The pool shared by the whole server, configured by the bufferPool
+     * properties.
+     */
+    public synchronized static BufferPool getInstance() {
+        if (instance == null) {
+            PropertyHandler propertyHandler = PropertyHandler.getInstance();
+            instance = new BufferPool(propertyHandler.getBufferSize(), propertyHandler.getBufferPoolMaxIdle());
+        }
+        return instance;
+    }
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> idle;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    /**
+     * @param bufferSize the size in bytes of each buffer
+     * @param maxIdle    the maximum number of buffers to keep for reuse
+     */
+    BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        idle = new ArrayBlockingQueue<>(Math.max(1, maxIdle));
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Take a buffer from the pool or allocate one if none is free.
+     */
+    public byte[] acquire() {
+        byte[] buffer = idle.poll();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire()}. It must not be used
+     * afterwards.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize || !idle.offer(buffer)) {
+            discards.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wrap the stream in a BufferedInputStream using a pooled buffer which is
+     * released when the stream is closed.
+     */
+    public InputStream bufferedInputStream(InputStream in) {
+        return new PooledInputStream(in, this);
+    }
+
+    /**
+     * Wrap the stream in a BufferedOutputStream using a pooled buffer which
+     * is released when the stream is closed.
+     */
+    public OutputStream bufferedOutputStream(OutputStream out) {
+        return new PooledOutputStream(out, this);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getDiscards() {
+        return discards.get();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * Write the statistics of the pool as an object with the given name.
+     */
+    void writeStatus(JsonGenerator gen, String name) {
+        gen.writeStartObject(name).write("bufferSize", bufferSize).write("idle", getIdle())
+                .write("hits", getHits()).write("misses", getMisses()).write("discards", getDiscards())
+                .writeEnd();
+    }
+
+}
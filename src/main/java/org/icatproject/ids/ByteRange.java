@@ -0,0 +1,163 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.icatproject.ids.exceptions.BadRequestException;
+
+/**
+ * A range of bytes from an HTTP Range header as described in RFC 7233. As
+ * requested a range may be open ended ("500-") or a suffix ("-500"). Once it
+ * has been resolved against the length of the content both the first and last
+ * byte positions are known.
+ */
+class ByteRange {
+
+    private static final Pattern rangeRe = Pattern.compile("bytes=(.+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern specRe = Pattern.compile("(\\d*)-(\\d*)");
+
+    /**
+     * Parse the value of a Range header into a list of ranges in the order
+     * given.
+     */
+    static List<ByteRange> parse(String header) throws BadRequestException {
+        Matcher m = rangeRe.matcher(header.trim());
+        if (!m.matches()) {
+            throw new BadRequestException("The range '" + header + "' must match " + rangeRe.pattern());
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : m.group(1).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            Matcher s = specRe.matcher(spec);
+            if (!s.matches() || (s.group(1).isEmpty() && s.group(2).isEmpty())) {
+                throw new BadRequestException("The range specification '" + spec + "' is not valid");
+            }
+            try {
+                Long first = s.group(1).isEmpty() ? null : Long.parseLong(s.group(1));
+                Long last = s.group(2).isEmpty() ? null : Long.parseLong(s.group(2));
+                if (first != null && last != null && last < first) {
+                    throw new BadRequestException("The range specification '" + spec + "' ends before it starts");
+                }
+                ranges.add(new ByteRange(first, last));
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("The range specification '" + spec + "' is too large");
+            }
+        }
+        if (ranges.isEmpty()) {
+            throw new BadRequestException("The range '" + header + "' does not specify any bytes");
+        }
+        return ranges;
+    }
+
+    /**
+     * Resolve the requested ranges against content of the specified length
+     * and merge any which overlap or are adjacent, so that no byte need be
+     * sent twice, returning them in ascending order. The list is empty if
+     * none of the ranges is satisfiable. If more than maxRanges remain once
+     * merged null is returned and the whole content should be sent instead.
+     */
+    static List<ByteRange> resolve(List<ByteRange> requested, long length, int maxRanges) {
+        List<ByteRange> resolved = new ArrayList<>();
+        for (ByteRange range : requested) {
+            ByteRange r = range.resolve(length);
+            if (r != null) {
+                resolved.add(r);
+            }
+        }
+        resolved.sort(Comparator.comparing(ByteRange::getFirst));
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = null;
+        for (ByteRange r : resolved) {
+            if (current != null && r.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, r.last));
+            } else {
+                if (current != null) {
+                    merged.add(current);
+                }
+                current = r;
+            }
+        }
+        if (current != null) {
+            merged.add(current);
+        }
+        return merged.size() > maxRanges ? null : merged;
+    }
+
+    private final Long first;
+    private final Long last;
+
+    /**
+     * @param first the first byte position or null for a suffix range
+     * @param last  the last byte position, the suffix length if first is null
+     *              or null for an open ended range.
+     */
+    ByteRange(Long first, Long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Return the range with the first and last positions within content of
+     * the specified length or null if the range is not satisfiable.
+     */
+    ByteRange resolve(long length) {
+        if (first == null) {
+            if (last == 0 || length == 0) {
+                return null;
+            }
+            return new ByteRange(Math.max(0, length - last), length - 1);
+        }
+        if (first >= length) {
+            return null;
+        }
+        return new ByteRange(first, last == null || last >= length ? length - 1 : last);
+    }
+
+    boolean isSuffix() {
+        return first == null;
+    }
+
+    /**
+     * The first byte position or null for a suffix range
+     */
+    Long getFirst() {
+        return first;
+    }
+
+    /**
+     * The last byte position or null if open ended
+     */
+    Long getLast() {
+        return first == null ? null : last;
+    }
+
+    /**
+     * The number of bytes in the range or null if this is not known
+     */
+    Long getLength() {
+        if (first == null) {
+            return last;
+        }
+        return last == null ? null : last - first + 1;
+    }
+
+    /**
+     * Value for a Content-Range header where the complete length may be null
+     * if unknown.
+     */
+    String getContentRange(Long completeLength) {
+        return "bytes " + this + "/" + (completeLength == null ? "*" : completeLength);
+    }
+
+    @Override
+    public String toString() {
+        return (first == null ? "" : first) + "-" + (last == null ? "" : last);
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.icatproject.ids;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import jakarta.json.stream.JsonGenerator;
+
+/**
+ * Decides, for each entry of a compressed zip file, whether deflating it is
+ * worthwhile. Files whose names end with one of a list of extensions of
+ * formats which are already compressed are stored as they are. Otherwise, if
+ * sampling is enabled, the first bytes of the file are deflated at the
+ * fastest level and the file is only deflated if the sample shrinks enough.
+ * A file which is not deflated is written as a STORED entry when its size and
+ * CRC32 are known from ICAT, and otherwise as a DEFLATED entry at level 0.
+ *
+ * The number of bytes in STORED entries and in DEFLATED entries are counted
+ * and reported by getServiceStatus.
+ */
+public class CompressionPolicy {
+
+    /**
+     * The extensions of formats which are normally compressed already, used
+     * if none are configured.
+     */
+    static final String DEFAULT_STORED_EXTENSIONS = "gz tgz bz2 xz zst lz4 zip jar 7z rar jpg jpeg png gif mp3 mp4 mkv";
+
+    /* A sample is deflated if it shrinks to no more than this fraction */
+    private static final double MAX_RATIO = 0.9;
+
+    private static CompressionPolicy instance;
+
+    /**
+     * The policy shared by the whole server, configured by the compress
+     * properties.
+     */
+    public synchronized static CompressionPolicy getInstance() {
+        if (instance == null) {
+            PropertyHandler propertyHandler = PropertyHandler.getInstance();
+            instance = new CompressionPolicy(propertyHandler.getCompressStoredExtensions(),
+                    propertyHandler.getCompressSampleBytes());
+        }
+        return instance;
+    }
+
+    private final Set<String> storedExtensions = new HashSet<>();
+    private final int sampleBytes;
+    private final AtomicLong bytesStored = new AtomicLong();
+    private final AtomicLong bytesDeflated = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+
+    /**
+     * @param storedExtensions the extensions, without the leading '.', of
+     *                         files never to be deflated
+     * @param sampleBytes      the number of bytes to test deflate or 0 to
+     *                         deflate every file not excluded by its
+     *                         extension
+     */
+    CompressionPolicy(Set<String> storedExtensions, int sampleBytes) {
+        for (String extension : storedExtensions) {
+            this.storedExtensions.add(extension.toLowerCase(Locale.ROOT));
+        }
+        this.sampleBytes = sampleBytes;
+    }
+
+    /**
+     * Whether the name ends with the extension of an already compressed
+     * format.
+     */
+    boolean isStored(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && dot > name.lastIndexOf('/')
+                && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Read the start of the stream into the buffer if it is needed to decide
+     * how to write the entry and return the number of bytes read, which may
+     * be 0.
+     */
+    int sample(String name, InputStream stream, byte[] buffer) throws IOException {
+        if (sampleBytes == 0 || isStored(name)) {
+            return 0;
+        }
+        return stream.readNBytes(buffer, 0, Math.min(sampleBytes, buffer.length));
+    }
+
+    /**
+     * Whether to deflate the entry given the bytes obtained from
+     * {@link #sample(String, InputStream, byte[])}.
+     */
+    boolean shouldDeflate(String name, byte[] sample, int length) {
+        if (isStored(name)) {
+            return false;
+        }
+        if (length == 0) {
+            return true;
+        }
+        sampled.incrementAndGet();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[8192];
+            long limit = (long) (length * MAX_RATIO);
+            while (!deflater.finished()) {
+                deflater.deflate(out);
+                if (deflater.getBytesWritten() > limit) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The Deflater level for a DEFLATED entry.
+     */
+    static int level(boolean deflate) {
+        return deflate ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION;
+    }
+
+    /**
+     * Record the size of an entry which has been written, which is DEFLATED,
+     * at whatever level, or else STORED.
+     */
+    void count(boolean deflated, long bytes) {
+        (deflated ? bytesDeflated : bytesStored).addAndGet(bytes);
+    }
+
+    public long getBytesStored() {
+        return bytesStored.get();
+    }
+
+    public long getBytesDeflated() {
+        return bytesDeflated.get();
+    }
+
+    /**
+     * Write the statistics of the policy as an object with the given name.
+     */
+    void writeStatus(JsonGenerator gen, String name) {
+        gen.writeStartObject(name).write("sampleBytes", sampleBytes).write("sampled", sampled.get())
+                .write("bytesStored", getBytesStored()).write("bytesDeflated", getBytesDeflated()).writeEnd();
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.icatproject.ids;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * An InputStream which fails when its end is reached if the CRC32 of what
+ * has been read is not the one expected.
+ */
+class CrcCheckedInputStream extends CheckedInputStream {
+
+    private final long crc;
+    private final String message;
+
+    /**
+     * @param message the message of the IOException thrown on a mismatch
+     */
+    CrcCheckedInputStream(InputStream in, long crc, String message) {
+        super(in, new CRC32());
+        this.crc = crc;
+        this.message = message;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return check(super.read());
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        return check(super.read(buf, off, len));
+    }
+
+    private int check(int n) throws IOException {
+        if (n < 0 && getChecksum().getValue() != crc) {
+            throw new IOException(message);
+        }
+        return n;
+    }
+
+}
@@ -1,14 +1,19 @@
 package org.icatproject.ids;
 
 import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import jakarta.json.Json;
 import jakarta.json.JsonArray;
@@ -46,17 +51,41 @@ public class DataSelection {
     private Session userRestSession;
     private Session restSessionToUse;
     private int maxEntities;
+    private int maxIdsInQuery;
     private List<Long> invids;
     private List<Long> dsids;
     private List<Long> dfids;
     private Map<Long, DsInfo> dsInfos;
     private Set<DfInfoImpl> dfInfos;
+    /* Collects the datafiles when the selection is not resolved incrementally */
+    private DfInfoSet.Builder dfBuilder;
     private Set<Long> emptyDatasets;
     private boolean dsWanted;
     private boolean dfWanted;
     private long length;
 
 
+    /* Queries for independent parts of the selection */
+    private interface Query {
+        void run() throws IcatException_Exception, IcatException, NotFoundException, InsufficientPrivilegesException,
+                InternalException;
+    }
+
+    /* Set if queries may run concurrently */
+    private ExecutorService queryPool;
+    private DsInfoCache dsInfoCache;
+    private SessionCache sessionCache;
+    private IcatReader reader;
+    private int outstanding;
+    private Exception failure;
+
+    /*
+     * Set if the selection is resolved incrementally, holding the queries
+     * still to be run and those submitted by the one being run
+     */
+    private Deque<Query> pending;
+    private List<Query> spawned;
+
     public enum Returns {
         DATASETS, DATASETS_AND_DATAFILES, DATAFILES
     }
@@ -64,6 +93,20 @@ public class DataSelection {
     public DataSelection(PropertyHandler propertyHandler, IcatReader icatReader, String userSessionId,
                          String investigationIds, String datasetIds, String datafileIds, Returns returns)
             throws BadRequestException, NotFoundException, InsufficientPrivilegesException, InternalException {
+        this(propertyHandler, icatReader, userSessionId, investigationIds, datasetIds, datafileIds, returns, false);
+    }
+
+    /**
+     * If incremental is set only the datafileIds are resolved at once and the
+     * datafiles of the datasets and investigations are found as they are
+     * taken by {@link #nextDatafiles()}, which must then be called until it
+     * returns null. The datasets are added to those returned by
+     * {@link #getDsInfo()} as they are found.
+     */
+    public DataSelection(PropertyHandler propertyHandler, IcatReader icatReader, String userSessionId,
+                         String investigationIds, String datasetIds, String datafileIds, Returns returns,
+                         boolean incremental)
+            throws BadRequestException, NotFoundException, InsufficientPrivilegesException, InternalException {
 
         dfids = getValidIds("datafileIds", datafileIds);
         dsids = getValidIds("datasetIds", datasetIds);
@@ -74,6 +117,11 @@ public class DataSelection {
         this.icat = propertyHandler.getIcatService();
         this.restIcat = propertyHandler.getRestIcat();
         maxEntities = propertyHandler.getMaxEntities();
+        maxIdsInQuery = propertyHandler.getMaxIdsInQuery();
+        queryPool = propertyHandler.getIcatQueryPool();
+        dsInfoCache = propertyHandler.getDsInfoCache();
+        sessionCache = propertyHandler.getSessionCache();
+        reader = icatReader;
         this.userSessionId = userSessionId;
         userRestSession = restIcat.getSession(userSessionId);
         // by default use the user's REST ICAT session
@@ -90,6 +138,10 @@ public class DataSelection {
         }
 
         logger.debug("dfids: {} dsids: {} invids: {}", dfids, dsids, invids);
+        if (incremental) {
+            pending = new ArrayDeque<>();
+            spawned = new ArrayList<>();
+        }
         resolveDatasetIds();
     }
 
@@ -123,59 +175,136 @@ public class DataSelection {
         dsInfos = new HashMap<>();
         emptyDatasets = new HashSet<>();
         if (dfWanted) {
-            dfInfos = new HashSet<>();
+            if (pending == null) {
+                dfBuilder = new DfInfoSet.Builder();
+            } else {
+                dfInfos = new HashSet<>();
+            }
         }
 
-        try {
-            for (Long dfid : dfids) {
-                List<Object> dss = icat.search(userSessionId,
-                        "SELECT ds FROM Dataset ds JOIN ds.datafiles df WHERE df.id = " + dfid
-                                + " AND df.location IS NOT NULL INCLUDE ds.investigation.facility");
-                if (dss.size() == 1) {
-                    Dataset ds = (Dataset) dss.get(0);
-                    long dsid = ds.getId();
-                    dsInfos.put(dsid, new DsInfoImpl(ds));
-                    if (dfWanted) {
-                        Datafile df = (Datafile) icat.get(userSessionId, "Datafile", dfid);
-                        length += df.getFileSize();
-                        String location = IdsBean.getLocation(dfid, df.getLocation());
-                        dfInfos.add(
-                                new DfInfoImpl(dfid, df.getName(), location, df.getCreateId(), df.getModId(), dsid));
-                    }
-                } else {
-                    // Next line may reveal a permissions problem
-                    icat.get(userSessionId, "Datafile", dfid);
-                    throw new NotFoundException("Datafile " + dfid);
-                }
+        run(() -> {
+            for (int from = 0; from < dfids.size(); from += maxIdsInQuery) {
+                resolveDatafileIds(dfids.subList(from, Math.min(from + maxIdsInQuery, dfids.size())));
             }
 
             for (Long dsid : dsids) {
-                Dataset ds = (Dataset) icat.get(userSessionId, "Dataset ds INCLUDE ds.investigation.facility", dsid);
-                dsInfos.put(dsid, new DsInfoImpl(ds));
-                // dataset access for the user has been checked so the REST session for the
-                // reader account can be used if the IDS setting to allow this is enabled
-                String query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = "
-                        + dsid + " AND df.location IS NOT NULL";
-                JsonArray result = Json.createReader(new ByteArrayInputStream(restSessionToUse.search(query).getBytes()))
-                        .readArray().getJsonArray(0);
-                if (result.getJsonNumber(2).longValueExact() == 0) { // Count 0
-                    emptyDatasets.add(dsid);
-                } else if (dfWanted) {
-                    manyDfs(dsid, result);
-                }
+                submit(() -> {
+                    DsInfo dsInfo;
+                    if (sessionCache.isAllowed(userSessionId, "Dataset", dsid)) {
+                        dsInfo = dsInfoCache.get(reader, dsid);
+                    } else {
+                        Dataset ds = (Dataset) icat.get(userSessionId,
+                                "Dataset ds INCLUDE ds.investigation.facility", dsid);
+                        dsInfo = new DsInfoImpl(ds);
+                        dsInfoCache.put(dsInfo);
+                        sessionCache.allow(userSessionId, "Dataset", dsid);
+                    }
+                    synchronized (this) {
+                        dsInfos.put(dsid, dsInfo);
+                    }
+                    // dataset access for the user has been checked so the REST session for the
+                    // reader account can be used if the IDS setting to allow this is enabled
+                    countDfs(dsid, restSessionToUse);
+                });
             }
 
             for (Long invid : invids) {
-                String query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
-                        + invid;
-                JsonArray result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes()))
-                        .readArray().getJsonArray(0);
-                manyDss(invid, result);
+                submit(() -> {
+                    String query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
+                            + invid;
+                    manyDss(invid, search(userRestSession, query).getJsonArray(0));
+                });
+            }
 
+            awaitQueries();
+        });
+        schedule();
+        if (dfBuilder != null) {
+            /* Hold the result compactly as it may be kept for a long download */
+            dfInfos = dfBuilder.build();
+            dfBuilder = null;
+        }
+        /*
+         * TODO don't calculate what is not needed - however this ensures that
+         * the flag is respected
+         */
+        if (!dsWanted) {
+            dsInfos = null;
+            emptyDatasets = null;
+        }
+    }
+
+    /**
+     * Resolve some datafile ids, along with their datasets, with a single
+     * query. If any is missing it is looked up on its own to report it as
+     * not found or as not readable by the user. If the user has recently
+     * been allowed to read all of them the query is made as the reader.
+     */
+    private void resolveDatafileIds(List<Long> ids)
+            throws IcatException_Exception, NotFoundException, InsufficientPrivilegesException, InternalException {
+        StringBuilder sb = new StringBuilder("SELECT df FROM Datafile df WHERE df.id IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(ids.get(i));
+        }
+        sb.append(") AND df.location IS NOT NULL INCLUDE df.dataset.investigation.facility");
+        boolean allowed = true;
+        for (Long dfid : ids) {
+            if (!sessionCache.isAllowed(userSessionId, "Datafile", dfid)) {
+                allowed = false;
+                break;
+            }
+        }
+        List<Object> dfs = allowed ? reader.search(sb.toString()) : icat.search(userSessionId, sb.toString());
+        Set<Long> found = new HashSet<>();
+        List<DfInfoImpl> dfsFound = new ArrayList<>(dfs.size());
+        for (Object o : dfs) {
+            Datafile df = (Datafile) o;
+            Dataset ds = df.getDataset();
+            long dfid = df.getId();
+            long dsid = ds.getId();
+            found.add(dfid);
+            if (!allowed) {
+                sessionCache.allow(userSessionId, "Datafile", dfid);
+            }
+            if (!dsInfos.containsKey(dsid)) {
+                DsInfo dsInfo = new DsInfoImpl(ds);
+                dsInfoCache.put(dsInfo);
+                dsInfos.put(dsid, dsInfo);
             }
+            if (dfWanted) {
+                if (df.getFileSize() != null) {
+                    length += df.getFileSize();
+                }
+                String location = IdsBean.getLocation(dfid, df.getLocation());
+                dfsFound.add(new DfInfoImpl(dfid, df.getName(), location, df.getCreateId(), df.getModId(), dsid,
+                        df.getFileSize(), df.getChecksum()));
+            }
+        }
+        addDfInfos(dfsFound);
+        for (Long dfid : ids) {
+            if (!found.contains(dfid)) {
+                // Next line may reveal a permissions problem
+                icat.get(userSessionId, "Datafile", dfid);
+                throw new NotFoundException("Datafile " + dfid);
+            }
+        }
+    }
 
+    /**
+     * Run the query, converting any exception from ICAT to the matching IDS
+     * exception.
+     */
+    private void run(Query query) throws NotFoundException, InsufficientPrivilegesException, InternalException {
+        try {
+            query.run();
         } catch (IcatException_Exception e) {
             IcatExceptionType type = e.getFaultInfo().getType();
+            if (type == IcatExceptionType.SESSION) {
+                sessionCache.flush(userSessionId);
+            }
             if (type == IcatExceptionType.INSUFFICIENT_PRIVILEGES || type == IcatExceptionType.SESSION) {
                 throw new InsufficientPrivilegesException(e.getMessage());
             } else if (type == IcatExceptionType.NO_SUCH_OBJECT_FOUND) {
@@ -186,6 +315,9 @@ public class DataSelection {
 
         } catch (IcatException e) {
             org.icatproject.icat.client.IcatException.IcatExceptionType type = e.getType();
+            if (type == org.icatproject.icat.client.IcatException.IcatExceptionType.SESSION) {
+                sessionCache.flush(userSessionId);
+            }
             if (type == org.icatproject.icat.client.IcatException.IcatExceptionType.INSUFFICIENT_PRIVILEGES
                     || type == org.icatproject.icat.client.IcatException.IcatExceptionType.SESSION) {
                 throw new InsufficientPrivilegesException(e.getMessage());
@@ -195,18 +327,182 @@ public class DataSelection {
                 throw new InternalException(e.getClass() + " " + e.getMessage());
             }
         }
-        /*
-         * TODO don't calculate what is not needed - however this ensures that
-         * the flag is respected
-         */
-        if (!dsWanted) {
-            dsInfos = null;
-            emptyDatasets = null;
+    }
+
+    /**
+     * Return the datafiles found since the last call, running more of the
+     * queries if none have been found, or null once the whole selection has
+     * been returned. Only for a selection which is resolved incrementally.
+     * Problems, such as a dataset which the user may not read, are only
+     * found when the query which meets them is run.
+     */
+    public Set<DfInfoImpl> nextDatafiles() throws NotFoundException, InsufficientPrivilegesException,
+            InternalException {
+        while (dfInfos.isEmpty() && !pending.isEmpty()) {
+            run(pending.pop());
+            schedule();
+        }
+        if (dfInfos.isEmpty()) {
+            return null;
+        }
+        Set<DfInfoImpl> next = dfInfos;
+        dfInfos = new HashSet<>();
+        return next;
+    }
+
+    /**
+     * Return the datasets of the whole selection which hold datafiles, found
+     * with dataset level queries without taking any datafiles, so that they
+     * may be checked before the first are taken. Only for a selection which
+     * is resolved incrementally. Datasets which the user may not read are
+     * left out; they are reported when their datafiles are sought.
+     */
+    public Collection<DsInfo> getDatasetsWithData() throws NotFoundException, InsufficientPrivilegesException,
+            InternalException {
+        Map<Long, DsInfo> found = new HashMap<>(dsInfos);
+        run(() -> {
+            for (int from = 0; from < invids.size(); from += maxIdsInQuery) {
+                addDatasetsWithData("inv.id", invids.subList(from, Math.min(from + maxIdsInQuery, invids.size())),
+                        found);
+            }
+            for (int from = 0; from < dsids.size(); from += maxIdsInQuery) {
+                addDatasetsWithData("ds.id", dsids.subList(from, Math.min(from + maxIdsInQuery, dsids.size())),
+                        found);
+            }
+        });
+        return found.values();
+    }
+
+    /* Add the datasets with datafiles whose idField is one of the ids, maxEntities at a time */
+    private void addDatasetsWithData(String idField, List<Long> ids, Map<Long, DsInfo> found) throws IcatException {
+        StringBuilder sb = new StringBuilder("SELECT DISTINCT ds.id, ds.name, ds.location, inv.id, inv.name, "
+                + "inv.visitId, fac.id, fac.name FROM Dataset ds JOIN ds.investigation inv JOIN inv.facility fac "
+                + "JOIN ds.datafiles df WHERE df.location IS NOT NULL AND " + idField + " IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(ids.get(i));
+        }
+        sb.append(") ORDER BY ds.id LIMIT ");
+        for (int offset = 0; ; offset += maxEntities) {
+            JsonArray result = search(userRestSession, sb.toString() + offset + ", " + maxEntities);
+            for (JsonValue tupV : result) {
+                JsonArray tup = (JsonArray) tupV;
+                long dsid = tup.getJsonNumber(0).longValueExact();
+                DsInfo dsInfo = new DsInfoImpl(dsid, tup.getString(1), tup.getString(2, null),
+                        tup.getJsonNumber(3).longValueExact(), tup.getString(4), tup.getString(5),
+                        tup.getJsonNumber(6).longValueExact(), tup.getString(7));
+                dsInfoCache.put(dsInfo);
+                found.put(dsid, dsInfo);
+            }
+            if (result.size() < maxEntities) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Put the queries submitted by the last one run at the front of those
+     * pending, keeping their order, so that the selection is resolved depth
+     * first and few queries are pending at once
+     */
+    private void schedule() {
+        if (pending != null) {
+            for (int i = spawned.size() - 1; i >= 0; i--) {
+                pending.push(spawned.get(i));
+            }
+            spawned.clear();
+        }
+    }
+
+    /**
+     * Run the query, which may add to the results, on the icatQueryPool if
+     * there is one or else at once. Queries on the pool may submit further
+     * queries and are waited for by awaitQueries.
+     */
+    private void submit(Query query) throws IcatException_Exception, IcatException, NotFoundException,
+            InsufficientPrivilegesException, InternalException {
+        if (pending != null) {
+            spawned.add(query);
+            return;
+        }
+        if (queryPool == null) {
+            query.run();
+            return;
+        }
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            outstanding++;
+        }
+        try {
+            queryPool.execute(() -> {
+                Exception e = null;
+                try {
+                    synchronized (this) {
+                        if (failure != null) {
+                            return;
+                        }
+                    }
+                    query.run();
+                } catch (Exception qe) {
+                    e = qe;
+                } finally {
+                    ended(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ended(new InternalException("ICAT query rejected by the pool: " + e.getMessage()));
+        }
+    }
+
+    /* Record the end of a submitted query, which failed if e is not null */
+    private synchronized void ended(Exception e) {
+        if (e != null && failure == null) {
+            failure = e;
+        }
+        if (--outstanding == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for all the queries submitted to the icatQueryPool and throw the
+     * first exception from any of them.
+     */
+    private synchronized void awaitQueries() throws IcatException_Exception, IcatException, NotFoundException,
+            InsufficientPrivilegesException, InternalException {
+        try {
+            while (outstanding > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InternalException(e.getClass() + " " + e.getMessage());
+        }
+        if (failure instanceof IcatException_Exception) {
+            throw (IcatException_Exception) failure;
+        } else if (failure instanceof IcatException) {
+            throw (IcatException) failure;
+        } else if (failure instanceof NotFoundException) {
+            throw (NotFoundException) failure;
+        } else if (failure instanceof InsufficientPrivilegesException) {
+            throw (InsufficientPrivilegesException) failure;
+        } else if (failure instanceof InternalException) {
+            throw (InternalException) failure;
+        } else if (failure != null) {
+            throw new InternalException(failure.getClass() + " " + failure.getMessage());
         }
     }
 
+    private static JsonArray search(Session session, String query) throws IcatException {
+        return Json.createReader(new ByteArrayInputStream(session.search(query).getBytes())).readArray();
+    }
+
     private void manyDss(Long invid, JsonArray result)
-            throws IcatException, InsufficientPrivilegesException, InternalException {
+            throws IcatException_Exception, IcatException, NotFoundException, InsufficientPrivilegesException,
+            InternalException {
         long min = result.getJsonNumber(0).longValueExact();
         long max = result.getJsonNumber(1).longValueExact();
         long count = result.getJsonNumber(2).longValueExact();
@@ -215,7 +511,7 @@ public class DataSelection {
             if (count <= maxEntities) {
                 String query = "SELECT inv.name, inv.visitId, inv.facility.id,  inv.facility.name FROM Investigation inv WHERE inv.id = "
                         + invid;
-                result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes())).readArray();
+                result = search(userRestSession, query);
                 if (result.size() == 0) {
                     return;
                 }
@@ -227,42 +523,56 @@ public class DataSelection {
 
                 query = "SELECT ds.id, ds.name, ds.location FROM Dataset ds WHERE ds.investigation.id = " + invid
                         + " AND ds.id BETWEEN " + min + " AND " + max;
-                result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes())).readArray();
+                result = search(userRestSession, query);
                 for (JsonValue tupV : result) {
                     JsonArray tup = (JsonArray) tupV;
                     long dsid = tup.getJsonNumber(0).longValueExact();
-                    dsInfos.put(dsid, new DsInfoImpl(dsid, tup.getString(1), tup.getString(2, null), invid, invName,
-                            visitId, facilityId, facilityName));
-
-                    query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = "
-                            + dsid + " AND df.location IS NOT NULL";
-                    result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes()))
-                            .readArray().getJsonArray(0);
-                    if (result.getJsonNumber(2).longValueExact() == 0) {
-                        emptyDatasets.add(dsid);
-                    } else if (dfWanted) {
-                        manyDfs(dsid, result);
+                    DsInfo dsInfo = new DsInfoImpl(dsid, tup.getString(1), tup.getString(2, null), invid, invName,
+                            visitId, facilityId, facilityName);
+                    dsInfoCache.put(dsInfo);
+                    synchronized (this) {
+                        dsInfos.put(dsid, dsInfo);
                     }
-
+                    submit(() -> countDfs(dsid, userRestSession));
                 }
             } else {
                 long half = (min + max) / 2;
-                String query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
-                        + invid + " AND ds.id BETWEEN " + min + " AND " + half;
-                result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes())).readArray();
-                manyDss(invid, result);
-                query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
-                        + invid + " AND ds.id BETWEEN " + half + 1 + " AND " + max;
-                result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes())).readArray()
-                        .getJsonArray(0);
-                manyDss(invid, result);
+                submit(() -> {
+                    String query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
+                            + invid + " AND ds.id BETWEEN " + min + " AND " + half;
+                    manyDss(invid, search(userRestSession, query).getJsonArray(0));
+                });
+                submit(() -> {
+                    String query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
+                            + invid + " AND ds.id BETWEEN " + (half + 1) + " AND " + max;
+                    manyDss(invid, search(userRestSession, query).getJsonArray(0));
+                });
             }
         }
 
     }
 
+    /**
+     * Record the dataset as empty or add its datafiles if they are wanted.
+     */
+    private void countDfs(long dsid, Session session)
+            throws IcatException_Exception, IcatException, NotFoundException, InsufficientPrivilegesException,
+            InternalException {
+        String query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = " + dsid
+                + " AND df.location IS NOT NULL";
+        JsonArray result = search(session, query).getJsonArray(0);
+        if (result.getJsonNumber(2).longValueExact() == 0) { // Count 0
+            synchronized (this) {
+                emptyDatasets.add(dsid);
+            }
+        } else if (dfWanted) {
+            manyDfs(dsid, result);
+        }
+    }
+
     private void manyDfs(long dsid, JsonArray result)
-            throws IcatException, InsufficientPrivilegesException, InternalException {
+            throws IcatException_Exception, IcatException, NotFoundException, InsufficientPrivilegesException,
+            InternalException {
         // dataset access for the user has been checked so the REST session for the
         // reader account can be used if the IDS setting to allow this is enabled
         long min = result.getJsonNumber(0).longValueExact();
@@ -271,28 +581,46 @@ public class DataSelection {
         logger.debug("manyDfs min: {} max: {} count: {}", min, max, count);
         if (count != 0) {
             if (count <= maxEntities) {
-                String query = "SELECT df.id, df.name, df.location, df.createId, df.modId FROM Datafile df WHERE df.dataset.id = "
+                String query = "SELECT df.id, df.name, df.location, df.createId, df.modId, df.fileSize, df.checksum FROM Datafile df WHERE df.dataset.id = "
                         + dsid + " AND df.location IS NOT NULL AND df.id BETWEEN " + min + " AND " + max;
-                result = Json.createReader(new ByteArrayInputStream(restSessionToUse.search(query).getBytes())).readArray();
+                result = search(restSessionToUse, query);
+                List<DfInfoImpl> found = new ArrayList<>(result.size());
                 for (JsonValue tupV : result) {
                     JsonArray tup = (JsonArray) tupV;
                     long dfid = tup.getJsonNumber(0).longValueExact();
                     String location = IdsBean.getLocation(dfid, tup.getString(2, null));
-                    dfInfos.add(
-                            new DfInfoImpl(dfid, tup.getString(1), location, tup.getString(3), tup.getString(4), dsid));
+                    Long fileSize = tup.isNull(5) ? null : tup.getJsonNumber(5).longValueExact();
+                    found.add(new DfInfoImpl(dfid, tup.getString(1), location, tup.getString(3), tup.getString(4),
+                            dsid, fileSize, tup.getString(6, null)));
                 }
+                addDfInfos(found);
             } else {
                 long half = (min + max) / 2;
-                String query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = "
-                        + dsid + " AND df.location IS NOT NULL AND df.id BETWEEN " + min + " AND " + half;
-                result = Json.createReader(new ByteArrayInputStream(restSessionToUse.search(query).getBytes())).readArray()
-                        .getJsonArray(0);
-                manyDfs(dsid, result);
-                query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = " + dsid
-                        + " AND df.location IS NOT NULL AND df.id BETWEEN " + (half + 1) + " AND " + max;
-                result = Json.createReader(new ByteArrayInputStream(restSessionToUse.search(query).getBytes())).readArray()
-                        .getJsonArray(0);
-                manyDfs(dsid, result);
+                submit(() -> {
+                    String query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = "
+                            + dsid + " AND df.location IS NOT NULL AND df.id BETWEEN " + min + " AND " + half;
+                    manyDfs(dsid, search(restSessionToUse, query).getJsonArray(0));
+                });
+                submit(() -> {
+                    String query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = "
+                            + dsid + " AND df.location IS NOT NULL AND df.id BETWEEN " + (half + 1) + " AND " + max;
+                    manyDfs(dsid, search(restSessionToUse, query).getJsonArray(0));
+                });
+            }
+        }
+    }
+
+    /*
+     * Add datafiles found by a query straight into the builder, rather than
+     * into a set to be copied at the end, unless the selection is resolved
+     * incrementally
+     */
+    private void addDfInfos(List<DfInfoImpl> found) {
+        synchronized (this) {
+            if (dfBuilder != null) {
+                dfBuilder.addAll(found);
+            } else {
+                dfInfos.addAll(found);
             }
         }
     }
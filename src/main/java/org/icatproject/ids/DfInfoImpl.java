@@ -4,6 +4,8 @@ import org.icatproject.ids.plugin.DfInfo;
 
 public class DfInfoImpl implements DfInfo, Comparable<DfInfoImpl> {
 
+    private String checksum;
+
     private String createId;
 
     private long dfId;
@@ -12,17 +14,26 @@ public class DfInfoImpl implements DfInfo, Comparable<DfInfoImpl> {
 
     private String dfName;
 
+    private Long fileSize;
+
     private long dsId;
 
     private String modId;
 
     public DfInfoImpl(long dfId, String dfName, String dfLocation, String createId, String modId, long dsId) {
+        this(dfId, dfName, dfLocation, createId, modId, dsId, null, null);
+    }
+
+    public DfInfoImpl(long dfId, String dfName, String dfLocation, String createId, String modId, long dsId,
+                      Long fileSize, String checksum) {
         this.dfId = dfId;
         this.dfName = dfName;
         this.dfLocation = dfLocation;
         this.createId = createId;
         this.modId = modId;
         this.dsId = dsId;
+        this.fileSize = fileSize;
+        this.checksum = checksum;
     }
 
     @Override
@@ -36,6 +47,13 @@ public class DfInfoImpl implements DfInfo, Comparable<DfInfoImpl> {
         return dfId == ((DfInfoImpl) obj).getDfId();
     }
 
+    /**
+     * The checksum as recorded in ICAT or null if not known
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
     @Override
     public String getCreateId() {
         return createId;
@@ -56,6 +74,13 @@ public class DfInfoImpl implements DfInfo, Comparable<DfInfoImpl> {
         return dfName;
     }
 
+    /**
+     * The file size as recorded in ICAT or null if not known
+     */
+    public Long getFileSize() {
+        return fileSize;
+    }
+
     public long getDsId() {
         return dsId;
     }
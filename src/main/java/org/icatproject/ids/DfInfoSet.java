@@ -0,0 +1,408 @@
+package org.icatproject.ids;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/**
+ * An immutable set of DfInfoImpl, ordered by dfId, held as columns of
+ * primitives rather than as one object per datafile so that selections of
+ * millions of datafiles take a fraction of the memory of a TreeSet or
+ * HashSet. The createId, modId and the directory part of each location are
+ * usually shared by many datafiles so each distinct value is held once in a
+ * table of strings. The rest of the location, the name and the checksum are
+ * packed as UTF-8 into a single array of bytes rather than held as a String
+ * each. The name is usually the last part of the location and is then not
+ * held separately.
+ *
+ * The DfInfoImpl returned by the iterator and by first and last are
+ * created as they are needed and are equal to those which were added.
+ */
+class DfInfoSet extends AbstractSet<DfInfoImpl> implements SortedSet<DfInfoImpl> {
+
+    /**
+     * Collects the datafiles of a DfInfoSet. Any with the same dfId as one
+     * already added are ignored.
+     */
+    static class Builder {
+
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private String[] strings = new String[16];
+        private int nStrings;
+
+        private byte[] text;
+        private int textLength;
+
+        private int size;
+        private long[] dfIds;
+        private long[] dsIds;
+        private long[] fileSizes;
+        private int[] dirs;
+        private int[] rests;
+        private int[] restLengths;
+        private int[] names;
+        private int[] nameLengths;
+        private int[] createIds;
+        private int[] modIds;
+        private int[] checksums;
+        private int[] checksumLengths;
+
+        Builder() {
+            this(16);
+        }
+
+        Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            dfIds = new long[capacity];
+            dsIds = new long[capacity];
+            fileSizes = new long[capacity];
+            dirs = new int[capacity];
+            rests = new int[capacity];
+            restLengths = new int[capacity];
+            names = new int[capacity];
+            nameLengths = new int[capacity];
+            createIds = new int[capacity];
+            modIds = new int[capacity];
+            checksums = new int[capacity];
+            checksumLengths = new int[capacity];
+            text = new byte[32 * capacity];
+        }
+
+        Builder add(DfInfoImpl dfInfo) {
+            if (size == dfIds.length) {
+                int capacity = size + (size >> 1) + 1;
+                dfIds = Arrays.copyOf(dfIds, capacity);
+                dsIds = Arrays.copyOf(dsIds, capacity);
+                fileSizes = Arrays.copyOf(fileSizes, capacity);
+                dirs = Arrays.copyOf(dirs, capacity);
+                rests = Arrays.copyOf(rests, capacity);
+                restLengths = Arrays.copyOf(restLengths, capacity);
+                names = Arrays.copyOf(names, capacity);
+                nameLengths = Arrays.copyOf(nameLengths, capacity);
+                createIds = Arrays.copyOf(createIds, capacity);
+                modIds = Arrays.copyOf(modIds, capacity);
+                checksums = Arrays.copyOf(checksums, capacity);
+                checksumLengths = Arrays.copyOf(checksumLengths, capacity);
+            }
+            dfIds[size] = dfInfo.getDfId();
+            dsIds[size] = dfInfo.getDsId();
+            Long fileSize = dfInfo.getFileSize();
+            fileSizes[size] = fileSize == null ? NO_SIZE : fileSize;
+            String location = dfInfo.getDfLocation();
+            String rest = location;
+            if (location == null) {
+                dirs[size] = -1;
+            } else {
+                int slash = location.lastIndexOf('/') + 1;
+                dirs[size] = index(location.substring(0, slash));
+                rest = location.substring(slash);
+            }
+            rests[size] = textLength;
+            restLengths[size] = append(rest);
+            String name = dfInfo.getDfName();
+            if (name != null && name.equals(rest)) {
+                nameLengths[size] = SAME_AS_REST;
+            } else {
+                names[size] = textLength;
+                nameLengths[size] = append(name);
+            }
+            createIds[size] = index(dfInfo.getCreateId());
+            modIds[size] = index(dfInfo.getModId());
+            checksums[size] = textLength;
+            checksumLengths[size] = append(dfInfo.getChecksum());
+            size++;
+            return this;
+        }
+
+        Builder addAll(Iterable<DfInfoImpl> dfInfos) {
+            for (DfInfoImpl dfInfo : dfInfos) {
+                add(dfInfo);
+            }
+            return this;
+        }
+
+        /* Append s to the text, returning its length in bytes or NULL_LENGTH if it is null */
+        private int append(String s) {
+            if (s == null) {
+                return NULL_LENGTH;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            long needed = (long) textLength + bytes.length;
+            if (needed > text.length) {
+                if (needed > MAX_TEXT) {
+                    throw new IllegalStateException("Too much text for a DfInfoSet");
+                }
+                text = Arrays.copyOf(text, (int) Math.min(MAX_TEXT, Math.max(needed, 2L * text.length)));
+            }
+            System.arraycopy(bytes, 0, text, textLength, bytes.length);
+            textLength += bytes.length;
+            return bytes.length;
+        }
+
+        private int index(String s) {
+            if (s == null) {
+                return -1;
+            }
+            Integer index = indexes.get(s);
+            if (index == null) {
+                if (nStrings == strings.length) {
+                    strings = Arrays.copyOf(strings, 2 * nStrings);
+                }
+                index = nStrings;
+                strings[nStrings++] = s;
+                indexes.put(s, index);
+            }
+            return index;
+        }
+
+        DfInfoSet build() {
+            int[] order = null;
+            for (int i = 1; i < size; i++) {
+                if (dfIds[i] <= dfIds[i - 1]) {
+                    order = sortedOrder();
+                    break;
+                }
+            }
+            return new DfInfoSet(this, order);
+        }
+
+        /*
+         * The positions in order of dfId, dropping all but the first of any
+         * repeated dfId. The positions are merge sorted, bottom up, which is
+         * stable so the first of a repeated dfId stays first.
+         */
+        private int[] sortedOrder() {
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            int[] work = new int[size];
+            for (int width = 1; width < size; width *= 2) {
+                for (int lo = 0; lo < size; lo += 2 * width) {
+                    int mid = Math.min(lo + width, size);
+                    int hi = Math.min(lo + 2 * width, size);
+                    int i = lo;
+                    int j = mid;
+                    for (int k = lo; k < hi; k++) {
+                        if (j == hi || i < mid && dfIds[order[i]] <= dfIds[order[j]]) {
+                            work[k] = order[i++];
+                        } else {
+                            work[k] = order[j++];
+                        }
+                    }
+                }
+                int[] t = order;
+                order = work;
+                work = t;
+            }
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (n == 0 || dfIds[order[n - 1]] != dfIds[order[i]]) {
+                    order[n++] = order[i];
+                }
+            }
+            return Arrays.copyOf(order, n);
+        }
+    }
+
+    /* Held in fileSizes when the size is not known */
+    private static final long NO_SIZE = -1;
+
+    /* Held as the length of a string in the text which is null */
+    private static final int NULL_LENGTH = -1;
+
+    /* Held in nameLengths when the name is the rest of the location */
+    private static final int SAME_AS_REST = -2;
+
+    private static final int MAX_TEXT = Integer.MAX_VALUE - 8;
+
+    private final String[] strings;
+    private final byte[] text;
+    private final long[] dfIds;
+    private final long[] dsIds;
+    private final long[] fileSizes;
+    private final int[] dirs;
+    private final int[] rests;
+    private final int[] restLengths;
+    private final int[] names;
+    private final int[] nameLengths;
+    private final int[] createIds;
+    private final int[] modIds;
+    private final int[] checksums;
+    private final int[] checksumLengths;
+
+    /* The range of positions making up this set, which may be a view of a larger one */
+    private final int from;
+    private final int to;
+
+    private DfInfoSet(Builder b, int[] order) {
+        strings = Arrays.copyOf(b.strings, b.nStrings);
+        text = Arrays.copyOf(b.text, b.textLength);
+        int n = order == null ? b.size : order.length;
+        dfIds = new long[n];
+        dsIds = new long[n];
+        fileSizes = new long[n];
+        dirs = new int[n];
+        rests = new int[n];
+        restLengths = new int[n];
+        names = new int[n];
+        nameLengths = new int[n];
+        createIds = new int[n];
+        modIds = new int[n];
+        checksums = new int[n];
+        checksumLengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            int j = order == null ? i : order[i];
+            dfIds[i] = b.dfIds[j];
+            dsIds[i] = b.dsIds[j];
+            fileSizes[i] = b.fileSizes[j];
+            dirs[i] = b.dirs[j];
+            rests[i] = b.rests[j];
+            restLengths[i] = b.restLengths[j];
+            names[i] = b.names[j];
+            nameLengths[i] = b.nameLengths[j];
+            createIds[i] = b.createIds[j];
+            modIds[i] = b.modIds[j];
+            checksums[i] = b.checksums[j];
+            checksumLengths[i] = b.checksumLengths[j];
+        }
+        from = 0;
+        to = n;
+    }
+
+    private DfInfoSet(DfInfoSet whole, int from, int to) {
+        strings = whole.strings;
+        text = whole.text;
+        dfIds = whole.dfIds;
+        dsIds = whole.dsIds;
+        fileSizes = whole.fileSizes;
+        dirs = whole.dirs;
+        rests = whole.rests;
+        restLengths = whole.restLengths;
+        names = whole.names;
+        nameLengths = whole.nameLengths;
+        createIds = whole.createIds;
+        modIds = whole.modIds;
+        checksums = whole.checksums;
+        checksumLengths = whole.checksumLengths;
+        this.from = from;
+        this.to = to;
+    }
+
+    static DfInfoSet of(Collection<DfInfoImpl> dfInfos) {
+        return new Builder(dfInfos.size()).addAll(dfInfos).build();
+    }
+
+    private DfInfoImpl get(int i) {
+        String rest = text(rests[i], restLengths[i]);
+        String location = dirs[i] < 0 ? rest : strings[dirs[i]] + rest;
+        String name = nameLengths[i] == SAME_AS_REST ? rest : text(names[i], nameLengths[i]);
+        return new DfInfoImpl(dfIds[i], name, location, string(createIds[i]), string(modIds[i]), dsIds[i],
+                fileSizes[i] == NO_SIZE ? null : fileSizes[i], text(checksums[i], checksumLengths[i]));
+    }
+
+    private String text(int start, int length) {
+        return length == NULL_LENGTH ? null : new String(text, start, length, StandardCharsets.UTF_8);
+    }
+
+    private String string(int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    /* The position of the first datafile with a dfId not less than the one given */
+    private int position(long dfId) {
+        int i = Arrays.binarySearch(dfIds, from, to, dfId);
+        return i < 0 ? -i - 1 : i;
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof DfInfoImpl)) {
+            return false;
+        }
+        return Arrays.binarySearch(dfIds, from, to, ((DfInfoImpl) o).getDfId()) >= 0;
+    }
+
+    @Override
+    public Iterator<DfInfoImpl> iterator() {
+        return new Iterator<>() {
+
+            private int i = from;
+
+            @Override
+            public boolean hasNext() {
+                return i < to;
+            }
+
+            @Override
+            public DfInfoImpl next() {
+                if (i == to) {
+                    throw new NoSuchElementException();
+                }
+                return get(i++);
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super DfInfoImpl> comparator() {
+        return null;
+    }
+
+    @Override
+    public SortedSet<DfInfoImpl> subSet(DfInfoImpl fromElement, DfInfoImpl toElement) {
+        int start = position(fromElement.getDfId());
+        return new DfInfoSet(this, start, Math.max(start, position(toElement.getDfId())));
+    }
+
+    @Override
+    public SortedSet<DfInfoImpl> headSet(DfInfoImpl toElement) {
+        return new DfInfoSet(this, from, position(toElement.getDfId()));
+    }
+
+    @Override
+    public SortedSet<DfInfoImpl> tailSet(DfInfoImpl fromElement) {
+        return new DfInfoSet(this, position(fromElement.getDfId()), to);
+    }
+
+    @Override
+    public DfInfoImpl first() {
+        if (from == to) {
+            throw new NoSuchElementException();
+        }
+        return get(from);
+    }
+
+    @Override
+    public DfInfoImpl last() {
+        if (from == to) {
+            throw new NoSuchElementException();
+        }
+        return get(to - 1);
+    }
+
+    /**
+     * A rough estimate of the bytes of heap used by the whole set, counting
+     * each shared string once.
+     */
+    long weight() {
+        long weight = 144 + 64L * dfIds.length + text.length;
+        for (String s : strings) {
+            weight += 40 + s.length();
+        }
+        return weight;
+    }
+
+}
@@ -0,0 +1,151 @@
+package org.icatproject.ids;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jakarta.json.stream.JsonGenerator;
+
+import org.icatproject.Dataset;
+import org.icatproject.IcatException_Exception;
+import org.icatproject.ids.exceptions.InsufficientPrivilegesException;
+import org.icatproject.ids.plugin.DsInfo;
+
+/**
+ * The name, location, investigation and facility of recently seen datasets,
+ * shared by the whole server through the PropertyHandler so that the DsInfo
+ * of a dataset need not be read from ICAT each time it is needed by the
+ * FiniteStateMachine or when restarting unfinished work.
+ *
+ * Entries are added whenever a dataset is read from ICAT by any part of the
+ * IDS and expire after ttlMillis, so that a change made in ICAT is seen
+ * within that time. The least recently used entries are dropped once there
+ * are more than maxEntries. The cache only holds metadata: a user must still
+ * be checked by ICAT to be allowed to read a dataset before its DsInfo is
+ * taken from here on their behalf.
+ */
+public class DsInfoCache {
+
+    /**
+     * Reads the DsInfo of a dataset which is not cached.
+     */
+    interface Loader {
+        DsInfo load(long dsId) throws IcatException_Exception, InsufficientPrivilegesException;
+    }
+
+    private static class Entry {
+        private final DsInfo dsInfo;
+        private final long time;
+
+        private Entry(DsInfo dsInfo, long time) {
+            this.dsInfo = dsInfo;
+            this.time = time;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /* In order of access so that the first is the least recently used */
+    private final LinkedHashMap<Long, Entry> entries;
+
+    /**
+     * @param maxEntries the most datasets to hold or 0 to disable the cache
+     * @param ttlMillis  how long an entry may be used after it was read
+     */
+    DsInfoCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > DsInfoCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return the DsInfo of the dataset, reading it from ICAT with the reader
+     * account if it is not cached.
+     */
+    public DsInfo get(IcatReader reader, long dsId) throws IcatException_Exception, InsufficientPrivilegesException {
+        return get(dsId, id -> new DsInfoImpl((Dataset) reader.get("Dataset ds INCLUDE ds.investigation.facility",
+                id)));
+    }
+
+    /**
+     * Return the DsInfo of the dataset, calling the loader, without holding
+     * any lock, if it is not cached.
+     */
+    DsInfo get(long dsId, Loader loader) throws IcatException_Exception, InsufficientPrivilegesException {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(dsId);
+            if (entry != null && entry.time >= now - ttlMillis) {
+                hits++;
+                return entry.dsInfo;
+            }
+            misses++;
+        }
+        DsInfo dsInfo = loader.load(dsId);
+        put(dsInfo);
+        return dsInfo;
+    }
+
+    /**
+     * Record the DsInfo of a dataset just read from ICAT.
+     */
+    public void put(DsInfo dsInfo) {
+        if (maxEntries == 0) {
+            return;
+        }
+        Entry entry = new Entry(dsInfo, System.currentTimeMillis());
+        synchronized (entries) {
+            entries.put(dsInfo.getDsId(), entry);
+        }
+    }
+
+    /**
+     * Drop the entries for the datasets so that they are next read from
+     * ICAT.
+     */
+    public void invalidate(Collection<Long> dsIds) {
+        synchronized (entries) {
+            for (Long dsId : dsIds) {
+                if (entries.remove(dsId) != null) {
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    int getCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Write the statistics of the cache as an object with the given name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        synchronized (entries) {
+            long lookups = hits + misses;
+            gen.writeStartObject(name).write("entries", entries.size()).write("maxEntries", maxEntries)
+                    .write("ttlMillis", ttlMillis).write("hits", hits).write("misses", misses)
+                    .write("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups).write("evictions", evictions)
+                    .write("invalidations", invalidations).writeEnd();
+        }
+    }
+
+}
@@ -88,6 +88,7 @@ public class FileChecker {
                     DsInfo dsInfo;
                     try {
                         dsInfo = new DsInfoImpl(ds);
+                        propertyHandler.getDsInfoCache().put(dsInfo);
                     } catch (InsufficientPrivilegesException e) {
                         report(ds, dfName, "Reports: " + e.getClass().getSimpleName() + " " + e.getMessage());
                         return;
@@ -96,12 +97,14 @@ public class FileChecker {
                     try {
                         tPath = Files.createTempFile(null, null);
                         archiveStorage.get(dsInfo, tPath);
-                        try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(tPath))) {
+                        BufferPool bufferPool = BufferPool.getInstance();
+                        byte[] bytes = bufferPool.acquire();
+                        try (ZipInputStream zis = new ZipInputStream(
+                                bufferPool.bufferedInputStream(Files.newInputStream(tPath)))) {
                             ZipEntry ze = zis.getNextEntry();
                             while (ze != null) {
                                 dfName = zipMapper.getFileName(ze.getName());
                                 CRC32 crc = new CRC32();
-                                byte[] bytes = new byte[1024];
                                 int length;
                                 long n = 0;
                                 while ((length = zis.read(bytes)) >= 0) {
@@ -128,6 +131,8 @@ public class FileChecker {
                             if (!crcAndLength.isEmpty()) {
                                 report(ds, null, "zip file incomplete");
                             }
+                        } finally {
+                            bufferPool.release(bytes);
                         }
                     } catch (IOException e) {
                         report(ds, dfName,
@@ -156,9 +161,10 @@ public class FileChecker {
                     return;
                 }
 
+                BufferPool bufferPool = BufferPool.getInstance();
+                byte[] bytes = bufferPool.acquire();
                 try (InputStream is = mainStorage.get(location, df.getCreateId(), df.getModId())) {
                     CRC32 crc = new CRC32();
-                    byte[] bytes = new byte[1024];
                     int length;
                     long n = 0;
                     while ((length = is.read(bytes)) >= 0) {
@@ -179,6 +185,8 @@ public class FileChecker {
                     report(df, e.getClass() + " " + e.getMessage());
                 } catch (Throwable e) {
                     logger.error("Throwable " + e.getClass() + " " + e.getMessage());
+                } finally {
+                    bufferPool.release(bytes);
                 }
 
             }
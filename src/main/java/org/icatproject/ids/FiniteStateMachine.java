@@ -30,7 +30,6 @@ import jakarta.json.stream.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.icatproject.Dataset;
 import org.icatproject.ids.LockManager.Lock;
 import org.icatproject.ids.LockManager.LockInfo;
 import org.icatproject.ids.LockManager.LockType;
@@ -76,8 +75,7 @@ public class FiniteStateMachine {
                             Long dsId = dfInfo.getDsId();
                             DsInfo dsInfo;
                             try {
-                                Dataset ds = (Dataset) reader.get("Dataset ds INCLUDE ds.investigation.facility", dsId);
-                                dsInfo = new DsInfoImpl(ds);
+                                dsInfo = propertyHandler.getDsInfoCache().get(reader, dsId);
                             } catch (Exception e) {
                                 logger.error("Could not get dsInfo {}: {}.", dsId, e.getMessage());
                                 continue;
@@ -281,6 +279,20 @@ public class FiniteStateMachine {
 
     }
 
+    /**
+     * Told when a change to a dataset or datafile has ended.
+     */
+    public interface ChangeListener {
+
+        /**
+         * Called with the id of the dataset or datafile whose change has
+         * ended and whether it was recorded as a failure. Return true if the
+         * listener should be removed. It may ask what is changing but must
+         * not queue operations or add or remove listeners.
+         */
+        boolean changed(long id, boolean failure);
+    }
+
     public enum RequestedState {
         ARCHIVE_REQUESTED, DELETE_REQUESTED, RESTORE_REQUESTED, WRITE_REQUESTED, WRITE_THEN_ARCHIVE_REQUESTED
     }
@@ -311,6 +323,15 @@ public class FiniteStateMachine {
     @EJB
     private LockManager lockManager;
 
+    @EJB
+    private ZipCache zipCache;
+
+    @EJB
+    private PreparedCache preparedCache;
+
+    @EJB
+    private PreparedDedup preparedDedup;
+
     private StorageUnit storageUnit;
 
     private Timer timer = new Timer("FSM Timer");
@@ -321,6 +342,8 @@ public class FiniteStateMachine {
 
     private Set<Long> failures = ConcurrentHashMap.newKeySet();
 
+    private Set<ChangeListener> listeners = ConcurrentHashMap.newKeySet();
+
     @PreDestroy
     private void exit() {
         timer.cancel();
@@ -446,6 +469,18 @@ public class FiniteStateMachine {
             }
             gen.writeEnd(); // end Array("failures")
 
+            BufferPool.getInstance().writeStatus(gen, "bufferPool");
+            CompressionPolicy.getInstance().writeStatus(gen, "compression");
+            zipCache.writeStatus(gen, "zipCache");
+            preparedCache.writeStatus(gen, "preparedCache");
+            preparedDedup.writeStatus(gen, "prepareDedup");
+            propertyHandler.getDsInfoCache().writeStatus(gen, "dsInfoCache");
+            propertyHandler.getSessionCache().writeStatus(gen, "sessionCache");
+            IcatPool icatPool = propertyHandler.getIcatPool();
+            if (icatPool != null) {
+                icatPool.writeStatus(gen, "icat");
+            }
+
             gen.writeEnd(); // end Object()
         }
         return baos.toString();
@@ -582,12 +617,33 @@ public class FiniteStateMachine {
         synchronized (deferredDfOpsQueue) {
             dfChanging.remove(dfInfo);
         }
+        fireChanged(dfInfo.getDfId());
     }
 
     public void removeFromChanging(DsInfo dsInfo) {
         synchronized (deferredDsOpsQueue) {
             dsChanging.remove(dsInfo);
         }
+        fireChanged(dsInfo.getDsId());
+    }
+
+    /**
+     * Register a listener to be told when a change to a dataset or datafile,
+     * such as its restoration, has ended.
+     */
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireChanged(long id) {
+        if (!listeners.isEmpty()) {
+            boolean failure = failures.contains(id);
+            listeners.removeIf(listener -> listener.changed(id, failure));
+        }
     }
 
     private void requestWrite(DsInfo dsInfo) throws InternalException {
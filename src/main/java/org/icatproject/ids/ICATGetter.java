@@ -30,6 +30,18 @@ public class ICATGetter {
      * @throws IcatException_Exception if something is wrong
      */
     public static ICAT getService(String urlString) throws IcatException_Exception {
+        return findService(urlString).getICATPort();
+    }
+
+    /**
+     * Find the ICAT SOAP web service with the basic URL string provided, as
+     * for getService, so that any number of ports may be obtained from it.
+     *
+     * @param urlString the url of the machine to be contacted
+     * @return an ICATService whose port has been seen to respond
+     * @throws IcatException_Exception if something is wrong
+     */
+    public static ICATService findService(String urlString) throws IcatException_Exception {
 
         if (urlString == null) {
             throwSessionException("Argument to constructor must not be null");
@@ -42,13 +54,13 @@ public class ICATGetter {
             throwSessionException("Invalid URL: " + urlString);
         }
 
-        ICAT icatService;
+        ICATService icatService;
         if (emptyFile) {
             for (String suffix : suffices) {
                 String icatUrlWsdl = urlString + "/" + suffix;
                 try {
-                    icatService = new ICATService(new URL(icatUrlWsdl)).getICATPort();
-                    icatService.getApiVersion();
+                    icatService = new ICATService(new URL(icatUrlWsdl));
+                    icatService.getICATPort().getApiVersion();
                     return icatService;
                 } catch (MalformedURLException e) {
                     throwSessionException("Invalid URL");
@@ -63,8 +75,8 @@ public class ICATGetter {
             }
         } else {
             try {
-                icatService = new ICATService(new URL(urlString)).getICATPort();
-                icatService.getApiVersion();
+                icatService = new ICATService(new URL(urlString));
+                icatService.getICATPort().getApiVersion();
                 return icatService;
             } catch (MalformedURLException e) {
                 throwSessionException("Invalid URL: " + urlString);
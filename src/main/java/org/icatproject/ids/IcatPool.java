@@ -0,0 +1,198 @@
+package org.icatproject.ids;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import jakarta.json.stream.JsonGenerator;
+import jakarta.xml.ws.BindingProvider;
+import jakarta.xml.ws.WebServiceException;
+
+import org.icatproject.ICAT;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares a pool of ICAT SOAP ports between all the callers in the IDS
+ * through a single ICAT which takes a port from the pool for each call.
+ *
+ * No more than maxInFlight calls are made to ICAT at once: any more wait, in
+ * the order they were made, for one to finish. Each port only ever has one
+ * call in progress and is given the connect and read timeouts. A port is
+ * dropped rather than reused if its call fails for a reason other than an
+ * IcatException_Exception, such as a timeout. The time taken by each call,
+ * and the time spent waiting to make it, are recorded by operation.
+ */
+public class IcatPool implements InvocationHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(IcatPool.class);
+
+    private final Supplier<ICAT> factory;
+    private final int maxInFlight;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final Semaphore permits;
+    private final ICAT icat;
+
+    private final Deque<ICAT> idle = new ArrayDeque<>();
+    private int ports;
+    private long dropped;
+
+    private final LatencyHistogram waits = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> operations = new TreeMap<>();
+
+    /**
+     * @param factory              makes a new port
+     * @param maxInFlight          the most calls to make at once
+     * @param connectTimeoutMillis the connect timeout for each port or 0 for
+     *                             none
+     * @param readTimeoutMillis    the read timeout for each port or 0 for none
+     */
+    IcatPool(Supplier<ICAT> factory, int maxInFlight, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.factory = factory;
+        this.maxInFlight = maxInFlight;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        permits = new Semaphore(maxInFlight, true);
+        icat = (ICAT) Proxy.newProxyInstance(ICAT.class.getClassLoader(), new Class<?>[]{ICAT.class}, this);
+        logger.info("Making up to " + maxInFlight + " concurrent calls to ICAT");
+    }
+
+    /**
+     * Return the ICAT to be used by all callers.
+     */
+    ICAT getIcat() {
+        return icat;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(this, args);
+        }
+        long start = System.currentTimeMillis();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebServiceException("Interrupted while waiting to call ICAT " + method.getName());
+        }
+        try {
+            long called = System.currentTimeMillis();
+            waits.record(called - start);
+            ICAT port = take();
+            boolean reusable = false;
+            try {
+                Object result = method.invoke(port, args);
+                reusable = true;
+                return result;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                reusable = !(cause instanceof RuntimeException) && !(cause instanceof Error);
+                throw cause;
+            } finally {
+                getHistogram(method.getName()).record(System.currentTimeMillis() - called);
+                give(port, reusable);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private ICAT take() {
+        synchronized (idle) {
+            ICAT port = idle.poll();
+            if (port != null) {
+                return port;
+            }
+            ports++;
+        }
+        try {
+            ICAT port = factory.get();
+            if (port instanceof BindingProvider) {
+                Map<String, Object> context = ((BindingProvider) port).getRequestContext();
+                if (connectTimeoutMillis > 0) {
+                    context.put("com.sun.xml.ws.connect.timeout", connectTimeoutMillis);
+                    context.put("jakarta.xml.ws.client.connectionTimeout", connectTimeoutMillis);
+                }
+                if (readTimeoutMillis > 0) {
+                    context.put("com.sun.xml.ws.request.timeout", readTimeoutMillis);
+                    context.put("jakarta.xml.ws.client.receiveTimeout", readTimeoutMillis);
+                }
+            }
+            return port;
+        } catch (RuntimeException e) {
+            synchronized (idle) {
+                ports--;
+            }
+            throw e;
+        }
+    }
+
+    private void give(ICAT port, boolean reusable) {
+        synchronized (idle) {
+            if (reusable) {
+                idle.push(port);
+            } else {
+                ports--;
+                dropped++;
+            }
+        }
+    }
+
+    private LatencyHistogram getHistogram(String operation) {
+        synchronized (operations) {
+            return operations.computeIfAbsent(operation, o -> new LatencyHistogram());
+        }
+    }
+
+    int getPortCount() {
+        synchronized (idle) {
+            return ports;
+        }
+    }
+
+    LatencyHistogram getWaits() {
+        return waits;
+    }
+
+    LatencyHistogram getOperation(String operation) {
+        synchronized (operations) {
+            return operations.get(operation);
+        }
+    }
+
+    /**
+     * Write the state of the pool and the histograms of waits and of calls by
+     * operation as an object with the given name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        gen.writeStartObject(name).write("maxInFlight", maxInFlight)
+                .write("inFlight", maxInFlight - permits.availablePermits())
+                .write("queued", permits.getQueueLength());
+        synchronized (idle) {
+            gen.write("ports", ports).write("idle", idle.size()).write("dropped", dropped);
+        }
+        gen.writeStartArray("bucketBoundsMillis");
+        for (long bound : LatencyHistogram.BOUNDS) {
+            gen.write(bound);
+        }
+        gen.writeEnd();
+        waits.writeStatus(gen, "wait");
+        gen.writeStartObject("operations");
+        synchronized (operations) {
+            for (Map.Entry<String, LatencyHistogram> entry : operations.entrySet()) {
+                entry.getValue().writeStatus(gen, entry.getKey());
+            }
+        }
+        gen.writeEnd().writeEnd();
+    }
+
+}
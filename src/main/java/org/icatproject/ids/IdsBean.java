@@ -2,14 +2,21 @@ package org.icatproject.ids;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -17,6 +24,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -33,12 +41,15 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 import javax.xml.datatype.DatatypeFactory;
 
@@ -52,6 +63,8 @@ import jakarta.json.JsonReader;
 import jakarta.json.JsonValue;
 import jakarta.json.stream.JsonGenerator;
 import static jakarta.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.StreamingOutput;
 
@@ -75,6 +88,7 @@ import org.icatproject.ids.exceptions.InsufficientPrivilegesException;
 import org.icatproject.ids.exceptions.InternalException;
 import org.icatproject.ids.exceptions.NotFoundException;
 import org.icatproject.ids.exceptions.NotImplementedException;
+import org.icatproject.ids.exceptions.RangeNotSatisfiableException;
 import org.icatproject.ids.plugin.AlreadyLockedException;
 import org.icatproject.ids.plugin.ArchiveStorageInterface;
 import org.icatproject.ids.plugin.DfInfo;
@@ -167,22 +181,213 @@ public class IdsBean {
         }
     }
 
-    private class SO implements StreamingOutput {
+    /**
+     * Supplies the datafiles of a download a set at a time along with the
+     * datasets to which they belong.
+     */
+    private interface ChunkSource extends Closeable {
+
+        /**
+         * Return the next set of datafiles or null when there are no more.
+         */
+        Set<DfInfoImpl> next() throws IOException, NotFoundException, InsufficientPrivilegesException,
+                InternalException;
+
+        /**
+         * The datasets of all the datafiles returned so far.
+         */
+        Map<Long, DsInfo> getDsInfos();
+    }
+
+    /**
+     * The datafiles of a large prepared selection read from its file chunkSize
+     * at a time.
+     */
+    private static class CursorSource implements ChunkSource {
+
+        private final PreparedFile.Cursor cursor;
+        private final int chunkSize;
+
+        CursorSource(PreparedFile.Cursor cursor, int chunkSize) {
+            this.cursor = cursor;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public Set<DfInfoImpl> next() throws IOException {
+            Set<DfInfoImpl> chunk = new HashSet<>();
+            DfInfoImpl dfInfo;
+            while (chunk.size() < chunkSize && (dfInfo = cursor.next()) != null) {
+                chunk.add(dfInfo);
+            }
+            return chunk.isEmpty() ? null : chunk;
+        }
+
+        @Override
+        public Map<Long, DsInfo> getDsInfos() {
+            return cursor.getDsInfos();
+        }
+
+        @Override
+        public void close() throws IOException {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The datafiles of a DataSelection in the sets in which it finds them as
+     * it is resolved.
+     */
+    private static class SelectionSource implements ChunkSource {
+
+        private final DataSelection dataSelection;
+
+        SelectionSource(DataSelection dataSelection) {
+            this.dataSelection = dataSelection;
+        }
+
+        @Override
+        public Set<DfInfoImpl> next() throws NotFoundException, InsufficientPrivilegesException, InternalException {
+            return dataSelection.nextDatafiles();
+        }
+
+        @Override
+        public Map<Long, DsInfo> getDsInfos() {
+            return dataSelection.getDsInfo();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The datafiles of a download taken from a ChunkSource a chunk at a time
+     * so that they need never all be in memory. The datasets of each chunk
+     * are locked, and the chunk checked to be online and still present in
+     * ICAT, before it is returned. The lock is held until the next chunk is
+     * requested or the chunks are closed.
+     */
+    private class Chunks implements AutoCloseable {
+
+        private final ChunkSource source;
+        private final Map<Long, DsInfo> dsInfos = new ConcurrentHashMap<>();
+        private SortedSet<DfInfoImpl> chunk;
+        private Lock lock;
+
+        Chunks(ChunkSource source) {
+            this.source = source;
+        }
+
+        /**
+         * Read, lock and check the next chunk so that it will be returned by
+         * the following call of {@link #next()}. This allows problems with
+         * the first chunk to be reported before the response is started.
+         */
+        void check() throws IOException, NotFoundException, InsufficientPrivilegesException, InternalException,
+                DataNotOnlineException {
+            if (lock != null) {
+                lock.release();
+                lock = null;
+            }
+            chunk = new TreeSet<>();
+            Set<DfInfoImpl> next = source.next();
+            if (next == null) {
+                return;
+            }
+            chunk.addAll(next);
+            Map<Long, DsInfo> dsInfos = new TreeMap<>();
+            for (DfInfoImpl df : chunk) {
+                dsInfos.put(df.getDsId(), source.getDsInfos().get(df.getDsId()));
+            }
+            this.dsInfos.putAll(dsInfos);
+            try {
+                lock = lockManager.lock(dsInfos.values(), LockType.SHARED);
+            } catch (AlreadyLockedException e) {
+                logger.debug("Could not acquire lock, getData failed");
+                throw new DataNotOnlineException("Data is busy");
+            }
+            /* Only datasets with datafiles are in the chunk so none are empty */
+            if (twoLevel) {
+                checkOnline(dsInfos.values(), Collections.emptySet(), chunk);
+            }
+            checkDatafilesPresent(chunk);
+        }
+
+        /**
+         * The datasets of the chunks checked so far. Unlike the map of the
+         * source, which is only touched by the thread taking the chunks, it
+         * may be read by any thread.
+         */
+        Map<Long, DsInfo> getDsInfos() {
+            return dsInfos;
+        }
+
+        /**
+         * Return the next chunk or null when there are no more.
+         */
+        SortedSet<DfInfoImpl> next() throws IOException, NotFoundException, InsufficientPrivilegesException,
+                InternalException, DataNotOnlineException {
+            if (chunk == null) {
+                check();
+            }
+            SortedSet<DfInfoImpl> next = chunk.isEmpty() ? null : chunk;
+            chunk = null;
+            return next;
+        }
+
+        @Override
+        public void close() {
+            if (lock != null) {
+                lock.release();
+                lock = null;
+            }
+            try {
+                source.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close source of chunks " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts an entry of a compressed zip.
+     */
+    private interface EntryStarter {
+
+        /**
+         * Start a STORED entry of the given size if the crc is not null and
+         * otherwise a DEFLATED entry with the given level.
+         */
+        void start(Long size, Long crc, int level) throws IOException;
+    }
+
+    private class SO implements StreamingOutput, AsyncDownload.Source {
 
-        private long offset;
         private boolean zip;
+        private ArchiveFormat format;
         private Map<Long, DsInfo> dsInfos;
         private Lock lock;
         private boolean compress;
         private Set<DfInfoImpl> dfInfos;
+        private Chunks chunks;
         private String ip;
         private long start;
+        private long zipTime;
         private Long transferId;
-
-        SO(Map<Long, DsInfo> dsInfos, Set<DfInfoImpl> dfInfos, long offset, boolean zip, boolean compress,
-           Lock lock, Long transferId, String ip, long start) {
-            this.offset = offset;
+        private ArchiveLayout layout;
+        private ZipCache.Hit cached;
+        private String cacheKey;
+        private ZipCache.Builder cacheBuilder;
+        private List<ByteRange> ranges;
+        private Long total;
+        private String boundary;
+        private Object transfer = "??";
+
+        SO(Map<Long, DsInfo> dsInfos, Set<DfInfoImpl> dfInfos, boolean zip, ArchiveFormat format, boolean compress,
+           Lock lock, Long transferId, String ip, long start, long zipTime) {
             this.zip = zip;
+            this.format = format;
             this.dsInfos = dsInfos;
             this.dfInfos = dfInfos;
             this.lock = lock;
@@ -190,57 +395,263 @@ public class IdsBean {
             this.transferId = transferId;
             this.ip = ip;
             this.start = start;
+            this.zipTime = zipTime;
+            if (zip && !compress && dfInfos != null) {
+                if (format == ArchiveFormat.TAR) {
+                    layout = TarLayout.create(dsInfos, dfInfos, zipMapper, zipTime);
+                } else {
+                    layout = ZipLayout.create(dsInfos, dfInfos, zipMapper, zipTime, checksumsAreCrc32);
+                }
+            }
+        }
+
+        /**
+         * Take the datafiles a chunk at a time from the chunks rather than
+         * from dfInfos, which must be null. The chunks are released with the
+         * SO.
+         */
+        void useChunks(Chunks chunks) {
+            this.chunks = chunks;
+        }
+
+        /**
+         * Return the first set of datafiles to be written, which is all of
+         * them unless they are being read in chunks.
+         */
+        private Set<DfInfoImpl> firstChunk() throws IOException {
+            return chunks == null ? dfInfos : nextChunk();
+        }
+
+        /**
+         * Return the next chunk of datafiles, locked and checked, or null when
+         * there are no more. Problems found once the response has started can
+         * only be reported by failing the stream.
+         */
+        private Set<DfInfoImpl> nextChunk() throws IOException {
+            if (chunks == null) {
+                return null;
+            }
+            try {
+                return chunks.next();
+            } catch (IdsException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        /**
+         * Serve the zip from the cache if it is there. Otherwise capture it
+         * for the cache if the whole of it is requested.
+         */
+        void useCache(String key) {
+            cached = zipCache.get(key);
+            if (cached == null) {
+                cacheKey = key;
+            } else {
+                layout = null;
+                logger.debug("Serving cached zip " + key);
+            }
+        }
+
+        /**
+         * Build the response to stream the data. Any set of ranges may be
+         * served if the length of the content is known. Otherwise only a
+         * single closed range of a single datafile can be served and other
+         * requests get the whole content: an archive generated as it is
+         * streamed is not guaranteed to be the same bytes each time so a
+         * range of it could not be joined to one from an earlier response.
+         * The length of an uncompressed archive is always known when its
+         * layout could be computed. Overlapping ranges are merged and if
+         * more than maxRanges remain the whole content is sent.
+         */
+        Response buildResponse(String name, OptionalLong length, List<ByteRange> requested)
+                throws RangeNotSatisfiableException {
+            if (layout != null) {
+                length = OptionalLong.of(layout.getLength());
+            } else if (cached != null) {
+                length = OptionalLong.of(cached.getSize());
+            }
+            if (requested != null && requested.size() == 1 && requested.get(0).getFirst() != null
+                    && requested.get(0).getFirst() == 0 && requested.get(0).getLast() == null) {
+                requested = null; // The whole content as before
+            }
+            if (requested != null && length.isPresent()) {
+                total = length.getAsLong();
+                ranges = ByteRange.resolve(requested, total, maxRanges);
+                if (ranges == null) {
+                    logger.debug("Ranges " + requested + " ignored as there are more than " + maxRanges);
+                    requested = null;
+                }
+            }
+            Response.ResponseBuilder builder;
+            if (requested == null) {
+                builder = Response.status(HttpURLConnection.HTTP_OK);
+                if (length.isPresent()) {
+                    builder.header(CONTENT_LENGTH, length.getAsLong());
+                }
+            } else if (length.isPresent()) {
+                if (ranges.isEmpty()) {
+                    if (cached != null) {
+                        cached.release();
+                    }
+                    throw new RangeNotSatisfiableException(
+                            "None of the ranges " + requested + " lies within the " + total + " bytes available");
+                }
+                builder = Response.status(HttpURLConnection.HTTP_PARTIAL);
+                if (ranges.size() == 1) {
+                    ByteRange range = ranges.get(0);
+                    builder.header("Content-Range", range.getContentRange(total)).header(CONTENT_LENGTH,
+                            range.getLength());
+                } else {
+                    boundary = UUID.randomUUID().toString();
+                    long contentLength = getClosingBoundary().length;
+                    for (ByteRange range : ranges) {
+                        contentLength += getPartHeader(range).length + range.getLength();
+                    }
+                    builder.type("multipart/byteranges; boundary=" + boundary).header(CONTENT_LENGTH,
+                            contentLength);
+                }
+            } else if (!zip && requested.size() == 1 && !requested.get(0).isSuffix()
+                    && requested.get(0).getLast() != null) {
+                /* A 206 must have a Content-Range so only a closed range can be served */
+                ranges = requested;
+                builder = Response.status(HttpURLConnection.HTTP_PARTIAL).header("Content-Range",
+                        ranges.get(0).getContentRange(null));
+            } else {
+                logger.debug("Ranges " + requested + " ignored as the length of the content is not known");
+                builder = Response.status(HttpURLConnection.HTTP_OK);
+            }
+            if (cacheKey != null && ranges == null) {
+                cacheBuilder = zipCache.build(cacheKey, dsInfos.keySet());
+            }
+            return builder.entity(this).header("Content-Disposition", "attachment; filename=\"" + name + "\"")
+                    .header("Accept-Ranges", "bytes").build();
+        }
+
+        private byte[] getPartHeader(ByteRange range) {
+            return ("\r\n--" + boundary + "\r\nContent-Type: " + MediaType.APPLICATION_OCTET_STREAM
+                    + "\r\nContent-Range: " + range.getContentRange(total) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private byte[] getClosingBoundary() {
+            return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
         }
 
         @Override
         public void write(OutputStream output) throws IOException {
-            Object transfer = "??";
+            byte[] bytes = bufferPool.acquire();
             try {
-                if (offset != 0) { // Wrap the stream if needed
-                    output = new RangeOutputStream(output, offset, null);
-                }
-                byte[] bytes = new byte[BUFSIZ];
-                if (zip) {
-                    ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(output));
-                    if (!compress) {
-                        zos.setLevel(0); // Otherwise use default compression
+                if (cacheBuilder != null) {
+                    output = cacheBuilder.wrap(output);
+                }
+                if (ranges == null) {
+                    writeContent(output, 0, null, bytes);
+                } else if (boundary == null) {
+                    ByteRange range = ranges.get(0);
+                    writeContent(output, range.getFirst(), range.getLength(), bytes);
+                } else {
+                    for (ByteRange range : ranges) {
+                        output.write(getPartHeader(range));
+                        writeContent(output, range.getFirst(), range.getLength(), bytes);
                     }
+                    output.write(getClosingBoundary());
+                }
+                if (cacheBuilder != null) {
+                    cacheBuilder.commit();
+                    cacheBuilder = null;
+                }
+                output.close();
+                report(null);
+            } catch (IOException e) {
+                report(e);
+                throw e;
+            } finally {
+                bufferPool.release(bytes);
+                release();
+            }
+        }
 
-                    for (DfInfoImpl dfInfo : dfInfos) {
-                        logger.debug("Adding " + dfInfo + " to zip");
+        /**
+         * The body as a stream which only reads the data as they are needed.
+         * This is only possible for a single file or when the layout of the
+         * archive is known, and not while the zip is being captured for the
+         * cache.
+         */
+        @Override
+        public InputStream openContent() throws IOException {
+            if (cacheBuilder != null || zip && layout == null && cached == null) {
+                return null;
+            }
+            SegmentInputStream content = new SegmentInputStream();
+            if (ranges == null) {
+                addContent(content, 0, null);
+            } else if (boundary == null) {
+                ByteRange range = ranges.get(0);
+                addContent(content, range.getFirst(), range.getLength());
+            } else {
+                for (ByteRange range : ranges) {
+                    content.add(getPartHeader(range));
+                    addContent(content, range.getFirst(), range.getLength());
+                }
+                content.add(getClosingBoundary());
+            }
+            return content;
+        }
+
+        /**
+         * Add count bytes of the content, starting at offset, as segments to
+         * be read when they are reached. A null count means everything after
+         * the offset.
+         */
+        private void addContent(SegmentInputStream content, long offset, Long count) throws IOException {
+            if (cached != null) {
+                Path path = cached.getPath();
+                content.add(() -> {
+                    transfer = path;
+                    return openFile(path, offset);
+                }, count, false, path);
+            } else if (layout != null) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                layout.write(baos, offset, count, (dfInfo, position, length, out) -> {
+                    content.add(baos.toByteArray());
+                    baos.reset();
+                    content.add(() -> {
+                        logger.debug("Adding " + dfInfo + " to " + format);
                         transfer = dfInfo;
-                        DsInfo dsInfo = dsInfos.get(dfInfo.getDsId());
-                        String entryName = zipMapper.getFullEntryName(dsInfo, dfInfo);
-                        InputStream stream = null;
-                        try {
-                            zos.putNextEntry(new ZipEntry(entryName));
-                            stream = mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(), dfInfo.getModId());
-                            int length;
-                            while ((length = stream.read(bytes)) >= 0) {
-                                zos.write(bytes, 0, length);
-                            }
-                        } catch (ZipException e) {
-                            logger.debug("Skipped duplicate");
-                        }
-                        zos.closeEntry();
-                        if (stream != null) {
-                            stream.close();
-                        }
-                    }
-                    zos.close();
-                } else {
-                    DfInfoImpl dfInfo = dfInfos.iterator().next();
+                        return openChecked(layout, dfInfo, position, length, () -> openDatafile(dfInfo, position));
+                    }, length, position + length == dfInfo.getFileSize(), dfInfo);
+                });
+                content.add(baos.toByteArray());
+            } else {
+                DfInfoImpl dfInfo = dfInfos.iterator().next();
+                content.add(() -> {
                     transfer = dfInfo;
+                    Path path = getLocalPath(dfInfo);
+                    if (path != null) {
+                        return openFile(path, offset);
+                    }
                     InputStream stream = mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(),
                             dfInfo.getModId());
-                    int length;
-                    while ((length = stream.read(bytes)) >= 0) {
-                        output.write(bytes, 0, length);
-                    }
-                    output.close();
-                    stream.close();
-                }
+                    skip(stream, offset);
+                    return stream;
+                }, count, false, dfInfo);
+            }
+        }
+
+        @Override
+        public void done(IOException e) {
+            try {
+                report(e);
+            } finally {
+                release();
+            }
+        }
 
+        /**
+         * Send the message about the end of the download to the transmitter.
+         */
+        private void report(IOException e) {
+            if (e == null) {
                 if (transferId != null) {
                     ByteArrayOutputStream baos = new ByteArrayOutputStream();
                     try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
@@ -249,8 +660,7 @@ public class IdsBean {
                     }
                     transmitter.processMessage("getData", ip, baos.toString(), start);
                 }
-
-            } catch (IOException e) {
+            } else {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
                     gen.write("transferId", transferId);
@@ -260,18 +670,292 @@ public class IdsBean {
                 }
                 transmitter.processMessage("getData", ip, baos.toString(), start);
                 logger.error("Failed to stream " + transfer + " due to " + e.getMessage());
-                throw e;
-            } finally {
+            }
+        }
+
+        private void release() {
+            if (cacheBuilder != null) {
+                cacheBuilder.abort();
+            }
+            if (cached != null) {
+                cached.release();
+            }
+            if (chunks != null) {
+                chunks.close();
+            }
+            if (lock != null) {
                 lock.release();
             }
         }
 
-    }
+        /**
+         * Write count bytes of the content, starting at offset, without
+         * closing the output. A null count means everything after the offset.
+         */
+        private void writeContent(OutputStream output, long offset, Long count, byte[] bytes) throws IOException {
+            if (cached != null) {
+                transfer = cached.getPath();
+                transferFile(cached.getPath(), offset, count == null ? Long.MAX_VALUE : count, output);
+            } else if (layout != null) {
+                writeLayout(layout, output, offset, count, bytes);
+            } else if (zip && format == ArchiveFormat.TAR) {
+                if (offset != 0 || count != null) { // Wrap the stream if needed
+                    output = new RangeOutputStream(output, offset, count);
+                }
+                if (compress) {
+                    GZIPOutputStream gzos = new GZIPOutputStream(new BufferedOutputStream(output));
+                    writeTar(gzos, bytes);
+                    gzos.finish();
+                    gzos.flush();
+                } else {
+                    OutputStream bos = new BufferedOutputStream(output);
+                    writeTar(bos, bytes);
+                    bos.flush();
+                }
+            } else if (zip && compress && compressThreads > 1) {
+                if (offset != 0 || count != null) { // Wrap the stream if needed
+                    output = new RangeOutputStream(output, offset, count);
+                }
+                writeParallelZip(new BufferedOutputStream(output), bytes);
+            } else if (zip) {
+                if (offset != 0 || count != null) { // Wrap the stream if needed
+                    output = new RangeOutputStream(output, offset, count);
+                }
+                ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(output));
+                if (!compress) {
+                    zos.setLevel(0); // Otherwise use default compression
+                }
+
+                Set<String> names = new HashSet<>();
+                for (Set<DfInfoImpl> chunk = firstChunk(); chunk != null; chunk = nextChunk()) {
+                    try (ReadAhead readAhead = createReadAhead(chunk)) {
+                        for (DfInfoImpl dfInfo : chunk) {
+                            logger.debug("Adding " + dfInfo + " to zip");
+                            transfer = dfInfo;
+                            DsInfo dsInfo = dsInfos.get(dfInfo.getDsId());
+                            String entryName = zipMapper.getFullEntryName(dsInfo, dfInfo);
+                            if (!names.add(entryName)) {
+                                logger.debug("Skipped duplicate");
+                                if (readAhead != null) {
+                                    readAhead.next().close(); // Keep in step
+                                }
+                                continue;
+                            }
+                            try (InputStream stream = readAhead == null ? mainStorage.get(dfInfo.getDfLocation(),
+                                    dfInfo.getCreateId(), dfInfo.getModId()) : readAhead.next()) {
+                                ZipEntry entry = new ZipEntry(entryName);
+                                entry.setTime(zipTime);
+                                if (compress) {
+                                    writeEntry(zos, (size, crc, level) -> {
+                                        if (crc != null) {
+                                            entry.setMethod(ZipEntry.STORED);
+                                            entry.setSize(size);
+                                            entry.setCompressedSize(size);
+                                            entry.setCrc(crc);
+                                        } else {
+                                            zos.setLevel(level);
+                                        }
+                                        zos.putNextEntry(entry);
+                                    }, dfInfo, entryName, stream, bytes);
+                                } else {
+                                    zos.putNextEntry(entry);
+                                    int length;
+                                    while ((length = stream.read(bytes)) >= 0) {
+                                        zos.write(bytes, 0, length);
+                                    }
+                                }
+                            }
+                            zos.closeEntry();
+                        }
+                    }
+                }
+                zos.finish();
+                zos.flush();
+            } else {
+                DfInfoImpl dfInfo = dfInfos.iterator().next();
+                transfer = dfInfo;
+                long length = count == null ? Long.MAX_VALUE : count;
+                Path path = getLocalPath(dfInfo);
+                if (path != null) {
+                    transferFile(path, offset, length, output);
+                } else {
+                    try (InputStream stream = mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(),
+                            dfInfo.getModId())) {
+                        if (skip(stream, offset) == offset) {
+                            copy(stream, output, length, bytes);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write count bytes, starting at offset, of an archive whose layout
+         * has been computed from the sizes, and for a zip the CRCs, recorded
+         * in ICAT so that the range can be reached without generating what
+         * comes before.
+         */
+        private void writeLayout(ArchiveLayout layout, OutputStream output, long offset, Long count, byte[] bytes)
+                throws IOException {
+            OutputStream bos = new BufferedOutputStream(output);
+            try (ReadAhead readAhead = createReadAhead(layout.getDfInfos(offset, count))) {
+                layout.write(bos, offset, count, (dfInfo, position, length, out) -> {
+                    logger.debug("Adding " + dfInfo + " to " + format);
+                    transfer = dfInfo;
+                    writeChecked(layout, dfInfo, position, length, out, (df, p, l, target) -> {
+                        if (readAhead == null) {
+                            writeDatafile(df, p, l, target, bytes);
+                        } else {
+                            try (InputStream stream = readAhead.next()) {
+                                writeDatafile(df, stream, p, l, target, bytes);
+                            }
+                        }
+                    });
+                });
+            }
+            bos.flush();
+        }
 
-    private static final int BUFSIZ = 2048;
+        /**
+         * Write the whole of a tar file. The size of each entry must be known
+         * before its header is written so any datafile whose size is not
+         * recorded in ICAT is first copied to a temporary file.
+         */
+        private void writeTar(OutputStream output, byte[] bytes) throws IOException {
+            if (chunks == null) {
+                TarLayout tarLayout = TarLayout.create(dsInfos, dfInfos, zipMapper, zipTime);
+                if (tarLayout != null) {
+                    writeLayout(tarLayout, output, 0, null, bytes);
+                    return;
+                }
+            }
+            Set<String> names = new HashSet<>();
+            for (Set<DfInfoImpl> chunk = firstChunk(); chunk != null; chunk = nextChunk()) {
+                writeTarEntries(output, chunk, names, bytes);
+            }
+            output.write(TarLayout.end());
+        }
+
+        /**
+         * Write the entries of the tar for some of the datafiles, skipping any
+         * whose name is already in names.
+         */
+        private void writeTarEntries(OutputStream output, Set<DfInfoImpl> dfInfos, Set<String> names, byte[] bytes)
+                throws IOException {
+            try (ReadAhead readAhead = createReadAhead(dfInfos)) {
+                for (DfInfoImpl dfInfo : dfInfos) {
+                    logger.debug("Adding " + dfInfo + " to tar");
+                    transfer = dfInfo;
+                    String entryName = zipMapper.getFullEntryName(dsInfos.get(dfInfo.getDsId()), dfInfo);
+                    if (!names.add(entryName)) {
+                        logger.debug("Skipped duplicate");
+                        if (readAhead != null) {
+                            readAhead.next().close(); // Keep in step
+                        }
+                        continue;
+                    }
+                    try (InputStream stream = readAhead == null ? mainStorage.get(dfInfo.getDfLocation(),
+                            dfInfo.getCreateId(), dfInfo.getModId()) : readAhead.next()) {
+                        Long size = dfInfo.getFileSize();
+                        if (size != null) {
+                            output.write(TarLayout.header(entryName, size, zipTime));
+                            writeDatafile(dfInfo, stream, 0, size, output, bytes);
+                        } else {
+                            Path tmp = Files.createTempFile(propertyHandler.getCacheDir(), "tmp.", ".tar");
+                            try {
+                                try (OutputStream out = Files.newOutputStream(tmp)) {
+                                    size = copy(stream, out, Long.MAX_VALUE, bytes);
+                                }
+                                output.write(TarLayout.header(entryName, size, zipTime));
+                                transferFile(tmp, 0, size, output);
+                            } finally {
+                                Files.deleteIfExists(tmp);
+                            }
+                        }
+                        output.write(new byte[TarLayout.padding(size)]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write a compressed zip with the deflation of each entry spread over
+         * up to compressThreads threads of the shared deflatePool.
+         */
+        private void writeParallelZip(OutputStream output, byte[] bytes) throws IOException {
+            ParallelZipOutputStream zos = new ParallelZipOutputStream(output, deflatePool, compressThreads,
+                    Deflater.DEFAULT_COMPRESSION, zipTime);
+            try {
+                Set<String> names = new HashSet<>();
+                for (Set<DfInfoImpl> chunk = firstChunk(); chunk != null; chunk = nextChunk()) {
+                    try (ReadAhead readAhead = createReadAhead(chunk)) {
+                        for (DfInfoImpl dfInfo : chunk) {
+                            logger.debug("Adding " + dfInfo + " to zip");
+                            transfer = dfInfo;
+                            DsInfo dsInfo = dsInfos.get(dfInfo.getDsId());
+                            String entryName = zipMapper.getFullEntryName(dsInfo, dfInfo);
+                            if (!names.add(entryName)) {
+                                logger.debug("Skipped duplicate");
+                                if (readAhead != null) {
+                                    readAhead.next().close(); // Keep in step
+                                }
+                                continue;
+                            }
+                            try (InputStream stream = readAhead == null ? mainStorage.get(dfInfo.getDfLocation(),
+                                    dfInfo.getCreateId(), dfInfo.getModId()) : readAhead.next()) {
+                                writeEntry(zos, (size, crc, level) -> {
+                                    if (crc != null) {
+                                        zos.putNextStoredEntry(entryName, size, crc);
+                                    } else {
+                                        zos.setLevel(level);
+                                        zos.putNextEntry(entryName);
+                                    }
+                                }, dfInfo, entryName, stream, bytes);
+                            }
+                            zos.closeEntry();
+                        }
+                    }
+                }
+                zos.finish();
+                zos.flush();
+            } finally {
+                zos.abandon();
+            }
+        }
+
+        /**
+         * Start and write an entry of a compressed zip, deflating it only if
+         * the compressionPolicy expects it to shrink. An entry which is not
+         * to be deflated is STORED if its size and CRC are known from ICAT,
+         * as they must be written before its data, and the checksums are
+         * known to be CRC32 values. It is otherwise deflated at level 0.
+         *
+         * @param starter starts the entry in the zos
+         */
+        private void writeEntry(OutputStream zos, EntryStarter starter, DfInfoImpl dfInfo, String entryName,
+                                InputStream stream, byte[] bytes) throws IOException {
+            int length = compressionPolicy.sample(entryName, stream, bytes);
+            boolean deflate = compressionPolicy.shouldDeflate(entryName, bytes, length);
+            Long size = dfInfo.getFileSize();
+            Long crc = deflate || !checksumsAreCrc32 || size == null || size < 0 ? null
+                    : ZipLayout.parseCrc(dfInfo.getChecksum());
+            starter.start(size, crc, CompressionPolicy.level(deflate));
+            long written = length;
+            zos.write(bytes, 0, length);
+            while ((length = stream.read(bytes)) >= 0) {
+                zos.write(bytes, 0, length);
+                written += length;
+            }
+            compressionPolicy.count(crc == null, written);
+        }
+
+    }
 
     private static Boolean inited = false;
 
+    /* The longest that waitPrepared may wait */
+    static final int MAX_WAIT_SECONDS = 600;
+
     private static String key;
 
     private final static Logger logger = LoggerFactory.getLogger(IdsBean.class);
@@ -293,6 +977,67 @@ public class IdsBean {
         paddedPrefix += "*/window.name='";
     }
 
+    /**
+     * Copy up to count bytes of a file, starting at position, to the output
+     * stream and return the number of bytes copied. The start position is
+     * reached by a seek rather than by reading and discarding the leading
+     * bytes and the data is then copied with FileChannel.transferTo to a
+     * channel wrapping the output.
+     */
+    static long transferFile(Path path, long position, long count, OutputStream output) throws IOException {
+        long total = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(output);
+            long size = channel.size();
+            while (total < count && position < size) {
+                long n = channel.transferTo(position, Math.min(count - total, size - position), target);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Skip up to n bytes of the stream and return the number skipped which is
+     * only less than n if the end of the stream was reached. For streams from
+     * files the skip is a seek.
+     */
+    static long skip(InputStream stream, long n) throws IOException {
+        long total = 0;
+        while (total < n) {
+            long skipped = stream.skip(n - total);
+            if (skipped <= 0) {
+                if (stream.read() < 0) {
+                    break;
+                }
+                skipped = 1;
+            }
+            total += skipped;
+        }
+        return total;
+    }
+
+    /**
+     * Copy up to count bytes from the input to the output stream and return
+     * the number copied.
+     */
+    static long copy(InputStream stream, OutputStream output, long count, byte[] bytes) throws IOException {
+        long total = 0;
+        while (total < count) {
+            int n = stream.read(bytes, 0, (int) Math.min(bytes.length, count - total));
+            if (n < 0) {
+                break;
+            }
+            output.write(bytes, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
     static void cleanDatasetCache(Path datasetDir) {
         for (File dsFile : datasetDir.toFile().listFiles()) {
             Path path = dsFile.toPath();
@@ -329,6 +1074,20 @@ public class IdsBean {
         }
     }
 
+    /**
+     * The name of an archive to include in the headers, adding the extension
+     * to the requested name if it does not already have it.
+     */
+    private static String getArchiveName(String outname, String extension) {
+        if (outname == null) {
+            return new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + "." + extension;
+        }
+        if (outname.endsWith("." + extension) || outname.equals(extension)) {
+            return outname;
+        }
+        return outname + "." + extension;
+    }
+
     public static String getLocation(long dfid, String location)
             throws InsufficientPrivilegesException, InternalException {
         if (location == null) {
@@ -359,77 +1118,103 @@ public class IdsBean {
         }
     }
 
-    static void pack(OutputStream stream, boolean zip, boolean compress, Map<Long, DsInfo> dsInfos,
-                     Set<DfInfoImpl> dfInfos, Set<Long> emptyDatasets) {
-        JsonGenerator gen = Json.createGenerator(stream);
-        gen.writeStartObject();
-        gen.write("zip", zip);
-        gen.write("compress", compress);
-
-        gen.writeStartArray("dsInfo");
-        for (DsInfo dsInfo : dsInfos.values()) {
-            logger.debug("dsInfo " + dsInfo);
-            gen.writeStartObject().write("dsId", dsInfo.getDsId())
+    /**
+     * Write a prepared file in the binary format of {@link PreparedFile}.
+     *
+     * @param compress    whether the download of the selection is to be
+     *                    compressed
+     * @param deflateFile whether to deflate the prepared file itself
+     */
+    static void pack(OutputStream stream, boolean zip, ArchiveFormat format, boolean compress,
+                     Map<Long, DsInfo> dsInfos, Set<DfInfoImpl> dfInfos, Set<Long> emptyDatasets, boolean deflateFile)
+            throws IOException {
+        PreparedFile.write(stream, zip, format, compress, dsInfos, dfInfos, emptyDatasets, deflateFile);
+    }
 
-                    .write("dsName", dsInfo.getDsName()).write("facilityId", dsInfo.getFacilityId())
-                    .write("facilityName", dsInfo.getFacilityName()).write("invId", dsInfo.getInvId())
-                    .write("invName", dsInfo.getInvName()).write("visitId", dsInfo.getVisitId());
-            if (dsInfo.getDsLocation() != null) {
-                gen.write("dsLocation", dsInfo.getDsLocation());
-            } else {
-                gen.writeNull("dsLocation");
-            }
-            gen.writeEnd();
+    /**
+     * Return the selection prepared for the preparedId, taking it from the
+     * preparedCache if possible. The Prepared returned may be shared so must
+     * not be modified.
+     */
+    private Prepared getPrepared(String preparedId) throws NotFoundException, InternalException {
+        Prepared prepared = preparedCache.get(preparedId);
+        if (prepared != null) {
+            return prepared;
         }
-        gen.writeEnd();
-
-        gen.writeStartArray("dfInfo");
-        for (DfInfoImpl dfInfo : dfInfos) {
-            DsInfo dsInfo = dsInfos.get(dfInfo.getDsId());
-            gen.writeStartObject().write("dsId", dsInfo.getDsId()).write("dfId", dfInfo.getDfId())
-                    .write("dfName", dfInfo.getDfName()).write("createId", dfInfo.getCreateId())
-                    .write("modId", dfInfo.getModId());
-            if (dfInfo.getDfLocation() != null) {
-                gen.write("dfLocation", dfInfo.getDfLocation());
-            } else {
-                gen.writeNull("dfLocation");
-            }
-            gen.writeEnd();
-
+        Path path = preparedStore.resolve(preparedId);
+        try (InputStream stream = Files.newInputStream(path)) {
+            prepared = unpack(stream);
+        } catch (NoSuchFileException e) {
+            throw new NotFoundException("The preparedId " + preparedId + " is not known");
+        } catch (IOException e) {
+            throw new InternalException(e.getClass() + " " + e.getMessage());
         }
-        gen.writeEnd();
-
-        gen.writeStartArray("emptyDs");
-        for (Long emptyDs : emptyDatasets) {
-            gen.write(emptyDs);
+        preparedCache.put(preparedId, prepared);
+        /* The Tidier may have deleted the file after it was read */
+        if (!Files.exists(path)) {
+            preparedCache.invalidate(Collections.singleton(preparedId));
         }
-        gen.writeEnd();
-
-        gen.writeEnd().close();
+        return prepared;
+    }
 
+    /**
+     * Return the total size of the datafiles recorded in the prepared file
+     * when it was written, or null if it was written by an earlier version.
+     * Only the start of the file is read if it is not in the preparedCache.
+     */
+    private Long getRecordedSize(String preparedId) throws NotFoundException, InternalException {
+        if (preparedCache.contains(preparedId)) {
+            return getPrepared(preparedId).size;
+        }
+        try (InputStream stream = PreparedFile.markable(Files.newInputStream(preparedStore.resolve(preparedId)))) {
+            if (!PreparedFile.isBinary(stream)) {
+                return null;
+            }
+            try (PreparedFile.Cursor cursor = PreparedFile.open(stream)) {
+                return cursor.getSize();
+            }
+        } catch (NoSuchFileException e) {
+            throw new NotFoundException("The preparedId " + preparedId + " is not known");
+        } catch (IOException e) {
+            throw new InternalException(e.getClass() + " " + e.getMessage());
+        }
     }
 
+    /**
+     * Read a prepared file in either the binary format or the json format
+     * written by earlier versions.
+     */
     static Prepared unpack(InputStream stream) throws InternalException {
+        try {
+            stream = PreparedFile.markable(stream);
+            if (PreparedFile.isBinary(stream)) {
+                return PreparedFile.read(stream);
+            }
+        } catch (IOException e) {
+            throw new InternalException(e.getClass() + " " + e.getMessage());
+        }
         Prepared prepared = new Prepared();
         JsonObject pd;
         try (JsonReader jsonReader = Json.createReader(stream)) {
             pd = jsonReader.readObject();
         }
         prepared.zip = pd.getBoolean("zip");
+        prepared.format = ArchiveFormat.valueOf(pd.getString("format", ArchiveFormat.ZIP.name()));
         prepared.compress = pd.getBoolean("compress");
         SortedMap<Long, DsInfo> dsInfos = new TreeMap<>();
-        SortedSet<DfInfoImpl> dfInfos = new TreeSet<>();
+        DfInfoSet.Builder dfInfos = new DfInfoSet.Builder();
         Set<Long> emptyDatasets = new HashSet<>();
 
         for (JsonValue itemV : pd.getJsonArray("dfInfo")) {
             JsonObject item = (JsonObject) itemV;
             String dfLocation = item.isNull("dfLocation") ? null : item.getString("dfLocation");
+            Long fileSize = item.containsKey("fileSize") ? item.getJsonNumber("fileSize").longValueExact() : null;
             dfInfos.add(new DfInfoImpl(item.getJsonNumber("dfId").longValueExact(), item.getString("dfName"),
                     dfLocation, item.getString("createId"), item.getString("modId"),
-                    item.getJsonNumber("dsId").longValueExact()));
+                    item.getJsonNumber("dsId").longValueExact(), fileSize, item.getString("checksum", null)));
 
         }
-        prepared.dfInfos = dfInfos;
+        prepared.dfInfos = dfInfos.build();
 
         for (JsonValue itemV : pd.getJsonArray("dsInfo")) {
             JsonObject item = (JsonObject) itemV;
@@ -475,6 +1260,18 @@ public class IdsBean {
     @EJB
     private LockManager lockManager;
 
+    @EJB
+    private ZipCache zipCache;
+
+    @EJB
+    private PreparedCache preparedCache;
+
+    @EJB
+    private PreparedStore preparedStore;
+
+    @EJB
+    private PreparedDedup preparedDedup;
+
     private ICAT icat;
 
     private Path linkDir;
@@ -492,6 +1289,8 @@ public class IdsBean {
     @EJB
     IcatReader reader;
 
+    private SessionCache sessionCache;
+
     private boolean readOnly;
 
     private Set<String> rootUserNames;
@@ -506,6 +1305,28 @@ public class IdsBean {
 
     private Set<CallType> logSet;
 
+    private int readAheadCount;
+
+    private long readAheadMaxBytes;
+
+    private int compressThreads;
+
+    private ExecutorService deflatePool;
+
+    private boolean checksumsAreCrc32;
+
+    private int maxRanges;
+
+    private boolean compressPreparedFiles;
+
+    private int preparedChunkSize;
+
+    private boolean streamSelections;
+
+    private BufferPool bufferPool;
+
+    private CompressionPolicy compressionPolicy;
+
     class PreparedStatus {
         public ReentrantLock lock = new ReentrantLock();
         public DfInfoImpl fromDfElement;
@@ -575,7 +1396,7 @@ public class IdsBean {
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                    gen.write("userName", icat.getUserName(sessionId));
+                    gen.write("userName", getUserName(sessionId));
                     addIds(gen, investigationIds, datasetIds, datafileIds);
                     gen.writeEnd();
                 }
@@ -621,6 +1442,147 @@ public class IdsBean {
 
     }
 
+    /**
+     * Write length bytes of the datafile, starting at position, to the output.
+     * This is used when the layout of a zip has been computed from the file
+     * sizes recorded in ICAT so the datafile must have exactly that size.
+     */
+    private void writeDatafile(DfInfoImpl dfInfo, long position, long length, OutputStream output, byte[] bytes)
+            throws IOException {
+        long expected = dfInfo.getFileSize();
+        Path path = getLocalPath(dfInfo);
+        if (path != null) {
+            if (Files.size(path) != expected) {
+                throw new IOException("Size of " + dfInfo + " does not match the " + expected
+                        + " bytes recorded in ICAT");
+            }
+            if (transferFile(path, position, length, output) != length) {
+                throw new IOException("Failed to read " + length + " bytes from " + dfInfo);
+            }
+        } else {
+            try (InputStream stream = mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(),
+                    dfInfo.getModId())) {
+                writeDatafile(dfInfo, stream, position, length, output, bytes);
+            }
+        }
+    }
+
+    /**
+     * As above but reading from a stream which has already been opened.
+     */
+    private void writeDatafile(DfInfoImpl dfInfo, InputStream stream, long position, long length,
+                               OutputStream output, byte[] bytes) throws IOException {
+        long expected = dfInfo.getFileSize();
+        if (skip(stream, position) != position || copy(stream, output, length, bytes) != length
+                || position + length == expected && stream.read() >= 0) {
+            throw new IOException("Size of " + dfInfo + " does not match the " + expected
+                    + " bytes recorded in ICAT");
+        }
+    }
+
+    /**
+     * Open a datafile positioned to read from the given position, checking
+     * the size of a local file against that recorded in ICAT.
+     */
+    private InputStream openDatafile(DfInfoImpl dfInfo, long position) throws IOException {
+        Path path = getLocalPath(dfInfo);
+        if (path != null) {
+            long expected = dfInfo.getFileSize();
+            if (Files.size(path) != expected) {
+                throw new IOException("Size of " + dfInfo + " does not match the " + expected
+                        + " bytes recorded in ICAT");
+            }
+            return openFile(path, position);
+        }
+        InputStream stream = mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(), dfInfo.getModId());
+        if (skip(stream, position) != position) {
+            stream.close();
+            throw new IOException("Size of " + dfInfo + " does not match the " + dfInfo.getFileSize()
+                    + " bytes recorded in ICAT");
+        }
+        return stream;
+    }
+
+    /**
+     * Write length bytes of a datafile, starting at position, as part of an
+     * archive with the given layout. The CRC of a STORED zip entry is taken
+     * from ICAT so it is checked whenever the whole of the datafile is
+     * written.
+     */
+    static void writeChecked(ArchiveLayout layout, DfInfoImpl dfInfo, long position, long length,
+                             OutputStream output, ArchiveLayout.DataSource source) throws IOException {
+        Long crc = layout.getCrc(dfInfo, position, length);
+        if (crc == null) {
+            source.write(dfInfo, position, length, output);
+            return;
+        }
+        CheckedOutputStream checked = new CheckedOutputStream(output, new CRC32());
+        source.write(dfInfo, position, length, checked);
+        if (checked.getChecksum().getValue() != crc) {
+            throw new IOException(crcMismatch(dfInfo));
+        }
+    }
+
+    /**
+     * As above but for an archive sent asynchronously, so the stream from
+     * which length bytes of the datafile will be read is returned and it
+     * fails at its end if the CRC does not match.
+     */
+    static InputStream openChecked(ArchiveLayout layout, DfInfoImpl dfInfo, long position, long length,
+                                   SegmentInputStream.Opener opener) throws IOException {
+        Long crc = layout.getCrc(dfInfo, position, length);
+        InputStream stream = opener.open();
+        return crc == null ? stream : new CrcCheckedInputStream(stream, crc, crcMismatch(dfInfo));
+    }
+
+    private static String crcMismatch(DfInfoImpl dfInfo) {
+        return "CRC32 of " + dfInfo + " does not match the checksum " + dfInfo.getChecksum() + " recorded in ICAT";
+    }
+
+    /**
+     * Open a file positioned to read from the given position.
+     */
+    static InputStream openFile(Path path, long position) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(path);
+        try {
+            channel.position(position);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return Channels.newInputStream(channel);
+    }
+
+    /**
+     * Return a ReadAhead for the datafiles to be written, in order, or null if
+     * reading ahead is not enabled or would not help.
+     */
+    private ReadAhead createReadAhead(Collection<DfInfoImpl> dfInfos) {
+        if (readAheadCount == 0 || dfInfos.size() < 2) {
+            return null;
+        }
+        return new ReadAhead(dfInfos, threadPool,
+                dfInfo -> mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(), dfInfo.getModId()),
+                readAheadCount, readAheadMaxBytes);
+    }
+
+    /**
+     * Return the path of the datafile if the main storage plugin exposes one
+     * as a regular file, otherwise null so that the caller falls back to the
+     * stream provided by the plugin.
+     */
+    private Path getLocalPath(DfInfo dfInfo) {
+        try {
+            Path path = mainStorage.getPath(dfInfo.getDfLocation(), dfInfo.getCreateId(), dfInfo.getModId());
+            if (path != null && Files.isRegularFile(path) && Files.isReadable(path)) {
+                return path;
+            }
+        } catch (IOException e) {
+            logger.debug("No path available for " + dfInfo + " " + e.getMessage());
+        }
+        return null;
+    }
+
     private void checkOnline(Collection<DsInfo> dsInfos, Set<Long> emptyDatasets,
                              Set<DfInfoImpl> dfInfos)
             throws InternalException, DataNotOnlineException {
@@ -724,6 +1686,8 @@ public class IdsBean {
                 }
             }
 
+            zipCache.invalidate(dataSelection.getDsInfo().keySet());
+
             if (storageUnit == StorageUnit.DATASET) {
                 for (DsInfo dsInfo : dsInfos) {
                     fsm.queue(dsInfo, DeferredOp.WRITE);
@@ -742,7 +1706,7 @@ public class IdsBean {
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                    gen.write("userName", icat.getUserName(sessionId));
+                    gen.write("userName", getUserName(sessionId));
                     addIds(gen, investigationIds, datasetIds, datafileIds);
                     gen.writeEnd();
                 }
@@ -754,28 +1718,27 @@ public class IdsBean {
         }
     }
 
-    public Response getData(String preparedId, String outname, final long offset, String ip) throws BadRequestException,
-            NotFoundException, InternalException, InsufficientPrivilegesException, DataNotOnlineException {
+    public Response getData(String preparedId, String outname, List<ByteRange> ranges, String ip)
+            throws BadRequestException, NotFoundException, InternalException, InsufficientPrivilegesException,
+            DataNotOnlineException, RangeNotSatisfiableException {
 
         long time = System.currentTimeMillis();
 
         // Log and validate
         logger.info("New webservice request: getData preparedId = '" + preparedId + "' outname = '" + outname
-                + "' offset = " + offset);
+                + "' ranges = " + ranges);
 
         validateUUID("preparedId", preparedId);
 
         // Do it
-        Prepared prepared;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            prepared = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
+        PreparedFile.Cursor cursor = openLargePrepared(preparedId);
+        if (cursor != null) {
+            return getDataInChunks(preparedId, cursor, outname, ranges, ip, time);
         }
+        Prepared prepared = getPrepared(preparedId);
 
         final boolean zip = prepared.zip;
+        final ArchiveFormat format = prepared.format;
         final boolean compress = prepared.compress;
         final Set<DfInfoImpl> dfInfos = prepared.dfInfos;
         final Map<Long, DsInfo> dsInfos = prepared.dsInfos;
@@ -790,25 +1753,20 @@ public class IdsBean {
             }
             checkDatafilesPresent(dfInfos);
 
+            /*
+             * Use the time the data were prepared for the zip entries so that
+             * a resumed download sees the same bytes
+             */
+            long zipTime = Files.getLastModifiedTime(preparedStore.resolve(preparedId)).toMillis();
+
             /* Construct the name to include in the headers */
             String name;
-            if (outname == null) {
-                if (zip) {
-                    name = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + ".zip";
-                } else {
-                    name = dfInfos.iterator().next().getDfName();
-                }
+            if (zip) {
+                name = getArchiveName(outname, format.getExtension(compress));
+            } else if (outname == null) {
+                name = dfInfos.iterator().next().getDfName();
             } else {
-                if (zip) {
-                    String ext = outname.substring(outname.lastIndexOf(".") + 1, outname.length());
-                    if ("zip".equals(ext)) {
-                        name = outname;
-                    } else {
-                        name = outname + ".zip";
-                    }
-                } else {
-                    name = outname;
-                }
+                name = outname;
             }
 
             Long transferId = null;
@@ -823,10 +1781,19 @@ public class IdsBean {
                 transmitter.processMessage("getDataStart", ip, baos.toString(), time);
             }
 
-            return Response.status(offset == 0 ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_PARTIAL)
-                    .entity(new SO(dsInfos, dfInfos, offset, zip, compress, lock, transferId, ip, time))
-                    .header("Content-Disposition", "attachment; filename=\"" + name + "\"").header("Accept-Ranges", "bytes")
-                    .build();
+            OptionalLong length = OptionalLong.empty();
+            if (!zip) {
+                Long fileSize = dfInfos.iterator().next().getFileSize();
+                if (fileSize != null) {
+                    length = OptionalLong.of(fileSize);
+                }
+            }
+
+            SO so = new SO(dsInfos, dfInfos, zip, format, compress, lock, transferId, ip, time, zipTime);
+            if (zip && zipCache.isEnabled()) {
+                so.useCache(preparedId);
+            }
+            return so.buildResponse(name, length, ranges);
         } catch (AlreadyLockedException e) {
             logger.debug("Could not acquire lock, getData failed");
             throw new DataNotOnlineException("Data is busy");
@@ -842,10 +1809,98 @@ public class IdsBean {
         }
     }
 
+    /**
+     * Open the prepared file to be read a chunk at a time if chunking is
+     * enabled and it is in the binary format with more datafiles than fit in
+     * one chunk. Otherwise, including when it is already in the
+     * preparedCache, return null.
+     */
+    private PreparedFile.Cursor openLargePrepared(String preparedId) throws NotFoundException, InternalException {
+        if (preparedChunkSize == 0 || preparedCache.contains(preparedId)) {
+            return null;
+        }
+        InputStream stream = null;
+        try {
+            stream = PreparedFile.markable(Files.newInputStream(preparedStore.resolve(preparedId)));
+            if (PreparedFile.isBinary(stream)) {
+                PreparedFile.Cursor cursor = PreparedFile.open(stream);
+                stream = null;
+                if (cursor.isZip() && cursor.getDfCount() > preparedChunkSize) {
+                    return cursor;
+                }
+                cursor.close();
+            }
+            return null;
+        } catch (NoSuchFileException e) {
+            throw new NotFoundException("The preparedId " + preparedId + " is not known");
+        } catch (IOException e) {
+            throw new InternalException(e.getClass() + " " + e.getMessage());
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to close prepared file " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream an archive of a large prepared selection as its datafiles are
+     * read from the prepared file. Only the first chunk is locked and checked
+     * before the response is returned; a problem with a later chunk fails the
+     * stream. As the length is not known in advance the archive is not
+     * cached and ranges are not served.
+     */
+    private Response getDataInChunks(String preparedId, PreparedFile.Cursor cursor, String outname,
+                                     List<ByteRange> ranges, String ip, long time)
+            throws NotFoundException, InsufficientPrivilegesException, InternalException, DataNotOnlineException,
+            RangeNotSatisfiableException {
+        Chunks chunks = new Chunks(new CursorSource(cursor, preparedChunkSize));
+        try {
+            chunks.check();
+
+            long zipTime = Files.getLastModifiedTime(preparedStore.resolve(preparedId)).toMillis();
+            String name = getArchiveName(outname, cursor.getFormat().getExtension(cursor.isCompress()));
+
+            Long transferId = null;
+            if (logSet.contains(CallType.READ)) {
+                transferId = atomicLong.getAndIncrement();
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
+                    gen.write("transferId", transferId);
+                    gen.write("preparedId", preparedId);
+                    gen.writeEnd();
+                }
+                transmitter.processMessage("getDataStart", ip, baos.toString(), time);
+            }
+
+            logger.debug("Streaming " + cursor.getDfCount() + " datafiles of " + preparedId + " in chunks of "
+                    + preparedChunkSize);
+            SO so = new SO(cursor.getDsInfos(), null, true, cursor.getFormat(), cursor.isCompress(), null,
+                    transferId, ip, time, zipTime);
+            so.useChunks(chunks);
+            return so.buildResponse(name, OptionalLong.empty(), ranges);
+        } catch (RangeNotSatisfiableException | RuntimeException e) {
+            chunks.close();
+            throw e;
+        } catch (IOException e) {
+            chunks.close();
+            logger.error("I/O error " + e.getMessage());
+            throw new InternalException(e.getClass() + " " + e.getMessage());
+        } catch (NotFoundException | InsufficientPrivilegesException | InternalException
+                | DataNotOnlineException e) {
+            chunks.close();
+            throw e;
+        }
+    }
+
     public Response getData(String sessionId, String investigationIds, String datasetIds, String datafileIds,
-                            final boolean compress, boolean zip, String outname, final long offset, String ip)
+                            final boolean compress, boolean zip, ArchiveFormat format, String outname,
+                            List<ByteRange> ranges, String ip)
             throws BadRequestException, InternalException, InsufficientPrivilegesException, NotFoundException,
-            DataNotOnlineException {
+            DataNotOnlineException, RangeNotSatisfiableException {
 
         long start = System.currentTimeMillis();
 
@@ -855,6 +1910,11 @@ public class IdsBean {
 
         validateUUID("sessionId", sessionId);
 
+        if (streamSelections && (investigationIds != null || datasetIds != null)) {
+            return getDataIncrementally(sessionId, investigationIds, datasetIds, datafileIds, compress, format,
+                    outname, ranges, ip, start);
+        }
+
         final DataSelection dataSelection = new DataSelection(propertyHandler, reader, sessionId,
                 investigationIds, datasetIds, datafileIds, Returns.DATASETS_AND_DATAFILES);
 
@@ -867,33 +1927,87 @@ public class IdsBean {
         try {
             lock = lockManager.lock(dsInfos.values(), LockType.SHARED);
 
-            if (twoLevel) {
-                checkOnline(dsInfos.values(), dataSelection.getEmptyDatasets(), dfInfos);
+            if (twoLevel) {
+                checkOnline(dsInfos.values(), dataSelection.getEmptyDatasets(), dfInfos);
+            }
+            checkDatafilesPresent(dfInfos);
+
+            final boolean finalZip = zip ? true : dataSelection.mustZip();
+
+            /* Construct the name to include in the headers */
+            String name;
+            if (finalZip) {
+                name = getArchiveName(outname, format.getExtension(compress));
+            } else if (outname == null) {
+                name = dataSelection.getDfInfo().iterator().next().getDfName();
+            } else {
+                name = outname;
+            }
+
+            Long transferId = null;
+            if (logSet.contains(CallType.READ)) {
+                try {
+                    transferId = atomicLong.getAndIncrement();
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
+                        gen.write("transferId", transferId);
+                        gen.write("userName", getUserName(sessionId));
+                        addIds(gen, investigationIds, datasetIds, datafileIds);
+                        gen.writeEnd();
+                    }
+                    transmitter.processMessage("getDataStart", ip, baos.toString(), start);
+                } catch (IcatException_Exception e) {
+                    logger.error("Failed to prepare jms message " + e.getClass() + " " + e.getMessage());
+                }
+            }
+
+            return new SO(dataSelection.getDsInfo(), dataSelection.getDfInfo(), finalZip, format, compress, lock,
+                    transferId,
+                    ip, start, start).buildResponse(name, length, ranges);
+        } catch (AlreadyLockedException e) {
+            logger.debug("Could not acquire lock, getData failed");
+            throw new DataNotOnlineException("Data is busy");
+        } catch (IOException e) {
+            if (lock != null) {
+                lock.release();
+            }
+            logger.error("I/O error " + e.getMessage());
+            throw new InternalException(e.getClass() + " " + e.getMessage());
+        } catch (IdsException e) {
+            lock.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stream an archive of datasets and investigations as their datafiles are
+     * found rather than after the whole selection has been resolved. The
+     * datasets of the whole selection are checked to be online before the
+     * response is started. Each set of datafiles found is then locked and
+     * checked as it is reached. Only problems with the first set can be
+     * reported before the response has started; any found later, such as a
+     * dataset which the user may not read, abort the stream.
+     */
+    private Response getDataIncrementally(String sessionId, String investigationIds, String datasetIds,
+                                          String datafileIds, boolean compress, ArchiveFormat format, String outname,
+                                          List<ByteRange> ranges, String ip, long start)
+            throws BadRequestException, NotFoundException, InsufficientPrivilegesException, InternalException,
+            DataNotOnlineException, RangeNotSatisfiableException {
+        DataSelection dataSelection = new DataSelection(propertyHandler, reader, sessionId, investigationIds,
+                datasetIds, datafileIds, Returns.DATASETS_AND_DATAFILES, true);
+        Chunks chunks = new Chunks(new SelectionSource(dataSelection));
+        try {
+            /*
+             * Check the datasets of the whole selection, requesting the
+             * restoration of any which are not online, before the response is
+             * started rather than finding them as the archive is written
+             */
+            if (twoLevel && storageUnit == StorageUnit.DATASET) {
+                checkOnline(dataSelection.getDatasetsWithData(), Collections.emptySet(), Collections.emptySet());
             }
-            checkDatafilesPresent(dfInfos);
-
-            final boolean finalZip = zip ? true : dataSelection.mustZip();
+            chunks.check();
 
-            /* Construct the name to include in the headers */
-            String name;
-            if (outname == null) {
-                if (finalZip) {
-                    name = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + ".zip";
-                } else {
-                    name = dataSelection.getDfInfo().iterator().next().getDfName();
-                }
-            } else {
-                if (finalZip) {
-                    String ext = outname.substring(outname.lastIndexOf(".") + 1, outname.length());
-                    if ("zip".equals(ext)) {
-                        name = outname;
-                    } else {
-                        name = outname + ".zip";
-                    }
-                } else {
-                    name = outname;
-                }
-            }
+            String name = getArchiveName(outname, format.getExtension(compress));
 
             Long transferId = null;
             if (logSet.contains(CallType.READ)) {
@@ -902,7 +2016,7 @@ public class IdsBean {
                     ByteArrayOutputStream baos = new ByteArrayOutputStream();
                     try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
                         gen.write("transferId", transferId);
-                        gen.write("userName", icat.getUserName(sessionId));
+                        gen.write("userName", getUserName(sessionId));
                         addIds(gen, investigationIds, datasetIds, datafileIds);
                         gen.writeEnd();
                     }
@@ -912,25 +2026,19 @@ public class IdsBean {
                 }
             }
 
-            var response = Response.status(offset == 0 ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_PARTIAL)
-                    .entity(new SO(dataSelection.getDsInfo(), dataSelection.getDfInfo(), offset, finalZip, compress, lock,
-                            transferId, ip, start))
-                    .header("Content-Disposition", "attachment; filename=\"" + name + "\"").header("Accept-Ranges", "bytes");
-            length.stream()
-                    .map(l -> Math.max(0L, l - offset))
-                    .forEach(l -> response.header(CONTENT_LENGTH, l));
-            return response.build();
-        } catch (AlreadyLockedException e) {
-            logger.debug("Could not acquire lock, getData failed");
-            throw new DataNotOnlineException("Data is busy");
+            SO so = new SO(chunks.getDsInfos(), null, true, format, compress, null, transferId, ip, start, start);
+            so.useChunks(chunks);
+            return so.buildResponse(name, OptionalLong.empty(), ranges);
+        } catch (RangeNotSatisfiableException | RuntimeException e) {
+            chunks.close();
+            throw e;
         } catch (IOException e) {
-            if (lock != null) {
-                lock.release();
-            }
+            chunks.close();
             logger.error("I/O error " + e.getMessage());
             throw new InternalException(e.getClass() + " " + e.getMessage());
-        } catch (IdsException e) {
-            lock.release();
+        } catch (NotFoundException | InsufficientPrivilegesException | InternalException
+                | DataNotOnlineException e) {
+            chunks.close();
             throw e;
         }
     }
@@ -946,14 +2054,7 @@ public class IdsBean {
         validateUUID("preparedId", preparedId);
 
         // Do it
-        Prepared prepared;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            prepared = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
+        Prepared prepared = getPrepared(preparedId);
 
         final boolean zip = prepared.zip;
         final boolean compress = prepared.compress;
@@ -962,6 +2063,7 @@ public class IdsBean {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
             gen.write("zip", zip);
+            gen.write("format", prepared.format.toString());
             gen.write("compress", compress);
             gen.writeStartArray("ids");
             for (DfInfoImpl dfInfo : dfInfos) {
@@ -1015,7 +2117,7 @@ public class IdsBean {
             baos = new ByteArrayOutputStream();
             try {
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                    gen.write("userName", icat.getUserName(sessionId));
+                    gen.write("userName", getUserName(sessionId));
                     addIds(gen, investigationIds, datasetIds, datafileIds);
                     gen.writeEnd();
                 }
@@ -1080,6 +2182,7 @@ public class IdsBean {
 
         String location = getLocation(datafile.getId(), datafile.getLocation());
         DsInfo dsInfo = new DsInfoImpl(datafile.getDataset());
+        propertyHandler.getDsInfoCache().put(dsInfo);
 
         try (Lock lock = lockManager.lock(dsInfo, LockType.SHARED)) {
             if (storageUnit == StorageUnit.DATASET) {
@@ -1109,7 +2212,7 @@ public class IdsBean {
                 try {
                     ByteArrayOutputStream baos = new ByteArrayOutputStream();
                     try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                        gen.write("userName", icat.getUserName(sessionId));
+                        gen.write("userName", getUserName(sessionId));
                         gen.write("datafileId", datafileId);
                         gen.writeEnd();
                     }
@@ -1140,7 +2243,7 @@ public class IdsBean {
         logger.info("New webservice request: getServiceStatus");
 
         try {
-            String uname = icat.getUserName(sessionId);
+            String uname = getUserName(sessionId);
             if (!rootUserNames.contains(uname)) {
                 throw new InsufficientPrivilegesException(uname + " is not included in the ids rootUserNames set.");
             }
@@ -1156,7 +2259,7 @@ public class IdsBean {
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                    gen.write("userName", icat.getUserName(sessionId));
+                    gen.write("userName", getUserName(sessionId));
                     gen.writeEnd();
                 }
                 String body = baos.toString();
@@ -1179,43 +2282,11 @@ public class IdsBean {
         validateUUID("preparedId", preparedId);
 
         // Do it
-        Prepared prepared;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            prepared = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
-
-        final Set<DfInfoImpl> dfInfos = prepared.dfInfos;
-
-        // Note that the "fast computation for the simple case" (see the other getSize() implementation) is not
-        // available when calling getSize() with a preparedId.
-        logger.debug("Slow computation for normal case");
-        String sessionId;
-        try {
-            sessionId = reader.getSessionId();
-        } catch (IcatException_Exception e) {
-            throw new InternalException(e.getFaultInfo().getType() + " " + e.getMessage());
-        }
-        long size = 0;
-
-        StringBuilder sb = new StringBuilder();
-        int n = 0;
-        for (DfInfoImpl df : dfInfos) {
-            if (sb.length() != 0) {
-                sb.append(',');
-            }
-            sb.append(df.getDfId());
-            if (n++ == 500) {
-                size += getSizeFor(sessionId, sb);
-                sb = new StringBuilder();
-                n = 0;
-            }
-        }
-        if (n > 0) {
-            size += getSizeFor(sessionId, sb);
+        Long size = getRecordedSize(preparedId);
+        if (size != null) {
+            logger.debug("Size recorded when the data were prepared");
+        } else {
+            size = querySize(getPrepared(preparedId).dfInfos);
         }
 
         if (logSet.contains(CallType.INFO)) {
@@ -1297,7 +2368,7 @@ public class IdsBean {
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                    gen.write("userName", icat.getUserName(sessionId));
+                    gen.write("userName", getUserName(sessionId));
                     addIds(gen, investigationIds, datasetIds, datafileIds);
                     gen.writeEnd();
                 }
@@ -1336,6 +2407,41 @@ public class IdsBean {
         return size;
     }
 
+    /**
+     * Sum the sizes of the datafiles in ICAT, as needed for prepared files
+     * written before sizes were recorded in them.
+     */
+    private long querySize(Set<DfInfoImpl> dfInfos) throws InternalException {
+        // Note that the "fast computation for the simple case" (see the other getSize() implementation) is not
+        // available when calling getSize() with a preparedId.
+        logger.debug("Slow computation for normal case");
+        String sessionId;
+        try {
+            sessionId = reader.getSessionId();
+        } catch (IcatException_Exception e) {
+            throw new InternalException(e.getFaultInfo().getType() + " " + e.getMessage());
+        }
+        long size = 0;
+
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        for (DfInfoImpl df : dfInfos) {
+            if (sb.length() != 0) {
+                sb.append(',');
+            }
+            sb.append(df.getDfId());
+            if (n++ == 500) {
+                size += getSizeFor(sessionId, sb);
+                sb = new StringBuilder();
+                n = 0;
+            }
+        }
+        if (n > 0) {
+            size += getSizeFor(sessionId, sb);
+        }
+        return size;
+    }
+
     private long getSizeFor(String sessionId, StringBuilder sb) throws InternalException {
         String query = "SELECT SUM(df.fileSize) from Datafile df WHERE df.id IN (" + sb.toString() + ") AND df.location IS NOT NULL";
         try {
@@ -1369,14 +2475,7 @@ public class IdsBean {
         validateUUID("preparedId", preparedId);
 
         // Do it
-        Prepared prepared;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            prepared = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
+        Prepared prepared = getPrepared(preparedId);
 
         final Set<DfInfoImpl> dfInfos = prepared.dfInfos;
         final Map<Long, DsInfo> dsInfos = prepared.dsInfos;
@@ -1507,7 +2606,7 @@ public class IdsBean {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
                     if (sessionId != null) {
-                        gen.write("userName", icat.getUserName(sessionId));
+                        gen.write("userName", getUserName(sessionId));
                     }
                     addIds(gen, investigationIds, datasetIds, datafileIds);
                     gen.writeEnd();
@@ -1576,6 +2675,21 @@ public class IdsBean {
 
                 logSet = propertyHandler.getLogSet();
 
+                readAheadCount = propertyHandler.getReadAheadCount();
+                readAheadMaxBytes = propertyHandler.getReadAheadMaxBytes();
+
+                bufferPool = BufferPool.getInstance();
+                compressionPolicy = CompressionPolicy.getInstance();
+
+                compressThreads = propertyHandler.getCompressThreads();
+                maxRanges = propertyHandler.getMaxRanges();
+                checksumsAreCrc32 = propertyHandler.getChecksumsAreCrc32();
+                compressPreparedFiles = propertyHandler.getPreparedFileCompress();
+                preparedChunkSize = propertyHandler.getPreparedFileChunkSize();
+                streamSelections = propertyHandler.getStreamSelections();
+                sessionCache = propertyHandler.getSessionCache();
+                deflatePool = propertyHandler.getDeflatePool();
+
                 inited = true;
 
                 logger.info("created IdsBean");
@@ -1599,14 +2713,7 @@ public class IdsBean {
         // Do it
         boolean prepared = true;
 
-        Prepared preparedJson;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            preparedJson = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
+        Prepared preparedJson = getPrepared(preparedId);
 
         PreparedStatus status = preparedStatusMap.computeIfAbsent(preparedId, k -> new PreparedStatus());
 
@@ -1705,6 +2812,85 @@ public class IdsBean {
 
     }
 
+    /**
+     * Resume the asyncResponse with true once the prepared data are online,
+     * which may be at once, or with false if they are not by the end of the
+     * timeout. The members are checked once, requesting restoration of any
+     * which are not online or which may be going offline, such as one being
+     * archived, and then the FiniteStateMachine reports the end of each
+     * restoration so the storage is not checked again.
+     */
+    public void waitPrepared(String preparedId, int timeoutSeconds, AsyncResponse asyncResponse, String ip)
+            throws BadRequestException, NotFoundException, InternalException {
+
+        long start = System.currentTimeMillis();
+
+        logger.info(String.format("New webservice request: waitPrepared preparedId=%s timeout=%s", preparedId,
+                timeoutSeconds));
+
+        // Validate
+        validateUUID("preparedId", preparedId);
+        if (timeoutSeconds < 0 || timeoutSeconds > MAX_WAIT_SECONDS) {
+            throw new BadRequestException("The timeout must be between 0 and " + MAX_WAIT_SECONDS + " seconds");
+        }
+
+        // Do it
+        Prepared prepared = getPrepared(preparedId);
+
+        Map<Long, DsInfo> dsRestoring = new HashMap<>();
+        Map<Long, DfInfoImpl> dfRestoring = new HashMap<>();
+        PreparedWaiter waiter = new PreparedWaiter(asyncResponse,
+                id -> storageUnit == StorageUnit.DATASET ? fsm.getDsRestoring().contains(dsRestoring.get(id))
+                        : fsm.getDfRestoring().contains(dfRestoring.get(id)));
+        asyncResponse.setTimeoutHandler(ar -> {
+            if (waiter.timeout()) {
+                fsm.removeListener(waiter);
+            }
+        });
+        if (timeoutSeconds > 0) {
+            asyncResponse.setTimeout(timeoutSeconds, TimeUnit.SECONDS);
+        }
+        fsm.addListener(waiter);
+
+        try {
+            if (storageUnit == StorageUnit.DATASET) {
+                for (DsInfo dsInfo : prepared.dsInfos.values()) {
+                    fsm.checkFailure(dsInfo.getDsId());
+                    if (restoreToWait(dsInfo, prepared.emptyDatasets)) {
+                        dsRestoring.put(dsInfo.getDsId(), dsInfo);
+                    }
+                }
+            } else if (storageUnit == StorageUnit.DATAFILE) {
+                for (DfInfoImpl dfInfo : prepared.dfInfos) {
+                    fsm.checkFailure(dfInfo.getDfId());
+                    if (restoreToWait(dfInfo)) {
+                        dfRestoring.put(dfInfo.getDfId(), dfInfo);
+                    }
+                }
+            }
+        } catch (InternalException | RuntimeException e) {
+            fsm.removeListener(waiter);
+            throw e;
+        }
+        Set<Long> restoring = new HashSet<>(dsRestoring.keySet());
+        restoring.addAll(dfRestoring.keySet());
+        logger.debug("Waiting for {} restorations for preparedId {}", restoring.size(), preparedId);
+        /* A timeout of 0 only checks, as the suspension would never time out */
+        if (waiter.start(restoring) || timeoutSeconds == 0 && waiter.timeout()) {
+            fsm.removeListener(waiter);
+        }
+
+        if (logSet.contains(CallType.INFO)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
+                gen.write("preparedId", preparedId);
+                gen.writeEnd();
+            }
+            String body = baos.toString();
+            transmitter.processMessage("waitPrepared", ip, body, start);
+        }
+    }
+
     public boolean isReadOnly(String ip) {
         if (logSet.contains(CallType.INFO)) {
             transmitter.processMessage("isReadOnly", ip, "{}", System.currentTimeMillis());
@@ -1720,7 +2906,7 @@ public class IdsBean {
     }
 
     public String prepareData(String sessionId, String investigationIds, String datasetIds, String datafileIds,
-                              boolean compress, boolean zip, String ip)
+                              boolean compress, boolean zip, ArchiveFormat format, String ip)
             throws BadRequestException, InternalException, InsufficientPrivilegesException, NotFoundException {
 
         long start = System.currentTimeMillis();
@@ -1728,14 +2914,115 @@ public class IdsBean {
         // Log and validate
         logger.info("New webservice request: prepareData " + "investigationIds='" + investigationIds + "' "
                 + "datasetIds='" + datasetIds + "' " + "datafileIds='" + datafileIds + "' " + "compress='" + compress
-                + "' " + "zip='" + zip + "'");
+                + "' " + "zip='" + zip + "' " + "format='" + format + "'");
 
         validateUUID("sessionId", sessionId);
 
+        // Do it
+        String preparedId = null;
+        String dedupKey = null;
+        if (preparedDedup.isEnabled()) {
+            String userName;
+            try {
+                userName = getUserName(sessionId);
+            } catch (IcatException_Exception e) {
+                IcatExceptionType type = e.getFaultInfo().getType();
+                if (type == IcatExceptionType.SESSION) {
+                    throw new InsufficientPrivilegesException(e.getClass() + " " + e.getMessage());
+                }
+                throw new InternalException(e.getClass() + " " + e.getMessage());
+            }
+            dedupKey = PreparedDedup.key(userName, DataSelection.getValidIds("investigationIds", investigationIds),
+                    DataSelection.getValidIds("datasetIds", datasetIds),
+                    DataSelection.getValidIds("datafileIds", datafileIds), zip, compress, format);
+            preparedId = preparedDedup.get(dedupKey);
+            if (preparedId != null && !isReusable(preparedId)) {
+                preparedId = null;
+            }
+        }
+
+        if (preparedId == null) {
+            preparedId = writePrepared(sessionId, investigationIds, datasetIds, datafileIds, compress, zip, format);
+            if (dedupKey != null) {
+                preparedDedup.put(dedupKey, preparedId);
+            }
+        } else {
+            logger.debug("Returning preparedId " + preparedId + " of an identical request");
+        }
+
+        if (logSet.contains(CallType.PREPARE)) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
+                    gen.write("userName", getUserName(sessionId));
+                    addIds(gen, investigationIds, datasetIds, datafileIds);
+                    gen.write("preparedId", preparedId);
+                    gen.writeEnd();
+                }
+                String body = baos.toString();
+                transmitter.processMessage("prepareData", ip, body, start);
+            } catch (IcatException_Exception e) {
+                logger.error("Failed to prepare jms message " + e.getClass() + " " + e.getMessage());
+            }
+        }
+
+        return preparedId;
+    }
+
+    /**
+     * Return the name of the user of the session, asking ICAT only if it is
+     * not remembered by the sessionCache.
+     */
+    private String getUserName(String sessionId) throws IcatException_Exception {
+        String userName = sessionCache.getUserName(sessionId);
+        if (userName == null) {
+            try {
+                userName = icat.getUserName(sessionId);
+            } catch (IcatException_Exception e) {
+                if (e.getFaultInfo().getType() == IcatExceptionType.SESSION) {
+                    sessionCache.flush(sessionId);
+                }
+                throw e;
+            }
+            sessionCache.putUserName(sessionId, userName);
+        }
+        return userName;
+    }
+
+    /**
+     * Whether a preparedId recorded by the preparedDedup may be returned
+     * again: its file must not have been expired and none of the restores it
+     * needed may have failed.
+     */
+    private boolean isReusable(String preparedId) {
+        try {
+            Prepared prepared = getPrepared(preparedId);
+            if (storageUnit == StorageUnit.DATASET) {
+                for (Long dsId : prepared.dsInfos.keySet()) {
+                    fsm.checkFailure(dsId);
+                }
+            } else if (storageUnit == StorageUnit.DATAFILE) {
+                for (DfInfoImpl dfInfo : prepared.dfInfos) {
+                    fsm.checkFailure(dfInfo.getDfId());
+                }
+            }
+            return true;
+        } catch (NotFoundException | InternalException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resolve the selection, queue the restores it needs and write its
+     * prepared file, returning the new preparedId.
+     */
+    private String writePrepared(String sessionId, String investigationIds, String datasetIds, String datafileIds,
+                                 boolean compress, boolean zip, ArchiveFormat format)
+            throws BadRequestException, InternalException, InsufficientPrivilegesException, NotFoundException {
+
         final DataSelection dataSelection = new DataSelection(propertyHandler, reader, sessionId,
                 investigationIds, datasetIds, datafileIds, Returns.DATASETS_AND_DATAFILES);
 
-        // Do it
         String preparedId = UUID.randomUUID().toString();
 
         Map<Long, DsInfo> dsInfos = dataSelection.getDsInfo();
@@ -1759,31 +3046,23 @@ public class IdsBean {
             zip = true;
         }
 
-        logger.debug("Writing to " + preparedDir.resolve(preparedId));
-        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(preparedDir.resolve(preparedId)))) {
-            pack(stream, zip, compress, dsInfos, dfInfos, emptyDs);
+        logger.debug("Writing to " + preparedStore.resolve(preparedId));
+        try {
+            Path tmp = preparedStore.createTempFile();
+            try {
+                try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                    pack(stream, zip, format, compress, dsInfos, dfInfos, emptyDs, compressPreparedFiles);
+                }
+                preparedStore.add(preparedId, tmp);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
         } catch (IOException e) {
             throw new InternalException(e.getClass() + " " + e.getMessage());
         }
 
         logger.debug("preparedId is " + preparedId);
 
-        if (logSet.contains(CallType.PREPARE)) {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                    gen.write("userName", icat.getUserName(sessionId));
-                    addIds(gen, investigationIds, datasetIds, datafileIds);
-                    gen.write("preparedId", preparedId);
-                    gen.writeEnd();
-                }
-                String body = baos.toString();
-                transmitter.processMessage("prepareData", ip, body, start);
-            } catch (IcatException_Exception e) {
-                logger.error("Failed to prepare jms message " + e.getClass() + " " + e.getMessage());
-            }
-        }
-
         return preparedId;
     }
 
@@ -1865,6 +3144,7 @@ public class IdsBean {
             }
 
             DsInfo dsInfo = new DsInfoImpl(ds);
+            propertyHandler.getDsInfoCache().put(dsInfo);
             try (Lock lock = lockManager.lock(dsInfo, LockType.SHARED)) {
                 if (storageUnit == StorageUnit.DATASET) {
                     Set<DfInfoImpl> dfInfos = Collections.emptySet();
@@ -1891,7 +3171,7 @@ public class IdsBean {
                 }
 
                 CRC32 crc = new CRC32();
-                CheckedWithSizeInputStream is = new CheckedWithSizeInputStream(body, crc);
+                CheckedWithSizeInputStream is = new CheckedWithSizeInputStream(bufferPool.bufferedInputStream(body), crc);
                 String location;
                 try {
                     location = mainStorage.put(dsInfo, name, is);
@@ -1911,7 +3191,7 @@ public class IdsBean {
                             + " datafile will now be deleted");
                     String userId = null;
                     try {
-                        userId = icat.getUserName(sessionId);
+                        userId = getUserName(sessionId);
                     } catch (IcatException_Exception e1) {
                         logger.error("Unable to get user name for session " + sessionId + " so mainStorage.delete of "
                                 + location + " may fail");
@@ -1920,6 +3200,8 @@ public class IdsBean {
                     throw e;
                 }
 
+                zipCache.invalidate(Collections.singleton(dsInfo.getDsId()));
+
                 if (storageUnit == StorageUnit.DATASET) {
                     fsm.queue(dsInfo, DeferredOp.WRITE);
                 } else if (storageUnit == StorageUnit.DATAFILE) {
@@ -1943,7 +3225,7 @@ public class IdsBean {
                     try {
                         baos = new ByteArrayOutputStream();
                         try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                            gen.write("userName", icat.getUserName(sessionId));
+                            gen.write("userName", getUserName(sessionId));
                             gen.write("datafileId", dfId);
                             gen.writeEnd();
                         }
@@ -2050,14 +3332,10 @@ public class IdsBean {
         validateUUID("preparedId", preparedId);
 
         // Do it
-        Prepared preparedJson;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            preparedJson = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
+        Prepared preparedJson = getPrepared(preparedId);
+
+        /* Have the datasets read again from ICAT in case that was what went wrong */
+        propertyHandler.getDsInfoCache().invalidate(preparedJson.dsInfos.keySet());
 
         if (storageUnit == StorageUnit.DATASET) {
             for (DsInfo dsInfo : preparedJson.dsInfos.values()) {
@@ -2108,7 +3386,7 @@ public class IdsBean {
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                    gen.write("userName", icat.getUserName(sessionId));
+                    gen.write("userName", getUserName(sessionId));
                     addIds(gen, investigationIds, datasetIds, datafileIds);
                     gen.writeEnd();
                 }
@@ -2126,10 +3404,8 @@ public class IdsBean {
             for (File file : markerDir.toFile().listFiles()) {
                 if (storageUnit == StorageUnit.DATASET) {
                     long dsid = Long.parseLong(file.toPath().getFileName().toString());
-                    Dataset ds = null;
                     try {
-                        ds = (Dataset) reader.get("Dataset ds INCLUDE ds.investigation.facility", dsid);
-                        DsInfo dsInfo = new DsInfoImpl(ds);
+                        DsInfo dsInfo = propertyHandler.getDsInfoCache().get(reader, dsid);
                         fsm.queue(dsInfo, DeferredOp.WRITE);
                         logger.info("Queued dataset with id " + dsid + " " + dsInfo
                                 + " to be written as it was not written out previously by IDS");
@@ -2204,7 +3480,7 @@ public class IdsBean {
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                    gen.write("userName", icat.getUserName(sessionId));
+                    gen.write("userName", getUserName(sessionId));
                     addIds(gen, investigationIds, datasetIds, datafileIds);
                     gen.writeEnd();
                 }
@@ -2215,6 +3491,36 @@ public class IdsBean {
         }
     }
 
+    /*
+     * Queue a restoration of the datafile unless it is online and not about
+     * to change, and return true if it is then to be restored
+     */
+    private boolean restoreToWait(DfInfoImpl dfInfo) throws InternalException {
+        if (fsm.getDfRestoring().contains(dfInfo)) {
+            return true;
+        }
+        if (fsm.getDfMaybeOffline().contains(dfInfo) || !mainStorage.exists(dfInfo.getDfLocation())) {
+            fsm.queue(dfInfo, DeferredOp.RESTORE);
+            return fsm.getDfRestoring().contains(dfInfo);
+        }
+        return false;
+    }
+
+    /*
+     * As above for a dataset
+     */
+    private boolean restoreToWait(DsInfo dsInfo, Set<Long> emptyDatasets) throws InternalException {
+        if (fsm.getDsRestoring().contains(dsInfo)) {
+            return true;
+        }
+        if (fsm.getDsMaybeOffline().contains(dsInfo)
+                || !emptyDatasets.contains(dsInfo.getDsId()) && !mainStorage.exists(dsInfo)) {
+            fsm.queue(dsInfo, DeferredOp.RESTORE);
+            return fsm.getDsRestoring().contains(dsInfo);
+        }
+        return false;
+    }
+
     private boolean restoreIfOffline(DfInfoImpl dfInfo) throws InternalException {
         boolean maybeOffline = false;
         if (fsm.getDfMaybeOffline().contains(dfInfo)) {
@@ -2305,7 +3611,7 @@ public class IdsBean {
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-                    gen.write("userName", icat.getUserName(sessionId));
+                    gen.write("userName", getUserName(sessionId));
                     addIds(gen, investigationIds, datasetIds, datafileIds);
                     gen.writeEnd();
                 }
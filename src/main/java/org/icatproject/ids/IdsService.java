@@ -4,8 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
@@ -15,9 +14,11 @@ import jakarta.json.Json;
 import jakarta.json.stream.JsonGenerator;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.Part;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.FormParam;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.HeaderParam;
@@ -26,6 +27,8 @@ import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
 import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
@@ -36,9 +39,11 @@ import org.slf4j.LoggerFactory;
 import org.icatproject.ids.exceptions.BadRequestException;
 import org.icatproject.ids.exceptions.DataNotOnlineException;
 import org.icatproject.ids.exceptions.InsufficientPrivilegesException;
+import org.icatproject.ids.exceptions.IdsException;
 import org.icatproject.ids.exceptions.InternalException;
 import org.icatproject.ids.exceptions.NotFoundException;
 import org.icatproject.ids.exceptions.NotImplementedException;
+import org.icatproject.ids.exceptions.RangeNotSatisfiableException;
 
 @Path("/")
 @Stateless
@@ -49,7 +54,7 @@ public class IdsService {
     @EJB
     private IdsBean idsBean;
 
-    private Pattern rangeRe;
+    private boolean asyncDownload;
 
     /**
      * Archive data specified by the investigationIds, datasetIds and
@@ -148,48 +153,71 @@ public class IdsService {
      *                         requested (or could be because a datasetId or investigationId
      *                         has been specified) the data are zipped regardless of the
      *                         specification of this flag.
+     * @param format           The format of the archive: "zip", "tar" or "tar.gz". If set
+     *                         the data are always archived, as if zip were true. A tar.gz
+     *                         file is a tar file compressed as a whole. This only applies
+     *                         if preparedId is not set. The default is zip.
      * @param outname          The file name to put in the returned header
-     *                         "ContentDisposition". If it does not end in .zip but it is a
-     *                         zip file then a ".zip" will be appended.
-     * @param range            A range header which must match "bytes=(\\d+)-" to specify an
-     *                         offset i.e. to skip a number of bytes.
-     * @return a stream of json data.
+     *                         "ContentDisposition". If it does not end in the extension
+     *                         for the archive format, such as .zip, then that extension
+     *                         will be appended.
+     * @param range            A range header as described in RFC 7233 such as "bytes=100-",
+     *                         "bytes=100-199", "bytes=-100" or a comma separated list of
+     *                         these. If the length of the data is known, as for a single
+     *                         file or an uncompressed zip, any such range is honoured and
+     *                         several ranges are returned as multipart/byteranges.
+     *                         Otherwise only a single range with a start position is
+     *                         honoured.
      * @throws BadRequestException
      * @throws NotFoundException
      * @throws InternalException
      * @throws InsufficientPrivilegesException
      * @throws DataNotOnlineException
+     * @throws RangeNotSatisfiableException
      * @statuscode 200 To indicate success
+     * @statuscode 206 To indicate that only the requested ranges are returned
      */
     @GET
     @Path("getData")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public Response getData(@Context HttpServletRequest request, @QueryParam("preparedId") String preparedId,
-                            @QueryParam("sessionId") String sessionId, @QueryParam("investigationIds") String investigationIds,
-                            @QueryParam("datasetIds") String datasetIds, @QueryParam("datafileIds") String datafileIds,
-                            @QueryParam("compress") boolean compress, @QueryParam("zip") boolean zip,
-                            @QueryParam("outname") String outname, @HeaderParam("Range") String range) throws BadRequestException,
-            NotFoundException, InternalException, InsufficientPrivilegesException, DataNotOnlineException {
+    public void getData(@Suspended AsyncResponse asyncResponse, @Context HttpServletRequest request,
+                        @Context HttpServletResponse servletResponse, @QueryParam("preparedId") String preparedId,
+                        @QueryParam("sessionId") String sessionId, @QueryParam("investigationIds") String investigationIds,
+                        @QueryParam("datasetIds") String datasetIds, @QueryParam("datafileIds") String datafileIds,
+                        @QueryParam("compress") boolean compress, @QueryParam("zip") boolean zip,
+                        @QueryParam("format") String format, @QueryParam("outname") String outname,
+                        @HeaderParam("Range") String range) {
         Response response = null;
+        try {
+            List<ByteRange> ranges = null;
+            if (range != null) {
+                ranges = ByteRange.parse(range);
+                logger.debug("Range " + range + " -> " + ranges);
+            }
 
-        long offset = 0;
-        if (range != null) {
-
-            Matcher m = rangeRe.matcher(range);
-            if (!m.matches()) {
-                throw new BadRequestException("The range must match " + rangeRe.pattern());
+            if (preparedId != null) {
+                response = idsBean.getData(preparedId, outname, ranges, request.getRemoteAddr());
+            } else {
+                ArchiveFormat archiveFormat = ArchiveFormat.parse(format);
+                response = idsBean.getData(sessionId, investigationIds, datasetIds, datafileIds,
+                        compress || ArchiveFormat.isCompressed(format), zip || archiveFormat != null,
+                        archiveFormat == null ? ArchiveFormat.ZIP : archiveFormat, outname, ranges,
+                        request.getRemoteAddr());
             }
-            offset = Long.parseLong(m.group(1));
-            logger.debug("Range " + range + " -> offset " + offset);
+        } catch (IdsException | RuntimeException e) {
+            asyncResponse.resume(e);
+            return;
         }
-
-        if (preparedId != null) {
-            response = idsBean.getData(preparedId, outname, offset, request.getRemoteAddr());
-        } else {
-            response = idsBean.getData(sessionId, investigationIds, datasetIds, datafileIds, compress, zip, outname,
-                    offset, request.getRemoteAddr());
+        /*
+         * The call is always suspended so that the response can be sent with
+         * non-blocking I/O if asyncDownload is set. Otherwise, or if the data
+         * can only be written by a StreamingOutput, it is resumed here and
+         * the response is written by this thread as before.
+         */
+        if (!asyncDownload || !AsyncDownload.start(asyncResponse, request, servletResponse, response,
+                BufferPool.getInstance(), PropertyHandler.getInstance().getAsyncDownloadPool())) {
+            asyncResponse.resume(response);
         }
-        return response;
     }
 
     /**
@@ -367,7 +395,7 @@ public class IdsService {
     @PostConstruct
     private void init() {
         logger.info("creating IdsService");
-        rangeRe = Pattern.compile("bytes=(\\d+)-");
+        asyncDownload = PropertyHandler.getInstance().getAsyncDownload();
         logger.info("created IdsService");
     }
 
@@ -398,6 +426,33 @@ public class IdsService {
         return idsBean.isPrepared(preparedId, request.getRemoteAddr());
     }
 
+    /**
+     * Waits until all the data files are ready to be downloaded and then
+     * returns true, or returns false if they are still not ready at the end of
+     * the timeout. A restoration of any data files which are archived, or
+     * which are being archived, will be launched. This may be used instead of
+     * repeatedly calling isPrepared or getStatus as the call returns as soon
+     * as the last restoration ends.
+     *
+     * @title waitPrepared
+     * @param preparedId A valid preparedId returned by a call to prepareData
+     * @param timeout    The most seconds to wait, up to 600. The default is 60.
+     * @return true if all the data files are ready to be downloaded else false.
+     * @throws BadRequestException
+     * @throws NotFoundException
+     * @throws InternalException
+     * @statuscode 200 To indicate success
+     */
+    @GET
+    @Path("waitPrepared")
+    @Produces(MediaType.TEXT_PLAIN)
+    public void waitPrepared(@Suspended AsyncResponse asyncResponse, @Context HttpServletRequest request,
+                             @QueryParam("preparedId") String preparedId,
+                             @QueryParam("timeout") @DefaultValue("60") int timeout)
+            throws BadRequestException, NotFoundException, InternalException {
+        idsBean.waitPrepared(preparedId, timeout, asyncResponse, request.getRemoteAddr());
+    }
+
     /**
      * An ids server can be configured to be read only. This returns the
      * readOnly status of the server.
@@ -462,6 +517,9 @@ public class IdsService {
      *                         requested (or could be because a datasetId or investigationId
      *                         has been specified) the data are zipped regardless of the
      *                         specification of this flag.
+     * @param format           The format of the archive: "zip", "tar" or "tar.gz". If set
+     *                         the data are always archived, as if zip were true. A tar.gz
+     *                         file is a tar file compressed as a whole. The default is zip.
      * @return a string with the preparedId
      * @throws BadRequestException
      * @throws InsufficientPrivilegesException
@@ -476,10 +534,12 @@ public class IdsService {
     public String prepareData(@Context HttpServletRequest request, @FormParam("sessionId") String sessionId,
                               @FormParam("investigationIds") String investigationIds, @FormParam("datasetIds") String datasetIds,
                               @FormParam("datafileIds") String datafileIds, @FormParam("compress") boolean compress,
-                              @FormParam("zip") boolean zip)
+                              @FormParam("zip") boolean zip, @FormParam("format") String format)
             throws BadRequestException, InsufficientPrivilegesException, NotFoundException, InternalException {
-        return idsBean.prepareData(sessionId, investigationIds, datasetIds, datafileIds, compress, zip,
-                request.getRemoteAddr());
+        ArchiveFormat archiveFormat = ArchiveFormat.parse(format);
+        return idsBean.prepareData(sessionId, investigationIds, datasetIds, datafileIds,
+                compress || ArchiveFormat.isCompressed(format), zip || archiveFormat != null,
+                archiveFormat == null ? ArchiveFormat.ZIP : archiveFormat, request.getRemoteAddr());
     }
 
     /**
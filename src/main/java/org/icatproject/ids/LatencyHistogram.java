@@ -0,0 +1,51 @@
+package org.icatproject.ids;
+
+import jakarta.json.stream.JsonGenerator;
+
+/**
+ * Counts of durations in buckets with fixed upper bounds, from 1 ms to 30 s
+ * and beyond, along with their total and maximum.
+ */
+class LatencyHistogram {
+
+    /* The upper bound in ms of each bucket but the last, which has none */
+    static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+    private final long[] counts = new long[BOUNDS.length + 1];
+    private long count;
+    private long totalMillis;
+    private long maxMillis;
+
+    synchronized void record(long millis) {
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            i++;
+        }
+        counts[i]++;
+        count++;
+        totalMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * Write the histogram as an object with the given name. The buckets are
+     * written as an array of counts in the order of BOUNDS.
+     */
+    synchronized void writeStatus(JsonGenerator gen, String name) {
+        gen.writeStartObject(name).write("count", count).write("totalMillis", totalMillis)
+                .write("maxMillis", maxMillis).writeStartArray("buckets");
+        for (long n : counts) {
+            gen.write(n);
+        }
+        gen.writeEnd().writeEnd();
+    }
+
+}
@@ -0,0 +1,359 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip file in which each DEFLATED entry has its data split into
+ * blocks which are compressed concurrently on an executor.
+ *
+ * Each block is compressed by its own Deflater primed with the last 32 KiB of
+ * the preceding block as a dictionary and ends with a sync flush so that the
+ * compressed blocks simply concatenate to form a single deflate stream. The
+ * result is a standard zip file which any unzip tool can read. At most
+ * threads blocks are queued or being compressed at any time and they are
+ * written out in order. The CRC is computed as the data are supplied so the
+ * sizes and CRC of each entry are written in a data descriptor after its
+ * data.
+ *
+ * Data which will not shrink may instead be written as a STORED entry if its
+ * size and CRC are known before it is written. These are then recorded in
+ * the local header and the data are copied as they are. The level may also
+ * be changed between entries, as for ZipOutputStream.
+ *
+ * For the same data, block size and levels the output is always the same.
+ */
+class ParallelZipOutputStream extends OutputStream {
+
+    private static class Entry {
+        private byte[] name;
+        private int method;
+        private int flags;
+        private int crc;
+        private long csize;
+        private long size;
+        private long offset;
+    }
+
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int EXTSIG = 0x08074b50;
+    private static final int LOCHDR = 30;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int DEFLATED_FLAGS = ZipLayout.USE_UTF8 | ZipLayout.USE_DATA_DESCRIPTOR;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int threads;
+    private int level;
+    private final int dosTime;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private long written;
+    private Entry current;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private byte[] dictionary;
+    private long storedLength;
+    private boolean finished;
+
+    /**
+     * @param out      where to write the zip file
+     * @param executor to run the compression of the blocks
+     * @param threads  the maximum number of blocks being compressed at once
+     * @param level    the initial compression level for the Deflater
+     * @param time     the modification time in milliseconds to record for
+     *                 every entry
+     */
+    ParallelZipOutputStream(OutputStream out, ExecutorService executor, int threads, int level, long time) {
+        this.out = out;
+        this.executor = executor;
+        this.threads = threads;
+        this.level = level;
+        this.dosTime = ZipLayout.dosTime(time);
+    }
+
+    /**
+     * Start a new entry, closing the current one if any. A ZipException is
+     * thrown, as by ZipOutputStream, if the name has been used before.
+     */
+    void putNextEntry(String name) throws IOException {
+        Entry entry = startEntry(name);
+        entry.method = ZipLayout.DEFLATED;
+        entry.flags = DEFLATED_FLAGS;
+        ByteBuffer b = ByteBuffer.allocate(LOCHDR + entry.name.length).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(LOCSIG);
+        b.putShort((short) VERSION_DEFLATED);
+        b.putShort((short) DEFLATED_FLAGS);
+        b.putShort((short) ZipLayout.DEFLATED);
+        b.putInt(dosTime);
+        b.putInt(0); // crc, size and compressed size follow the data
+        b.putInt(0);
+        b.putInt(0);
+        b.putShort((short) entry.name.length);
+        b.putShort((short) 0);
+        b.put(entry.name);
+        writeRaw(b.array());
+        current = entry;
+        crc.reset();
+        dictionary = null;
+        blockLength = 0;
+    }
+
+    /**
+     * Start a new STORED entry, closing the current one if any. Its data are
+     * written as they are and closeEntry throws a ZipException, as for
+     * ZipOutputStream, if they do not have the size and CRC given here.
+     */
+    void putNextStoredEntry(String name, long size, long crc) throws IOException {
+        Entry entry = startEntry(name);
+        entry.method = ZipLayout.STORED;
+        entry.flags = ZipLayout.USE_UTF8;
+        entry.crc = (int) crc;
+        entry.csize = size;
+        entry.size = size;
+        writeRaw(ZipLayout.storedLocalHeader(entry.name, dosTime, entry.crc, size));
+        current = entry;
+        this.crc.reset();
+        storedLength = 0;
+    }
+
+    private Entry startEntry(String name) throws IOException {
+        ensureOpen();
+        if (current != null) {
+            closeEntry();
+        }
+        if (!names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+        Entry entry = new Entry();
+        entry.name = name.getBytes(StandardCharsets.UTF_8);
+        entry.offset = written;
+        return entry;
+    }
+
+    /**
+     * Set the compression level for data which has not yet been compressed.
+     */
+    void setLevel(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (current == null) {
+            throw new ZipException("no current ZIP entry");
+        }
+        if (current.method == ZipLayout.STORED) {
+            crc.update(b, off, len);
+            out.write(b, off, len);
+            written += len;
+            storedLength += len;
+            return;
+        }
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == BLOCK_SIZE) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Write the remaining data of the current entry followed by its data
+     * descriptor.
+     */
+    void closeEntry() throws IOException {
+        ensureOpen();
+        if (current == null) {
+            return;
+        }
+        if (current.method == ZipLayout.STORED) {
+            Entry entry = current;
+            current = null;
+            if (storedLength != entry.size) {
+                throw new ZipException("invalid entry size (expected " + entry.size + " but got " + storedLength
+                        + " bytes)");
+            }
+            if ((int) crc.getValue() != entry.crc) {
+                throw new ZipException("invalid entry crc-32 (expected 0x" + Integer.toHexString(entry.crc)
+                        + " but got 0x" + Long.toHexString(crc.getValue()) + ")");
+            }
+            entries.add(entry);
+            return;
+        }
+        submit(true);
+        while (!inFlight.isEmpty()) {
+            writeBlock();
+        }
+        Entry entry = current;
+        current = null;
+        entry.crc = (int) crc.getValue();
+        boolean zip64 = entry.csize >= ZIP64_MAGIC || entry.size >= ZIP64_MAGIC;
+        ByteBuffer b = ByteBuffer.allocate(zip64 ? 24 : 16).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(EXTSIG);
+        b.putInt(entry.crc);
+        if (zip64) {
+            b.putLong(entry.csize);
+            b.putLong(entry.size);
+        } else {
+            b.putInt((int) entry.csize);
+            b.putInt((int) entry.size);
+        }
+        writeRaw(b.array());
+        entries.add(entry);
+    }
+
+    /**
+     * Write the central directory without closing the underlying stream.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        long centralDirectoryOffset = written;
+        for (Entry entry : entries) {
+            writeRaw(ZipLayout.centralHeader(entry.name, entry.method, entry.flags, dosTime, entry.crc,
+                    entry.csize, entry.size, entry.offset));
+        }
+        writeRaw(ZipLayout.end(entries.size(), centralDirectoryOffset, written - centralDirectoryOffset));
+        finished = true;
+        block = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            abandon();
+            out.close();
+        }
+    }
+
+    /**
+     * Give up on any blocks still being compressed after a failure.
+     */
+    void abandon() {
+        Future<byte[]> future;
+        while ((future = inFlight.poll()) != null) {
+            future.cancel(false);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Stream has already been finished");
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        byte[] input = Arrays.copyOf(block, blockLength);
+        crc.update(input);
+        current.size += blockLength;
+        blockLength = 0;
+        byte[] dict = dictionary;
+        int level = this.level;
+        dictionary = last ? null
+                : Arrays.copyOfRange(input, Math.max(0, input.length - DICTIONARY_SIZE), input.length);
+        inFlight.add(executor.submit(() -> deflate(input, dict, level, last)));
+        while (inFlight.size() >= threads) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        byte[] compressed;
+        try {
+            compressed = inFlight.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new IOException(cause.getClass() + " " + cause.getMessage());
+        }
+        writeRaw(compressed);
+        current.csize += compressed.length;
+    }
+
+    private void writeRaw(byte[] bytes) throws IOException {
+        out.write(bytes);
+        written += bytes.length;
+    }
+
+    /**
+     * Compress one block as raw deflate data. All but the last block of an
+     * entry end with a sync flush so that they end on a byte boundary without
+     * marking the end of the stream.
+     */
+    static byte[] deflate(byte[] input, byte[] dictionary, int level, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(input.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    result.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+}
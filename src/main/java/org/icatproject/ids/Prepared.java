@@ -1,5 +1,6 @@
 package org.icatproject.ids;
 
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
@@ -9,8 +10,12 @@ import org.icatproject.ids.plugin.DsInfo;
 /* This is a POJO with only package access so don't make data private */
 class Prepared {
     boolean zip;
+    ArchiveFormat format;
     boolean compress;
     SortedSet<DfInfoImpl> dfInfos;
     SortedMap<Long, DsInfo> dsInfos;
     Set<Long> emptyDatasets;
+    /* The total and per dataset sizes or null if not recorded */
+    Long size;
+    Map<Long, Long> dsSizes;
 }
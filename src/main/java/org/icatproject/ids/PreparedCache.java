@@ -0,0 +1,180 @@
+package org.icatproject.ids;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.ejb.Singleton;
+import jakarta.json.stream.JsonGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.icatproject.ids.plugin.DsInfo;
+
+/**
+ * An in memory cache of the Prepared objects read from the prepared files so
+ * that frequent calls such as isPrepared do not read and parse the same file
+ * each time. Prepared files are never modified so an entry only needs to be
+ * dropped when its file is deleted by the Tidier.
+ *
+ * The total is limited by an estimate of the memory used by each entry with
+ * the least recently used entries being evicted first. The collections of a
+ * cached Prepared are unmodifiable as it is shared between calls; a
+ * DfInfoSet already is.
+ */
+@Singleton
+public class PreparedCache {
+
+    private static class Entry {
+        private Prepared prepared;
+        private long weight;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(PreparedCache.class);
+
+    private long maxBytes;
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /* In order of access so that the first is the least recently used */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    @PostConstruct
+    private void init() {
+        configure(PropertyHandler.getInstance().getPreparedCacheMaxBytes());
+    }
+
+    void configure(long maxBytes) {
+        this.maxBytes = maxBytes;
+        logger.info("Caching prepared selections in up to about " + maxBytes + " bytes of memory");
+    }
+
+    /**
+     * Return the cached Prepared for the preparedId or null if it is not
+     * cached.
+     */
+    public Prepared get(String preparedId) {
+        synchronized (entries) {
+            Entry entry = entries.get(preparedId);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.prepared;
+        }
+    }
+
+    /**
+     * Whether the preparedId is cached, without counting as a hit or miss.
+     */
+    public boolean contains(String preparedId) {
+        synchronized (entries) {
+            return entries.containsKey(preparedId);
+        }
+    }
+
+    /**
+     * Add a Prepared just read from its file. Its collections are replaced by
+     * unmodifiable views. It is not cached if it is estimated to need more
+     * than the whole of the cache.
+     */
+    public void put(String preparedId, Prepared prepared) {
+        if (!(prepared.dfInfos instanceof DfInfoSet)) {
+            prepared.dfInfos = Collections.unmodifiableSortedSet(prepared.dfInfos);
+        }
+        prepared.dsInfos = Collections.unmodifiableSortedMap(prepared.dsInfos);
+        prepared.emptyDatasets = Collections.unmodifiableSet(prepared.emptyDatasets);
+        if (prepared.dsSizes != null) {
+            prepared.dsSizes = Collections.unmodifiableMap(prepared.dsSizes);
+        }
+        Entry entry = new Entry();
+        entry.prepared = prepared;
+        entry.weight = weight(prepared);
+        if (entry.weight > maxBytes) {
+            return;
+        }
+        synchronized (entries) {
+            Entry old = entries.put(preparedId, entry);
+            if (old != null) {
+                totalBytes -= old.weight;
+            }
+            totalBytes += entry.weight;
+            Iterator<Entry> iter = entries.values().iterator();
+            while (totalBytes > maxBytes && iter.hasNext()) {
+                Entry lru = iter.next();
+                iter.remove();
+                totalBytes -= lru.weight;
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Drop the entries for prepared files which have been deleted.
+     */
+    public void invalidate(Collection<String> preparedIds) {
+        synchronized (entries) {
+            for (String preparedId : preparedIds) {
+                Entry entry = entries.remove(preparedId);
+                if (entry != null) {
+                    totalBytes -= entry.weight;
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    /**
+     * A rough estimate of the bytes of heap used by the Prepared.
+     */
+    static long weight(Prepared prepared) {
+        long weight = 256;
+        if (prepared.dfInfos instanceof DfInfoSet) {
+            weight += ((DfInfoSet) prepared.dfInfos).weight();
+        } else {
+            for (DfInfoImpl dfInfo : prepared.dfInfos) {
+                weight += 104 + weight(dfInfo.getDfName()) + weight(dfInfo.getDfLocation())
+                        + weight(dfInfo.getChecksum());
+            }
+        }
+        for (DsInfo dsInfo : prepared.dsInfos.values()) {
+            weight += 160 + weight(dsInfo.getDsName()) + weight(dsInfo.getDsLocation());
+        }
+        weight += 48L * prepared.emptyDatasets.size();
+        if (prepared.dsSizes != null) {
+            weight += 64L * prepared.dsSizes.size();
+        }
+        return weight;
+    }
+
+    private static long weight(String s) {
+        return s == null ? 0 : 40 + s.length();
+    }
+
+    long getTotalBytes() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * Write the statistics of the cache as an object with the given name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        synchronized (entries) {
+            long lookups = hits + misses;
+            gen.writeStartObject(name).write("entries", entries.size()).write("bytes", totalBytes)
+                    .write("maxBytes", maxBytes).write("hits", hits).write("misses", misses)
+                    .write("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups).write("evictions", evictions)
+                    .write("invalidations", invalidations).writeEnd();
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.icatproject.ids;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.ejb.Singleton;
+import jakarta.json.stream.JsonGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the preparedId returned by each prepareData call for a short
+ * time so that an identical request can be given the same preparedId
+ * without resolving the selection against ICAT and queuing its restores
+ * again.
+ *
+ * Requests are identified by a hash of the user name, the sorted ids and the
+ * flags, so a preparedId is only ever returned to the user for whom ICAT
+ * authorized the selection. The time to live should be short as changes to
+ * the selection or to the rules in ICAT are not seen until it has passed.
+ */
+@Singleton
+public class PreparedDedup {
+
+    private static class Entry {
+        private final long time;
+        private final String preparedId;
+
+        private Entry(long time, String preparedId) {
+            this.time = time;
+            this.preparedId = preparedId;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(PreparedDedup.class);
+
+    private long ttlMillis;
+    private long hits;
+    private long misses;
+
+    /* In the order added so that the first is the oldest */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        configure(PropertyHandler.getInstance().getPrepareDedupTtlMillis());
+    }
+
+    void configure(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        if (ttlMillis > 0) {
+            logger.info("Returning the same preparedId for identical prepareData calls within " + ttlMillis + " ms");
+        }
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * Return the key identifying a prepareData request. The order of the ids
+     * and any repetition of them is ignored.
+     */
+    static String key(String userName, List<Long> investigationIds, List<Long> datasetIds, List<Long> datafileIds,
+                      boolean zip, boolean compress, ArchiveFormat format) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(userName.length()).append(':').append(userName);
+        for (List<Long> ids : List.of(investigationIds, datasetIds, datafileIds)) {
+            sb.append('/');
+            for (Long id : new TreeSet<>(ids)) {
+                sb.append(id).append(',');
+            }
+        }
+        sb.append('/').append(zip).append('/').append(compress).append('/').append(format);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the preparedId recorded for the key or null if there is none
+     * which has not yet expired.
+     */
+    public String get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.time < System.currentTimeMillis() - ttlMillis) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.preparedId;
+        }
+    }
+
+    /**
+     * Record the preparedId returned for the key, dropping any entries which
+     * have expired.
+     */
+    public void put(String key, String preparedId) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            entries.remove(key);
+            entries.put(key, new Entry(now, preparedId));
+            Iterator<Entry> iter = entries.values().iterator();
+            while (iter.hasNext() && iter.next().time < now - ttlMillis) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop the entries for a preparedId which should no longer be returned.
+     */
+    public void invalidate(Collection<String> preparedIds) {
+        synchronized (entries) {
+            Set<String> ids = new HashSet<>(preparedIds);
+            entries.values().removeIf(entry -> ids.contains(entry.preparedId));
+        }
+    }
+
+    int getCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Write the statistics as an object with the given name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        synchronized (entries) {
+            gen.writeStartObject(name).write("entries", entries.size()).write("ttlMillis", ttlMillis)
+                    .write("hits", hits).write("misses", misses).writeEnd();
+        }
+    }
+
+}
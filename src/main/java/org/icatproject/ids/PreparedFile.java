@@ -0,0 +1,472 @@
+package org.icatproject.ids;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.icatproject.ids.plugin.DsInfo;
+
+/**
+ * The binary format of a prepared file. It starts with a magic number, which
+ * can never start a file in the original json format, followed by a version
+ * and flags. If the compressed flag is set everything after the flags is
+ * deflated.
+ *
+ * Numbers are written as zigzag varints with the datafile ids as the
+ * difference from the previous one, so that the ids of a typical selection
+ * take one or two bytes. Strings which repeat across datafiles and datasets,
+ * such as the createId, modId and the directory part of each location, are
+ * written once and afterwards referred to by their index in a dictionary.
+ *
+ * From version 2 the total size of the datafiles and the size of those in
+ * each dataset are recorded before the datafiles so that they can be found
+ * without reading the datafiles. Files of version 1 are still read but have
+ * no sizes.
+ */
+class PreparedFile {
+
+    /**
+     * Strings written once and then referred to by index. A code of 0 means
+     * null, 1 that a new string follows and anything else refers to the
+     * string with index code - 2.
+     */
+    private static class Writer {
+        private final DataOutputStream out;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+
+        private Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void writeLong(long value) throws IOException {
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        /* Strings which do not repeat are written in full */
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                writeLong(-1);
+            } else {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeLong(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        private void writeShared(String s) throws IOException {
+            if (s == null) {
+                writeLong(0);
+                return;
+            }
+            Integer index = dictionary.get(s);
+            if (index == null) {
+                dictionary.put(s, dictionary.size());
+                writeLong(1);
+                writeString(s);
+            } else {
+                writeLong(index + 2);
+            }
+        }
+
+        /*
+         * The directory part is shared and the rest is written in full unless
+         * it is the same as the name, as it usually is for a datafile
+         */
+        private void writeLocation(String location, String name) throws IOException {
+            if (location == null) {
+                writeShared(null);
+                return;
+            }
+            int slash = location.lastIndexOf('/') + 1;
+            writeShared(location.substring(0, slash));
+            String rest = location.substring(slash);
+            writeString(rest.equals(name) ? null : rest);
+        }
+    }
+
+    private static class Reader {
+        private final DataInputStream in;
+        private final List<String> dictionary = new ArrayList<>();
+
+        private Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        private long readLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Prepared file is truncated");
+                }
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (v >>> 1) ^ -(v & 1);
+                }
+            }
+            throw new IOException("Prepared file has a malformed number");
+        }
+
+        private int readCount() throws IOException {
+            long n = readLong();
+            if (n < 0 || n > Integer.MAX_VALUE) {
+                throw new IOException("Prepared file has a bad count " + n);
+            }
+            return (int) n;
+        }
+
+        private String readString() throws IOException {
+            long n = readLong();
+            if (n == -1) {
+                return null;
+            }
+            if (n < 0 || n > Integer.MAX_VALUE) {
+                throw new IOException("Prepared file has a bad string length " + n);
+            }
+            byte[] bytes = new byte[(int) n];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private String readShared() throws IOException {
+            long code = readLong();
+            if (code == 0) {
+                return null;
+            }
+            if (code == 1) {
+                String s = readString();
+                dictionary.add(s);
+                return s;
+            }
+            if (code < 2 || code - 2 >= dictionary.size()) {
+                throw new IOException("Prepared file refers to unknown string " + code);
+            }
+            return dictionary.get((int) (code - 2));
+        }
+
+        private String readLocation(String name) throws IOException {
+            String prefix = readShared();
+            if (prefix == null) {
+                return null;
+            }
+            String rest = readString();
+            return prefix + (rest == null ? name : rest);
+        }
+    }
+
+    private static final byte[] MAGIC = { 'I', 'D', 'S', 'P' };
+
+    static final int VERSION = 2;
+
+    /* The first version to record sizes */
+    private static final int SIZES_VERSION = 2;
+
+    private static final int COMPRESSED = 0x1;
+
+    /**
+     * Write a prepared file.
+     *
+     * @param compress    whether the download of the selection is to be
+     *                    compressed, as requested by the caller
+     * @param deflateFile whether to deflate the prepared file itself
+     */
+    static void write(OutputStream stream, boolean zip, ArchiveFormat format, boolean compress,
+                      Map<Long, DsInfo> dsInfos, Set<DfInfoImpl> dfInfos, Set<Long> emptyDatasets, boolean deflateFile)
+            throws IOException {
+        stream.write(MAGIC);
+        stream.write(VERSION);
+        stream.write(deflateFile ? COMPRESSED : 0);
+        Deflater deflater = null;
+        DeflaterOutputStream dos = null;
+        if (deflateFile) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            dos = new DeflaterOutputStream(stream, deflater, 8192);
+            stream = dos;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        Writer w = new Writer(out);
+        out.writeBoolean(zip);
+        w.writeShared(format.name());
+        out.writeBoolean(compress);
+
+        /* In order of id so that the file can be read a chunk at a time in the same order */
+        if (!(dfInfos instanceof SortedSet)) {
+            dfInfos = new TreeSet<>(dfInfos);
+        }
+
+        /* As for a SUM in ICAT a datafile without a size counts as zero */
+        long size = 0;
+        Map<Long, Long> dsSizes = new HashMap<>();
+        for (DfInfoImpl dfInfo : dfInfos) {
+            Long fileSize = dfInfo.getFileSize();
+            if (fileSize != null) {
+                size += fileSize;
+                dsSizes.merge(dfInfo.getDsId(), fileSize, Long::sum);
+            }
+        }
+        w.writeLong(size);
+
+        w.writeLong(dsInfos.size());
+        for (DsInfo dsInfo : dsInfos.values()) {
+            w.writeLong(dsInfo.getDsId());
+            w.writeString(dsInfo.getDsName());
+            w.writeLocation(dsInfo.getDsLocation(), dsInfo.getDsName());
+            w.writeLong(dsInfo.getInvId());
+            w.writeShared(dsInfo.getInvName());
+            w.writeShared(dsInfo.getVisitId());
+            w.writeLong(dsInfo.getFacilityId());
+            w.writeShared(dsInfo.getFacilityName());
+            w.writeLong(dsSizes.getOrDefault(dsInfo.getDsId(), 0L));
+        }
+
+        w.writeLong(dfInfos.size());
+        long lastDfId = 0;
+        for (DfInfoImpl dfInfo : dfInfos) {
+            w.writeLong(dfInfo.getDfId() - lastDfId);
+            lastDfId = dfInfo.getDfId();
+            w.writeLong(dfInfo.getDsId());
+            w.writeString(dfInfo.getDfName());
+            w.writeLocation(dfInfo.getDfLocation(), dfInfo.getDfName());
+            w.writeShared(dfInfo.getCreateId());
+            w.writeShared(dfInfo.getModId());
+            w.writeLong(dfInfo.getFileSize() == null ? -1 : dfInfo.getFileSize());
+            w.writeString(dfInfo.getChecksum());
+        }
+
+        w.writeLong(emptyDatasets.size());
+        for (Long emptyDs : emptyDatasets) {
+            w.writeLong(emptyDs);
+        }
+        out.flush();
+        if (dos != null) {
+            dos.finish();
+            deflater.end();
+        }
+        stream.flush();
+    }
+
+    /**
+     * Return a stream from which the format of the prepared file can be
+     * determined with {@link #isBinary(InputStream)} without consuming
+     * anything.
+     */
+    static InputStream markable(InputStream stream) {
+        return stream.markSupported() ? stream : new BufferedInputStream(stream);
+    }
+
+    /**
+     * Whether the stream, which must support mark, holds a file in the
+     * binary format rather than json.
+     */
+    static boolean isBinary(InputStream stream) throws IOException {
+        stream.mark(MAGIC.length);
+        byte[] start = stream.readNBytes(MAGIC.length);
+        stream.reset();
+        return Arrays.equals(start, MAGIC);
+    }
+
+    /**
+     * A prepared file in the binary format being read a datafile at a time.
+     * Everything before the datafiles is read when it is opened so that the
+     * datafiles of a large selection need never all be held in memory.
+     */
+    static class Cursor implements Closeable {
+
+        private final DataInputStream in;
+        private final Reader r;
+        private final boolean zip;
+        private final ArchiveFormat format;
+        private final boolean compress;
+        private final SortedMap<Long, DsInfo> dsInfos;
+        private final Long size;
+        private final Map<Long, Long> dsSizes;
+        private final int dfCount;
+        private int remaining;
+        private long dfId;
+
+        private Cursor(InputStream stream, int version) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(stream));
+            r = new Reader(in);
+            zip = in.readBoolean();
+            try {
+                format = ArchiveFormat.valueOf(r.readShared());
+            } catch (IllegalArgumentException | NullPointerException e) {
+                throw new IOException("Prepared file has an unknown format");
+            }
+            compress = in.readBoolean();
+            boolean sized = version >= SIZES_VERSION;
+            size = sized ? r.readLong() : null;
+
+            dsInfos = new TreeMap<>();
+            dsSizes = sized ? new HashMap<>() : null;
+            for (int n = r.readCount(); n > 0; n--) {
+                long dsId = r.readLong();
+                String dsName = r.readString();
+                String dsLocation = r.readLocation(dsName);
+                long invId = r.readLong();
+                String invName = r.readShared();
+                String visitId = r.readShared();
+                long facilityId = r.readLong();
+                String facilityName = r.readShared();
+                dsInfos.put(dsId,
+                        new DsInfoImpl(dsId, dsName, dsLocation, invId, invName, visitId, facilityId, facilityName));
+                if (sized) {
+                    dsSizes.put(dsId, r.readLong());
+                }
+            }
+            dfCount = r.readCount();
+            remaining = dfCount;
+        }
+
+        boolean isZip() {
+            return zip;
+        }
+
+        ArchiveFormat getFormat() {
+            return format;
+        }
+
+        boolean isCompress() {
+            return compress;
+        }
+
+        SortedMap<Long, DsInfo> getDsInfos() {
+            return dsInfos;
+        }
+
+        int getDfCount() {
+            return dfCount;
+        }
+
+        /**
+         * Return the total size of the datafiles or null if the file predates
+         * sizes being recorded.
+         */
+        Long getSize() {
+            return size;
+        }
+
+        /**
+         * Return the size of the datafiles of each dataset or null if the file
+         * predates sizes being recorded.
+         */
+        Map<Long, Long> getDsSizes() {
+            return dsSizes;
+        }
+
+        /**
+         * Return the next datafile, in order of id, or null when all have
+         * been read.
+         */
+        DfInfoImpl next() throws IOException {
+            if (remaining == 0) {
+                return null;
+            }
+            remaining--;
+            dfId += r.readLong();
+            long dsId = r.readLong();
+            String dfName = r.readString();
+            String dfLocation = r.readLocation(dfName);
+            String createId = r.readShared();
+            String modId = r.readShared();
+            long fileSize = r.readLong();
+            String checksum = r.readString();
+            return new DfInfoImpl(dfId, dfName, dfLocation, createId, modId, dsId, fileSize < 0 ? null : fileSize,
+                    checksum);
+        }
+
+        /**
+         * Read the ids of the empty datasets which follow the datafiles.
+         */
+        Set<Long> readEmptyDatasets() throws IOException {
+            if (remaining != 0) {
+                throw new IllegalStateException(remaining + " datafiles have not been read");
+            }
+            Set<Long> emptyDatasets = new HashSet<>();
+            for (int n = r.readCount(); n > 0; n--) {
+                emptyDatasets.add(r.readLong());
+            }
+            return emptyDatasets;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Open a prepared file in the binary format to be read a datafile at a
+     * time. Closing the cursor closes the stream.
+     */
+    static Cursor open(InputStream stream) throws IOException {
+        byte[] start = stream.readNBytes(MAGIC.length + 2);
+        if (start.length < MAGIC.length + 2 || !Arrays.equals(Arrays.copyOf(start, MAGIC.length), MAGIC)) {
+            throw new IOException("Not a prepared file");
+        }
+        int version = start[MAGIC.length];
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Prepared file has unsupported version " + version);
+        }
+        int flags = start[MAGIC.length + 1];
+        if ((flags & COMPRESSED) != 0) {
+            stream = new InflaterInputStream(stream);
+        }
+        try {
+            return new Cursor(stream, version);
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read a prepared file in the binary format.
+     */
+    static Prepared read(InputStream stream) throws IOException {
+        try (Cursor cursor = open(stream)) {
+            Prepared prepared = new Prepared();
+            prepared.zip = cursor.isZip();
+            prepared.format = cursor.getFormat();
+            prepared.compress = cursor.isCompress();
+            prepared.dsInfos = cursor.getDsInfos();
+            prepared.size = cursor.getSize();
+            prepared.dsSizes = cursor.getDsSizes();
+            DfInfoSet.Builder dfInfos = new DfInfoSet.Builder((int) Math.min(cursor.getDfCount(), 1 << 20));
+            DfInfoImpl dfInfo;
+            while ((dfInfo = cursor.next()) != null) {
+                dfInfos.add(dfInfo);
+            }
+            prepared.dfInfos = dfInfos.build();
+            prepared.emptyDatasets = cursor.readEmptyDatasets();
+            return prepared;
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package org.icatproject.ids;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.ejb.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The prepared files, one for each preparedId, held in the prepared
+ * subdirectory of the cache.dir. The files are spread over subdirectories
+ * named by the first two characters of the preparedId, which as a random
+ * UUID spreads them evenly, so that no directory becomes too large.
+ *
+ * The order in which the files were added is kept in memory and in an index
+ * file to which a line is appended for each new file. The oldest files can
+ * then be expired by count or by age without listing the directory. The
+ * index is rewritten when most of its lines refer to files which have been
+ * expired, and on startup when files which had been expired or lost are
+ * dropped. Prepared files written by earlier versions directly in the
+ * prepared directory are moved into their subdirectories on startup.
+ */
+@Singleton
+public class PreparedStore {
+
+    private static class Entry {
+        private final long time;
+        private final String preparedId;
+
+        private Entry(long time, String preparedId) {
+            this.time = time;
+            this.preparedId = preparedId;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(PreparedStore.class);
+
+    private static final String INDEX = "index";
+
+    private Path dir;
+    private Path indexPath;
+    private BufferedWriter index;
+
+    /* In the order added so that the first is the oldest */
+    private final Deque<Entry> entries = new ArrayDeque<>();
+
+    /* Lines of the index for files which have been expired */
+    private int dead;
+
+    @PostConstruct
+    private void init() {
+        try {
+            configure(PropertyHandler.getInstance().getCacheDir().resolve("prepared"));
+        } catch (IOException e) {
+            throw new RuntimeException("PreparedStore reports " + e.getClass() + " " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    private void exit() {
+        synchronized (entries) {
+            try {
+                if (index != null) {
+                    index.close();
+                }
+            } catch (IOException e) {
+                logger.error("Failed to close " + indexPath + " " + e.getMessage());
+            }
+        }
+    }
+
+    void configure(Path dir) throws IOException {
+        this.dir = dir;
+        indexPath = dir.resolve(INDEX);
+        Files.createDirectories(dir);
+        synchronized (entries) {
+            entries.clear();
+            if (Files.exists(indexPath)) {
+                try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.US_ASCII)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        int space = line.indexOf(' ');
+                        if (space > 0) {
+                            String preparedId = line.substring(space + 1);
+                            if (Files.exists(resolve(preparedId))) {
+                                entries.add(new Entry(Long.parseLong(line.substring(0, space)), preparedId));
+                            }
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad line in " + indexPath + " " + e.getMessage());
+                }
+            }
+            migrate();
+            rewriteIndex();
+        }
+        logger.info("Holding " + entries.size() + " prepared files in " + dir);
+    }
+
+    /**
+     * Move prepared files written by earlier versions into their
+     * subdirectories, oldest first.
+     */
+    private void migrate() throws IOException {
+        List<File> legacy = new ArrayList<>();
+        for (File file : dir.toFile().listFiles()) {
+            String name = file.getName();
+            if (file.isFile() && IdsBean.uuidRegExp.matcher(name).matches()) {
+                legacy.add(file);
+            }
+        }
+        legacy.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : legacy) {
+            String preparedId = file.getName();
+            long time = file.lastModified();
+            Path path = resolve(preparedId);
+            Files.createDirectories(path.getParent());
+            Files.move(file.toPath(), path, StandardCopyOption.REPLACE_EXISTING);
+            entries.add(new Entry(time, preparedId));
+        }
+        if (!legacy.isEmpty()) {
+            logger.info("Moved " + legacy.size() + " prepared files written by an earlier version");
+        }
+    }
+
+    private void rewriteIndex() throws IOException {
+        if (index != null) {
+            index.close();
+        }
+        Path tmp = Files.createTempFile(dir, "tmp.", ".index");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.US_ASCII)) {
+            for (Entry entry : entries) {
+                writer.write(entry.time + " " + entry.preparedId + "\n");
+            }
+        }
+        Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = Files.newBufferedWriter(indexPath, StandardCharsets.US_ASCII, StandardOpenOption.APPEND);
+        dead = 0;
+    }
+
+    /**
+     * Return the path of the prepared file for the preparedId, which must
+     * already have been validated as a UUID.
+     */
+    public Path resolve(String preparedId) {
+        return dir.resolve(preparedId.substring(0, 2)).resolve(preparedId);
+    }
+
+    /**
+     * Return a new temporary file in which to write a prepared file before it
+     * is added. Any left behind by a crash are deleted on startup.
+     */
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(dir, "tmp.", ".prepared");
+    }
+
+    /**
+     * Record the new prepared file and move it from tmp into place. It is
+     * recorded first so that a crash cannot leave a file which is never
+     * expired.
+     */
+    public void add(String preparedId, Path tmp) throws IOException {
+        Path path = resolve(preparedId);
+        Files.createDirectories(path.getParent());
+        synchronized (entries) {
+            Entry entry = new Entry(System.currentTimeMillis(), preparedId);
+            index.write(entry.time + " " + preparedId + "\n");
+            index.flush();
+            entries.add(entry);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove the oldest prepared files from the store so as to leave no more
+     * than maxCount, none of which is older than maxAgeMillis, and return
+     * their preparedIds. The caller must then delete the files.
+     *
+     * @param maxAgeMillis the greatest age or 0 for no limit
+     */
+    public List<String> expire(int maxCount, long maxAgeMillis) throws IOException {
+        List<String> expired = new ArrayList<>();
+        long oldest = maxAgeMillis == 0 ? Long.MIN_VALUE : System.currentTimeMillis() - maxAgeMillis;
+        synchronized (entries) {
+            while (!entries.isEmpty() && (entries.size() > maxCount || entries.peek().time < oldest)) {
+                expired.add(entries.poll().preparedId);
+            }
+            dead += expired.size();
+            if (dead > 1024 && dead > entries.size()) {
+                rewriteIndex();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Delete the prepared files of the preparedIds returned by expire.
+     */
+    public void delete(List<String> preparedIds) {
+        for (String preparedId : preparedIds) {
+            Path path = resolve(preparedId);
+            try {
+                Files.deleteIfExists(path);
+                logger.debug("Deleted " + path);
+            } catch (IOException e) {
+                logger.error("Failed to delete " + path + " " + e.getClass() + " " + e.getMessage());
+            }
+        }
+    }
+
+    int getCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package org.icatproject.ids;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongPredicate;
+
+import jakarta.ws.rs.container.AsyncResponse;
+
+import org.icatproject.ids.exceptions.InternalException;
+
+/**
+ * A suspended waitPrepared call. It is registered with the
+ * FiniteStateMachine before the members of the prepared selection are
+ * checked so that no change is missed, then told which members are being
+ * restored. It resumes the call with true once the FiniteStateMachine has
+ * reported the end of a change to each of those members which leaves it no
+ * longer to be restored, or with an error if any of them failed, without
+ * checking the storage again. The end of some other change, such as an
+ * archive which was in progress when the restoration was queued, is
+ * ignored.
+ */
+class PreparedWaiter implements FiniteStateMachine.ChangeListener {
+
+    private final AsyncResponse asyncResponse;
+
+    /* Whether a member is still to be restored */
+    private final LongPredicate restoring;
+
+    /* The ids of datasets or datafiles changed while the members were checked */
+    private Set<Long> early = new HashSet<>();
+    private Set<Long> earlyFailures = new HashSet<>();
+
+    /* The ids of the members being restored, or null while they are checked */
+    private Set<Long> pending;
+
+    private boolean failed;
+    private boolean done;
+
+    PreparedWaiter(AsyncResponse asyncResponse, LongPredicate restoring) {
+        this.asyncResponse = asyncResponse;
+        this.restoring = restoring;
+    }
+
+    @Override
+    public synchronized boolean changed(long id, boolean failure) {
+        if (!done) {
+            if (pending == null) {
+                early.add(id);
+                if (failure) {
+                    earlyFailures.add(id);
+                }
+            } else {
+                ended(id, failure);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Start waiting for the members being restored. Return true if the wait
+     * is already over, in which case the waiter should be removed from the
+     * FiniteStateMachine.
+     */
+    synchronized boolean start(Set<Long> restoring) {
+        pending = restoring;
+        for (Long id : early) {
+            ended(id, earlyFailures.contains(id));
+        }
+        early = null;
+        earlyFailures = null;
+        if (!done && pending.isEmpty()) {
+            finish();
+        }
+        return done;
+    }
+
+    /**
+     * Resume the call with false if the wait is not yet over. Return true if
+     * the waiter should be removed from the FiniteStateMachine.
+     */
+    synchronized boolean timeout() {
+        if (done) {
+            return false;
+        }
+        done = true;
+        asyncResponse.resume(false);
+        return true;
+    }
+
+    private void ended(long id, boolean failure) {
+        if (!done && pending.contains(id) && (failure || !restoring.test(id))) {
+            pending.remove(id);
+            if (failure) {
+                failed = true;
+            }
+            if (pending.isEmpty()) {
+                finish();
+            }
+        }
+    }
+
+    private void finish() {
+        done = true;
+        if (failed) {
+            asyncResponse.resume(new InternalException("Restore failed"));
+        } else {
+            asyncResponse.resume(true);
+        }
+    }
+
+}
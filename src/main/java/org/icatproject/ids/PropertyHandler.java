@@ -13,6 +13,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jakarta.json.Json;
 import jakarta.json.JsonReader;
@@ -21,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.icatproject.ICAT;
+import org.icatproject.ICATService;
 import org.icatproject.IcatException_Exception;
 import org.icatproject.ids.IdsBean.CallType;
 import org.icatproject.ids.plugin.ArchiveStorageInterface;
@@ -56,11 +60,16 @@ public class PropertyHandler {
     private Path filesCheckLastIdFile;
     private int filesCheckParallelCount;
     private ICAT icatService;
+    private volatile IcatPool icatPool;
+    private int icatMaxInFlight;
+    private int icatConnectTimeoutMillis;
+    private int icatReadTimeoutMillis;
     private long linkLifetimeMillis;
 
     private MainStorageInterface mainStorage;
 
     private int preparedCount;
+    private long preparedLifetimeMillis;
 
     private long processQueueIntervalSeconds;
     private List<String> reader;
@@ -82,6 +91,34 @@ public class PropertyHandler {
     private Set<CallType> logSet = new HashSet<>();
     private org.icatproject.icat.client.ICAT restIcat;
     private boolean useReaderForPerformance;
+    private int icatConcurrentQueries;
+    private ExecutorService icatQueryPool;
+    private int readAheadCount;
+    private long readAheadMaxBytes;
+    private int compressThreads;
+    private int compressMaxThreads;
+    private ExecutorService deflatePool;
+    private Set<String> compressStoredExtensions;
+    private int compressSampleBytes;
+    private int bufferSize;
+    private int bufferPoolMaxIdle;
+    private long zipCacheMaxBytes;
+    private int maxRanges;
+    private boolean checksumsAreCrc32;
+    private boolean asyncDownload;
+    private int asyncDownloadReadThreads;
+    private ExecutorService asyncDownloadPool;
+    private boolean streamSelections;
+    private boolean preparedFileCompress;
+    private long preparedCacheMaxBytes;
+    private long prepareDedupTtlMillis;
+    private int dsInfoCacheMaxEntries;
+    private long dsInfoCacheTtlMillis;
+    private DsInfoCache dsInfoCache;
+    private int sessionCacheMaxSessions;
+    private long sessionCacheTtlMillis;
+    private SessionCache sessionCache;
+    private int preparedFileChunkSize;
 
     @SuppressWarnings("unchecked")
     private PropertyHandler() {
@@ -100,6 +137,11 @@ public class PropertyHandler {
             }
 
             preparedCount = props.getPositiveInt("preparedCount");
+            if (props.has("preparedLifetimeSeconds")) {
+                preparedLifetimeMillis = props.getNonNegativeLong("preparedLifetimeSeconds") * 1000L;
+            } else {
+                preparedLifetimeMillis = 0;
+            }
             processQueueIntervalSeconds = props.getPositiveLong("processQueueIntervalSeconds");
             rootUserNames = new HashSet<>(Arrays.asList(props.getString("rootUserNames").trim().split("\\s+")));
 
@@ -243,6 +285,171 @@ public class PropertyHandler {
 
             useReaderForPerformance = props.getBoolean("useReaderForPerformance", false);
 
+            if (props.has("icat.concurrentQueries")) {
+                icatConcurrentQueries = props.getPositiveInt("icat.concurrentQueries");
+            } else {
+                icatConcurrentQueries = 1;
+            }
+            if (icatConcurrentQueries > 1) {
+                logger.info("Resolving investigations and datasets with up to " + icatConcurrentQueries
+                        + " concurrent ICAT queries");
+            }
+
+            if (props.has("icat.maxInFlight")) {
+                icatMaxInFlight = props.getPositiveInt("icat.maxInFlight");
+            } else {
+                icatMaxInFlight = 32;
+            }
+            if (props.has("icat.connectTimeoutSeconds")) {
+                icatConnectTimeoutMillis = props.getNonNegativeInt("icat.connectTimeoutSeconds") * 1000;
+            } else {
+                icatConnectTimeoutMillis = 0;
+            }
+            if (props.has("icat.readTimeoutSeconds")) {
+                icatReadTimeoutMillis = props.getNonNegativeInt("icat.readTimeoutSeconds") * 1000;
+            } else {
+                icatReadTimeoutMillis = 0;
+            }
+
+            if (props.has("readAhead.count")) {
+                readAheadCount = props.getNonNegativeInt("readAhead.count");
+            } else {
+                readAheadCount = 0;
+            }
+            if (readAheadCount > 0) {
+                readAheadMaxBytes = props.getPositiveLong("readAhead.maxBytes");
+                logger.info("Reading ahead up to " + readAheadCount + " datafiles in at most " + readAheadMaxBytes
+                        + " bytes per download");
+            }
+
+            if (props.has("compress.threads")) {
+                compressThreads = props.getPositiveInt("compress.threads");
+            } else {
+                compressThreads = 1;
+            }
+            if (compressThreads > 1) {
+                if (props.has("compress.maxThreads")) {
+                    compressMaxThreads = props.getPositiveInt("compress.maxThreads");
+                } else {
+                    compressMaxThreads = Runtime.getRuntime().availableProcessors();
+                }
+                logger.info("Compressing each download on up to " + compressThreads + " of " + compressMaxThreads
+                        + " shared threads");
+            }
+            String storedExtensions = props.has("compress.storedExtensions")
+                    ? props.getString("compress.storedExtensions")
+                    : CompressionPolicy.DEFAULT_STORED_EXTENSIONS;
+            compressStoredExtensions = new HashSet<>();
+            for (String extension : storedExtensions.trim().split("\\s+")) {
+                if (!extension.isEmpty()) {
+                    compressStoredExtensions.add(extension.startsWith(".") ? extension.substring(1) : extension);
+                }
+            }
+            if (props.has("compress.sampleBytes")) {
+                compressSampleBytes = props.getNonNegativeInt("compress.sampleBytes");
+            } else {
+                compressSampleBytes = 0;
+            }
+            logger.info("Storing without compression files with extensions " + compressStoredExtensions
+                    + (compressSampleBytes > 0 ? " or whose first " + compressSampleBytes + " bytes do not compress"
+                            : ""));
+
+            if (props.has("bufferPool.bufferSize")) {
+                bufferSize = props.getPositiveInt("bufferPool.bufferSize");
+            } else {
+                bufferSize = 262144;
+            }
+            if (props.has("bufferPool.maxIdle")) {
+                bufferPoolMaxIdle = props.getPositiveInt("bufferPool.maxIdle");
+            } else {
+                bufferPoolMaxIdle = 64;
+            }
+            logger.info("Copying data with buffers of " + bufferSize + " bytes keeping up to " + bufferPoolMaxIdle
+                    + " for reuse");
+
+            if (props.has("maxRanges")) {
+                maxRanges = props.getPositiveInt("maxRanges");
+            } else {
+                maxRanges = 16;
+            }
+
+            if (props.has("zipCache.maxBytes")) {
+                zipCacheMaxBytes = props.getNonNegativeLong("zipCache.maxBytes");
+            } else {
+                zipCacheMaxBytes = 0;
+            }
+
+            preparedFileCompress = props.getBoolean("preparedFile.compress", false);
+
+            if (props.has("preparedFile.chunkSize")) {
+                preparedFileChunkSize = props.getNonNegativeInt("preparedFile.chunkSize");
+            } else {
+                preparedFileChunkSize = 0;
+            }
+            if (preparedFileChunkSize > 0) {
+                logger.info("Streaming prepared selections of more than " + preparedFileChunkSize
+                        + " datafiles a chunk at a time");
+            }
+
+            if (props.has("preparedCache.maxBytes")) {
+                preparedCacheMaxBytes = props.getNonNegativeLong("preparedCache.maxBytes");
+            } else {
+                preparedCacheMaxBytes = 67108864;
+            }
+
+            if (props.has("prepareDedup.ttlSeconds")) {
+                prepareDedupTtlMillis = props.getNonNegativeLong("prepareDedup.ttlSeconds") * 1000L;
+            } else {
+                prepareDedupTtlMillis = 0;
+            }
+
+            if (props.has("dsInfoCache.maxEntries")) {
+                dsInfoCacheMaxEntries = props.getNonNegativeInt("dsInfoCache.maxEntries");
+            } else {
+                dsInfoCacheMaxEntries = 10000;
+            }
+            if (props.has("dsInfoCache.ttlSeconds")) {
+                dsInfoCacheTtlMillis = props.getNonNegativeLong("dsInfoCache.ttlSeconds") * 1000L;
+            } else {
+                dsInfoCacheTtlMillis = 60000;
+            }
+
+            if (props.has("sessionCache.ttlSeconds")) {
+                sessionCacheTtlMillis = props.getNonNegativeLong("sessionCache.ttlSeconds") * 1000L;
+            } else {
+                sessionCacheTtlMillis = 0;
+            }
+            if (props.has("sessionCache.maxSessions")) {
+                sessionCacheMaxSessions = props.getPositiveInt("sessionCache.maxSessions");
+            } else {
+                sessionCacheMaxSessions = 1000;
+            }
+            if (sessionCacheTtlMillis > 0) {
+                logger.info("Remembering user names and permissions of ICAT sessions for " + sessionCacheTtlMillis
+                        + " ms");
+            }
+
+            streamSelections = props.getBoolean("streamSelections", false);
+            if (streamSelections) {
+                logger.info("Streaming getData for datasets and investigations as their datafiles are found");
+            }
+
+            checksumsAreCrc32 = props.getBoolean("checksumsAreCrc32", false);
+            if (checksumsAreCrc32) {
+                logger.info("Trusting the checksums in ICAT to be CRC32 values to lay out uncompressed zip files");
+            }
+
+            asyncDownload = props.getBoolean("asyncDownload", false);
+            if (props.has("asyncDownload.readThreads")) {
+                asyncDownloadReadThreads = props.getPositiveInt("asyncDownload.readThreads");
+            } else {
+                asyncDownloadReadThreads = 8;
+            }
+            if (asyncDownload) {
+                logger.info("Sending getData responses with non-blocking I/O where possible, reading with "
+                        + asyncDownloadReadThreads + " threads");
+            }
+
         } catch (CheckedPropertyException e) {
             abort(e.getMessage());
         }
@@ -287,7 +494,10 @@ public class PropertyHandler {
         // will produce an error message.
         while (icatService == null) {
             try {
-                icatService = ICATGetter.getService(icatUrl);
+                ICATService service = ICATGetter.findService(icatUrl);
+                icatPool = new IcatPool(service::getICATPort, icatMaxInFlight, icatConnectTimeoutMillis,
+                        icatReadTimeoutMillis);
+                icatService = icatPool.getIcat();
             } catch (IcatException_Exception e) {
                 String msg = "Problem finding ICAT API version at " + icatUrl + ": " + e.getFaultInfo().getType() + " "
                         + e.getMessage();
@@ -302,6 +512,14 @@ public class PropertyHandler {
         return icatService;
     }
 
+    /**
+     * Return the pool of ports behind the ICAT returned by getIcatService or
+     * null if that has not yet been called.
+     */
+    public IcatPool getIcatPool() {
+        return icatPool;
+    }
+
     public String getIcatUrl() {
         return icatUrl;
     }
@@ -364,6 +582,10 @@ public class PropertyHandler {
         return preparedCount;
     }
 
+    public long getPreparedLifetimeMillis() {
+        return preparedLifetimeMillis;
+    }
+
     public long getProcessQueueIntervalSeconds() {
         return processQueueIntervalSeconds;
     }
@@ -416,7 +638,162 @@ public class PropertyHandler {
         return restIcat;
     }
 
+    /**
+     * Return the pool shared by all DataSelections to run ICAT queries for
+     * independent parts of a selection concurrently, or null if they are to
+     * be run one at a time.
+     */
+    public synchronized ExecutorService getIcatQueryPool() {
+        if (icatQueryPool == null && icatConcurrentQueries > 1) {
+            AtomicInteger n = new AtomicInteger();
+            icatQueryPool = Executors.newFixedThreadPool(icatConcurrentQueries, r -> {
+                Thread t = new Thread(r, "icatQuery-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return icatQueryPool;
+    }
+
     public boolean getUseReaderForPerformance() {
         return useReaderForPerformance;
     }
+
+    public int getReadAheadCount() {
+        return readAheadCount;
+    }
+
+    public long getReadAheadMaxBytes() {
+        return readAheadMaxBytes;
+    }
+
+    public int getCompressThreads() {
+        return compressThreads;
+    }
+
+    public int getCompressMaxThreads() {
+        return compressMaxThreads;
+    }
+
+    /**
+     * Return the pool shared by all compressed zip downloads to deflate their
+     * blocks in parallel, or null if each is to be deflated by one thread.
+     */
+    public synchronized ExecutorService getDeflatePool() {
+        if (deflatePool == null && compressThreads > 1) {
+            AtomicInteger n = new AtomicInteger();
+            deflatePool = Executors.newFixedThreadPool(compressMaxThreads, r -> {
+                Thread t = new Thread(r, "deflate-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return deflatePool;
+    }
+
+    public Set<String> getCompressStoredExtensions() {
+        return compressStoredExtensions;
+    }
+
+    public int getCompressSampleBytes() {
+        return compressSampleBytes;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getBufferPoolMaxIdle() {
+        return bufferPoolMaxIdle;
+    }
+
+    public long getZipCacheMaxBytes() {
+        return zipCacheMaxBytes;
+    }
+
+    public int getMaxRanges() {
+        return maxRanges;
+    }
+
+    public boolean getChecksumsAreCrc32() {
+        return checksumsAreCrc32;
+    }
+
+    public boolean getAsyncDownload() {
+        return asyncDownload;
+    }
+
+    /**
+     * Return the pool shared by all downloads sent with non-blocking I/O to
+     * read their data from storage, so that a slow read does not hold a
+     * thread of the container.
+     */
+    public synchronized ExecutorService getAsyncDownloadPool() {
+        if (asyncDownloadPool == null) {
+            AtomicInteger n = new AtomicInteger();
+            asyncDownloadPool = Executors.newFixedThreadPool(asyncDownloadReadThreads, r -> {
+                Thread t = new Thread(r, "asyncDownload-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return asyncDownloadPool;
+    }
+
+    /**
+     * Shut down any pools which have been created, so that their threads do
+     * not outlive the application. Tasks already submitted are allowed to
+     * finish.
+     */
+    public synchronized void shutdownPools() {
+        for (ExecutorService pool : new ExecutorService[] { icatQueryPool, deflatePool, asyncDownloadPool }) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        icatQueryPool = null;
+        deflatePool = null;
+        asyncDownloadPool = null;
+    }
+
+    public boolean getStreamSelections() {
+        return streamSelections;
+    }
+
+    public boolean getPreparedFileCompress() {
+        return preparedFileCompress;
+    }
+
+    public int getPreparedFileChunkSize() {
+        return preparedFileChunkSize;
+    }
+
+    public long getPreparedCacheMaxBytes() {
+        return preparedCacheMaxBytes;
+    }
+
+    public long getPrepareDedupTtlMillis() {
+        return prepareDedupTtlMillis;
+    }
+
+    /**
+     * Return the cache of dataset metadata shared by the whole server.
+     */
+    public synchronized DsInfoCache getDsInfoCache() {
+        if (dsInfoCache == null) {
+            dsInfoCache = new DsInfoCache(dsInfoCacheMaxEntries, dsInfoCacheTtlMillis);
+        }
+        return dsInfoCache;
+    }
+
+    /**
+     * Return the cache of answers from ICAT about sessions shared by the
+     * whole server.
+     */
+    public synchronized SessionCache getSessionCache() {
+        if (sessionCache == null) {
+            sessionCache = new SessionCache(sessionCacheMaxSessions, sessionCacheTtlMillis);
+        }
+        return sessionCache;
+    }
 }
@@ -0,0 +1,192 @@
+package org.icatproject.ids;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opens and reads the next datafiles of a download in the background while
+ * the current one is being written, so that the latency of opening each file
+ * is not paid in sequence. At most count datafiles are read ahead and each of
+ * these holds at most maxBytes / count bytes in memory. The remainder of a
+ * larger file is read from its stream when it is reached.
+ *
+ * The streams must be requested with {@link #next()} in the same order as
+ * the datafiles were supplied.
+ */
+class ReadAhead implements AutoCloseable {
+
+    interface Opener {
+        InputStream open(DfInfoImpl dfInfo) throws IOException;
+    }
+
+    /**
+     * The bytes read ahead followed by whatever remains of the stream.
+     */
+    private static class PrefetchedInputStream extends InputStream {
+
+        private byte[] buffer;
+        private int pos;
+        private int count;
+        private InputStream rest;
+
+        private PrefetchedInputStream(byte[] buffer, int count, InputStream rest) {
+            this.buffer = buffer;
+            this.count = count;
+            this.rest = rest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos < count) {
+                return buffer[pos++] & 0xff;
+            }
+            return rest == null ? -1 : rest.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos < count) {
+                int n = Math.min(len, count - pos);
+                System.arraycopy(buffer, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            return rest == null ? -1 : rest.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (pos < count) {
+                int k = (int) Math.min(n, count - pos);
+                pos += k;
+                return k;
+            }
+            return rest == null ? 0 : rest.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return count - pos + (rest == null ? 0 : rest.available());
+        }
+
+        @Override
+        public void close() throws IOException {
+            buffer = null;
+            pos = count = 0;
+            if (rest != null) {
+                rest.close();
+                rest = null;
+            }
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(ReadAhead.class);
+
+    private final Iterator<DfInfoImpl> pending;
+    private final Deque<Future<InputStream>> ahead = new ArrayDeque<>();
+    private final ExecutorService executor;
+    private final Opener opener;
+    private final int count;
+    private final int slotBytes;
+
+    ReadAhead(Collection<DfInfoImpl> dfInfos, ExecutorService executor, Opener opener, int count, long maxBytes) {
+        this.pending = dfInfos.iterator();
+        this.executor = executor;
+        this.opener = opener;
+        this.count = count;
+        this.slotBytes = (int) Math.min(Integer.MAX_VALUE - 8, maxBytes / count);
+        fill();
+    }
+
+    /**
+     * Return a stream with the contents of the next datafile which the caller
+     * must close.
+     */
+    InputStream next() throws IOException {
+        Future<InputStream> future = ahead.poll();
+        if (future == null) {
+            throw new IllegalStateException("No more datafiles to read");
+        }
+        fill();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for data to be read");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getClass() + " " + cause.getMessage());
+        }
+    }
+
+    private void fill() {
+        while (ahead.size() < count && pending.hasNext()) {
+            DfInfoImpl dfInfo = pending.next();
+            ahead.add(executor.submit(() -> load(dfInfo)));
+        }
+    }
+
+    private InputStream load(DfInfoImpl dfInfo) throws IOException {
+        InputStream stream = opener.open(dfInfo);
+        try {
+            Long fileSize = dfInfo.getFileSize();
+            /* One more byte than the recorded size to find the end of stream */
+            int size = fileSize == null ? slotBytes : (int) Math.min(slotBytes, fileSize + 1);
+            byte[] buffer = new byte[size];
+            int n = 0;
+            int k;
+            while (n < size && (k = stream.read(buffer, n, size - n)) >= 0) {
+                n += k;
+            }
+            if (n < size) {
+                stream.close();
+                return new PrefetchedInputStream(buffer, n, null);
+            }
+            return new PrefetchedInputStream(buffer, n, stream);
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Abandon whatever has been read ahead but not consumed.
+     */
+    @Override
+    public void close() {
+        Future<InputStream> future;
+        while ((future = ahead.poll()) != null) {
+            if (!future.cancel(false)) {
+                try {
+                    future.get().close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException | IOException e) {
+                    logger.debug("Ignoring failure of abandoned read ahead " + e.getMessage());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * An InputStream made of a sequence of segments, each being either some bytes
+ * held in memory or a number of bytes to be read from a stream which is only
+ * opened when that segment is reached. This allows the body of a download
+ * whose layout is known to be read on demand, a piece at a time.
+ */
+class SegmentInputStream extends InputStream {
+
+    interface Opener {
+        /**
+         * Open the stream, positioned at the start of the segment.
+         */
+        InputStream open() throws IOException;
+    }
+
+    private static class Segment {
+        private Opener opener;
+        private long length;
+        private boolean atEnd;
+        private Object what;
+    }
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private Segment current;
+    private InputStream stream;
+    private long remaining;
+
+    /**
+     * Add bytes held in memory.
+     */
+    void add(byte[] bytes) {
+        if (bytes.length > 0) {
+            add(() -> new ByteArrayInputStream(bytes), (long) bytes.length, true, "bytes");
+        }
+    }
+
+    /**
+     * Add bytes to be read from a stream.
+     *
+     * @param opener opens the stream when the segment is reached
+     * @param length the number of bytes to read or null to read to the end of
+     *               the stream
+     * @param atEnd  whether the stream must end after length bytes
+     * @param what   describes the source in error messages
+     */
+    void add(Opener opener, Long length, boolean atEnd, Object what) {
+        Segment segment = new Segment();
+        segment.opener = opener;
+        segment.length = length == null ? -1 : length;
+        segment.atEnd = atEnd;
+        segment.what = what;
+        segments.add(segment);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (current == null) {
+                current = segments.poll();
+                if (current == null) {
+                    return -1;
+                }
+                if (current.length == 0) {
+                    current = null;
+                    continue;
+                }
+                stream = current.opener.open();
+                remaining = current.length;
+            }
+            int n = stream.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+            if (n < 0) {
+                if (remaining > 0) {
+                    throw new IOException(
+                            "Size of " + current.what + " is less than the " + current.length + " bytes expected");
+                }
+                endSegment();
+                continue;
+            }
+            if (remaining > 0) {
+                remaining -= n;
+                if (remaining == 0) {
+                    if (current.atEnd && stream.read() >= 0) {
+                        throw new IOException(
+                                "Size of " + current.what + " is more than the " + current.length + " bytes expected");
+                    }
+                    endSegment();
+                }
+            }
+            return n;
+        }
+    }
+
+    private void endSegment() throws IOException {
+        InputStream s = stream;
+        stream = null;
+        current = null;
+        s.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        segments.clear();
+        if (stream != null) {
+            endSegment();
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package org.icatproject.ids;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jakarta.json.stream.JsonGenerator;
+
+/**
+ * Remembers for a short time what ICAT has said about each ICAT session: the
+ * name of its user and which entities it has been allowed to read. This
+ * saves asking ICAT the same questions again when a client repeats a call,
+ * such as polling getStatus for the same datasets.
+ *
+ * Only permission is remembered, never refusal. An answer is used for at
+ * most ttlMillis so a session which has expired, or a rule changed in ICAT,
+ * may go unnoticed for that long. Everything remembered about a session is
+ * dropped as soon as ICAT reports a problem with it. The cache is disabled
+ * when ttlMillis is 0. The least recently used sessions are dropped once
+ * there are more than maxSessions.
+ */
+public class SessionCache {
+
+    private static class Session {
+        private String userName;
+        private long userNameTime;
+
+        /* In the order added so that the first is the oldest */
+        private final LinkedHashMap<String, Long> allowed = new LinkedHashMap<>();
+    }
+
+    private final int maxSessions;
+    private final long ttlMillis;
+    private long hits;
+    private long misses;
+    private long flushes;
+
+    /* In order of access so that the first is the least recently used */
+    private final LinkedHashMap<String, Session> sessions;
+
+    /**
+     * @param maxSessions the most sessions to remember
+     * @param ttlMillis   how long an answer from ICAT may be used or 0 to
+     *                    disable the cache
+     */
+    SessionCache(int maxSessions, long ttlMillis) {
+        this.maxSessions = maxSessions;
+        this.ttlMillis = ttlMillis;
+        sessions = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > SessionCache.this.maxSessions;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0 && maxSessions > 0;
+    }
+
+    /**
+     * Return true if ICAT has recently allowed the session to read the
+     * entity.
+     */
+    public boolean isAllowed(String sessionId, String entity, long id) {
+        if (!isEnabled()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (sessions) {
+            Session session = sessions.get(sessionId);
+            Long time = session == null ? null : session.allowed.get(entity + ":" + id);
+            if (time != null && time >= now - ttlMillis) {
+                hits++;
+                return true;
+            }
+            misses++;
+            return false;
+        }
+    }
+
+    /**
+     * Record that ICAT has allowed the session to read the entity.
+     */
+    public void allow(String sessionId, String entity, long id) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        String key = entity + ":" + id;
+        synchronized (sessions) {
+            Session session = sessions.computeIfAbsent(sessionId, s -> new Session());
+            session.allowed.remove(key);
+            session.allowed.put(key, now);
+            Iterator<Long> iter = session.allowed.values().iterator();
+            while (iter.hasNext() && iter.next() < now - ttlMillis) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the name of the user of the session if it has recently been
+     * given by ICAT or null otherwise.
+     */
+    public String getUserName(String sessionId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (sessions) {
+            Session session = sessions.get(sessionId);
+            if (session != null && session.userName != null && session.userNameTime >= now - ttlMillis) {
+                hits++;
+                return session.userName;
+            }
+            misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Record the name of the user of the session as given by ICAT.
+     */
+    public void putUserName(String sessionId, String userName) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (sessions) {
+            Session session = sessions.computeIfAbsent(sessionId, s -> new Session());
+            session.userName = userName;
+            session.userNameTime = now;
+        }
+    }
+
+    /**
+     * Forget everything about the session, which ICAT no longer accepts.
+     */
+    public void flush(String sessionId) {
+        synchronized (sessions) {
+            if (sessions.remove(sessionId) != null) {
+                flushes++;
+            }
+        }
+    }
+
+    int getCount() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    /**
+     * Write the statistics of the cache as an object with the given name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        synchronized (sessions) {
+            gen.writeStartObject(name).write("sessions", sessions.size()).write("maxSessions", maxSessions)
+                    .write("ttlMillis", ttlMillis).write("hits", hits).write("misses", misses)
+                    .write("flushes", flushes).writeEnd();
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package org.icatproject.ids;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.icatproject.ids.plugin.DsInfo;
+import org.icatproject.ids.plugin.ZipMapperInterface;
+
+/**
+ * Precomputed layout of a POSIX tar file.
+ *
+ * Every entry is a 512 byte header followed by the data padded to a multiple
+ * of 512 bytes so, with the sizes recorded in ICAT, the position of every
+ * entry is known before anything is written and a download can be resumed
+ * from any offset. Names which do not fit in the ustar header, or are not
+ * ASCII, and sizes of 8 GiB or more are recorded in a pax extended header
+ * before the entry.
+ */
+class TarLayout implements ArchiveLayout {
+
+    private static class Entry {
+        private DfInfoImpl dfInfo;
+        private byte[] header;
+        private long size;
+        private long offset;
+    }
+
+    static final int BLOCK = 512;
+
+    private static final int NAMELEN = 100;
+    private static final int PREFIXLEN = 155;
+    private static final long MAXSIZE = 077777777777L;
+
+    /**
+     * Build the layout for the datafiles in the order in which they will be
+     * written. Entries whose name duplicates that of an earlier entry are left
+     * out as for a zip file. Returns null if the size of any datafile is not
+     * known.
+     *
+     * @param time the modification time in milliseconds to record for every
+     *             entry
+     */
+    static TarLayout create(Map<Long, DsInfo> dsInfos, Collection<DfInfoImpl> dfInfos, ZipMapperInterface zipMapper,
+                            long time) {
+        List<Entry> entries = new ArrayList<>(dfInfos.size());
+        Set<String> names = new HashSet<>();
+        long offset = 0;
+        for (DfInfoImpl dfInfo : dfInfos) {
+            Long size = dfInfo.getFileSize();
+            if (size == null || size < 0) {
+                return null;
+            }
+            String name = zipMapper.getFullEntryName(dsInfos.get(dfInfo.getDsId()), dfInfo);
+            if (!names.add(name)) {
+                continue;
+            }
+            Entry entry = new Entry();
+            entry.dfInfo = dfInfo;
+            entry.header = header(name, size, time);
+            entry.size = size;
+            entry.offset = offset;
+            entries.add(entry);
+            offset += entry.header.length + size + padding(size);
+        }
+        return new TarLayout(entries, offset + 2 * BLOCK);
+    }
+
+    /**
+     * The number of zero bytes needed after size bytes of data to complete a
+     * block.
+     */
+    static int padding(long size) {
+        return (int) ((BLOCK - size % BLOCK) % BLOCK);
+    }
+
+    /**
+     * The two zero blocks which mark the end of the archive
+     */
+    static byte[] end() {
+        return new byte[2 * BLOCK];
+    }
+
+    /**
+     * The header of a regular file, preceded by a pax extended header if the
+     * name or size cannot be held in the ustar header.
+     */
+    static byte[] header(String name, long size, long time) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int split = split(name, nameBytes);
+        StringBuilder pax = new StringBuilder();
+        if (split < 0) {
+            pax.append(paxRecord("path", name));
+        }
+        if (size > MAXSIZE) {
+            pax.append(paxRecord("size", Long.toString(size)));
+        }
+        byte[] header = ustar(split < 0 ? ascii(name, NAMELEN) : nameBytes, split, size > MAXSIZE ? 0 : size,
+                time / 1000, '0');
+        if (pax.length() == 0) {
+            return header;
+        }
+        byte[] paxData = pax.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] paxHeader = ustar(ascii("PaxHeaders/" + name, NAMELEN), 0, paxData.length, time / 1000, 'x');
+        byte[] result = new byte[paxHeader.length + paxData.length + padding(paxData.length) + header.length];
+        System.arraycopy(paxHeader, 0, result, 0, paxHeader.length);
+        System.arraycopy(paxData, 0, result, paxHeader.length, paxData.length);
+        System.arraycopy(header, 0, result, result.length - header.length, header.length);
+        return result;
+    }
+
+    /**
+     * Return 0 if an ASCII name fits in the name field, the position of the
+     * '/' at which it can be split between the prefix and name fields or -1
+     * if a pax header is needed.
+     */
+    private static int split(String name, byte[] nameBytes) {
+        if (nameBytes.length != name.length()) {
+            return -1;
+        }
+        if (nameBytes.length <= NAMELEN) {
+            return 0;
+        }
+        for (int i = nameBytes.length - NAMELEN - 1; i <= PREFIXLEN && i < nameBytes.length - 1; i++) {
+            if (i > 0 && nameBytes[i] == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A printable ASCII approximation of the name of at most len bytes for
+     * the ustar header when the real name is in the pax header.
+     */
+    private static byte[] ascii(String name, int len) {
+        byte[] bytes = new byte[Math.min(len, name.length())];
+        for (int i = 0; i < bytes.length; i++) {
+            char c = name.charAt(name.length() - bytes.length + i);
+            bytes[i] = c >= ' ' && c < 0x7f ? (byte) c : (byte) '_';
+        }
+        return bytes;
+    }
+
+    /**
+     * A pax record "length key=value\n" where the length includes itself.
+     */
+    private static String paxRecord(String key, String value) {
+        int n = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int len = n + Integer.toString(n).length();
+        if (Integer.toString(len).length() != Integer.toString(n).length()) {
+            len++;
+        }
+        return len + " " + key + "=" + value + "\n";
+    }
+
+    private static byte[] ustar(byte[] name, int split, long size, long mtime, char type) {
+        byte[] b = new byte[BLOCK];
+        if (split > 0) {
+            System.arraycopy(name, split + 1, b, 0, name.length - split - 1);
+            System.arraycopy(name, 0, b, 345, split);
+        } else {
+            System.arraycopy(name, 0, b, 0, name.length);
+        }
+        octal(b, 100, 8, 0644);
+        octal(b, 108, 8, 0);
+        octal(b, 116, 8, 0);
+        octal(b, 124, 12, size);
+        octal(b, 136, 12, mtime);
+        b[156] = (byte) type;
+        System.arraycopy("ustar".getBytes(StandardCharsets.US_ASCII), 0, b, 257, 5); // NUL terminated
+        b[263] = '0';
+        b[264] = '0';
+        for (int i = 148; i < 156; i++) {
+            b[i] = ' ';
+        }
+        long sum = 0;
+        for (byte x : b) {
+            sum += x & 0xff;
+        }
+        octal(b, 148, 7, sum);
+        return b;
+    }
+
+    /* Write the value as len - 1 octal digits followed by a NUL */
+    private static void octal(byte[] b, int offset, int len, long value) {
+        String s = Long.toOctalString(value);
+        int pad = len - 1 - s.length();
+        for (int i = 0; i < pad; i++) {
+            b[offset + i] = '0';
+        }
+        System.arraycopy(s.getBytes(StandardCharsets.US_ASCII), 0, b, offset + pad, s.length());
+        b[offset + len - 1] = 0;
+    }
+
+    private final List<Entry> entries;
+    private final long length;
+
+    private TarLayout(List<Entry> entries, long length) {
+        this.entries = entries;
+        this.length = length;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public List<DfInfoImpl> getDfInfos(long offset, Long count) {
+        long end = count == null ? length : Math.min(length, offset + count);
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        if (offset >= end) {
+            return dfInfos;
+        }
+        for (Entry entry : entries) {
+            long dataOffset = entry.offset + entry.header.length;
+            if (dataOffset >= end) {
+                break;
+            }
+            if (dataOffset + entry.size > offset && entry.size > 0) {
+                dfInfos.add(entry.dfInfo);
+            }
+        }
+        return dfInfos;
+    }
+
+    @Override
+    public void write(OutputStream output, long offset, Long count, DataSource source) throws IOException {
+        long end = count == null ? length : Math.min(length, offset + count);
+        long pos = 0;
+        for (Entry entry : entries) {
+            if (pos >= end) {
+                return;
+            }
+            pos = emit(output, entry.header, pos, offset, end);
+            long from = Math.max(pos, offset);
+            long to = Math.min(pos + entry.size, end);
+            if (from < to) {
+                source.write(entry.dfInfo, from - pos, to - from, output);
+            }
+            pos += entry.size;
+            pos = emit(output, new byte[padding(entry.size)], pos, offset, end);
+        }
+        emit(output, end(), pos, offset, end);
+    }
+
+    private static long emit(OutputStream output, byte[] bytes, long pos, long offset, long end)
+            throws IOException {
+        long from = Math.max(pos, offset);
+        long to = Math.min(pos + bytes.length, end);
+        if (from < to) {
+            output.write(bytes, (int) (from - pos), (int) (to - from));
+        }
+        return pos + bytes.length;
+    }
+
+}
@@ -5,10 +5,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -42,7 +39,14 @@ public class Tidier {
             // tasks
             Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
             try {
-                cleanPreparedDir(preparedDir, preparedCount);
+                List<String> expired = preparedStore.expire(preparedCount, preparedLifetimeMillis);
+                if (!expired.isEmpty()) {
+                    preparedCache.invalidate(expired);
+                    preparedDedup.invalidate(expired);
+                    zipCache.invalidatePrepared(expired);
+                    preparedStore.delete(expired);
+                    logger.debug("Expired " + expired.size() + " prepared files");
+                }
 
                 if (linkLifetimeMillis > 0) {
                     long deleteMillis = System.currentTimeMillis() - linkLifetimeMillis;
@@ -91,6 +95,7 @@ public class Tidier {
                                     logger.debug(query + " returns " + os.size() + " datasets");
                                     for (Object o : os) {
                                         DsInfoImpl dsInfoImpl = new DsInfoImpl((Dataset) o);
+                                        dsInfoCache.put(dsInfoImpl);
                                         logger.debug(
                                                 "Requesting archive of " + dsInfoImpl + " to recover main storage");
                                         fsm.queue(dsInfoImpl, DeferredOp.ARCHIVE);
@@ -201,38 +206,25 @@ public class Tidier {
         return andNeeded;
     }
 
-    static void cleanPreparedDir(Path preparedDir, int preparedCount) throws IOException {
+    @EJB
+    private FiniteStateMachine fsm;
 
-        Map<Long, Path> dateMap = new HashMap<>();
-        File[] files = preparedDir.toFile().listFiles();
-        int ndel = files.length - preparedCount;
-        if (ndel > 0) {
-            for (File file : files) {
-                Path path = file.toPath();
-                dateMap.put(file.lastModified(), path);
-            }
-            List<Long> dates = new ArrayList<>(dateMap.keySet());
-            Collections.sort(dates);
-            for (Long adate : dates) {
-                Path path = dateMap.get(adate);
-                Files.delete(path);
-                ndel--;
-                logger.debug("Deleted " + path);
-                if (ndel == 0) {
-                    break;
-                }
-            }
-        }
-    }
+    @EJB
+    private PreparedCache preparedCache;
 
     @EJB
-    private FiniteStateMachine fsm;
+    private PreparedStore preparedStore;
+
+    @EJB
+    private PreparedDedup preparedDedup;
+
+    @EJB
+    private ZipCache zipCache;
 
     private Path linkDir;
     private long linkLifetimeMillis;
     private MainStorageInterface mainStorage;
-
-    private Path preparedDir;
+    private DsInfoCache dsInfoCache;
 
     @EJB
     IcatReader reader;
@@ -243,6 +235,7 @@ public class Tidier {
     private Timer timer = new Timer();
     private boolean twoLevel;
     private int preparedCount;
+    private long preparedLifetimeMillis;
 
     private StorageUnit storageUnit;
 
@@ -253,6 +246,7 @@ public class Tidier {
     @PreDestroy
     public void exit() {
         timer.cancel();
+        PropertyHandler.getInstance().shutdownPools();
         logger.info("Tidier stopped");
     }
 
@@ -262,14 +256,14 @@ public class Tidier {
             PropertyHandler propertyHandler = PropertyHandler.getInstance();
             sizeCheckIntervalMillis = propertyHandler.getSizeCheckIntervalMillis();
             preparedCount = propertyHandler.getPreparedCount();
-            preparedDir = propertyHandler.getCacheDir().resolve("prepared");
-            Files.createDirectories(preparedDir);
+            preparedLifetimeMillis = propertyHandler.getPreparedLifetimeMillis();
             linkDir = propertyHandler.getCacheDir().resolve("link");
             Files.createDirectories(linkDir);
             linkLifetimeMillis = propertyHandler.getLinkLifetimeMillis();
             mainStorage = propertyHandler.getMainStorage();
             twoLevel = propertyHandler.getArchiveStorage() != null;
             key = propertyHandler.getKey();
+            dsInfoCache = propertyHandler.getDsInfoCache();
             if (twoLevel) {
                 mainStorage = propertyHandler.getMainStorage();
                 startArchivingLevel = propertyHandler.getStartArchivingLevel();
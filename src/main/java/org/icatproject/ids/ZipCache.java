@@ -0,0 +1,389 @@
+package org.icatproject.ids;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.ejb.Singleton;
+import jakarta.json.stream.JsonGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk cache of the archives built for prepared downloads, so that a
+ * popular preparedId is only archived once. The archive is captured while it
+ * is streamed to the first client asking for the whole of it and later
+ * requests are served from the file. The total size is capped with the least
+ * recently used archives being evicted first.
+ *
+ * Entries are keyed by the preparedId, whose selection never changes. They
+ * are dropped when the preparedId expires and when a dataset whose data they
+ * hold is modified through this IDS. Changes made to the data in any other
+ * way are not seen.
+ */
+@Singleton
+public class ZipCache {
+
+    /**
+     * A cached zip which is being read. It is not deleted until it has been
+     * released.
+     */
+    public class Hit implements AutoCloseable {
+        private final Entry entry;
+        private boolean isValid = true;
+
+        private Hit(Entry entry) {
+            this.entry = entry;
+        }
+
+        public Path getPath() {
+            return entry.path;
+        }
+
+        public long getSize() {
+            return entry.size;
+        }
+
+        public void release() {
+            synchronized (entries) {
+                if (isValid) {
+                    isValid = false;
+                    entry.users--;
+                    if (entry.removed && entry.users == 0) {
+                        delete(entry.path);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    /**
+     * Captures a zip as it is written to a client. Unless it is committed
+     * after the whole zip has been written nothing is added to the cache.
+     */
+    public class Builder {
+        private final String key;
+        private final Set<Long> dsIds;
+        private final Path tmp;
+        private OutputStream file;
+        private long size;
+        private boolean stale;
+
+        private Builder(String key, Set<Long> dsIds, Path tmp) throws IOException {
+            this.key = key;
+            this.dsIds = dsIds;
+            this.tmp = tmp;
+            file = new BufferedOutputStream(Files.newOutputStream(tmp));
+        }
+
+        /**
+         * Wrap the stream to the client so that whatever is written to it is
+         * also written to the cache. Failure to write to the cache is logged
+         * and does not affect the client.
+         */
+        public OutputStream wrap(OutputStream output) {
+            return new FilterOutputStream(output) {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    capture(b, off, len);
+                }
+            };
+        }
+
+        private void capture(byte[] b, int off, int len) {
+            if (file == null) {
+                return;
+            }
+            size += len;
+            if (size > maxBytes) {
+                logger.debug("Zip for " + key + " is too large to cache");
+                abort();
+                return;
+            }
+            try {
+                file.write(b, off, len);
+            } catch (IOException e) {
+                logger.warn("Failed to cache zip for " + key + ": " + e.getMessage());
+                abort();
+            }
+        }
+
+        /**
+         * Add the zip to the cache now that it is complete.
+         */
+        public void commit() {
+            if (file == null) {
+                return;
+            }
+            try {
+                file.close();
+                file = null;
+            } catch (IOException e) {
+                logger.warn("Failed to cache zip for " + key + ": " + e.getMessage());
+                abort();
+                return;
+            }
+            synchronized (entries) {
+                building.remove(key);
+                if (stale || entries.containsKey(key)) {
+                    delete(tmp);
+                    return;
+                }
+                Entry entry = new Entry();
+                entry.key = key;
+                entry.path = dir.resolve(key + ".data");
+                entry.size = size;
+                entry.dsIds = dsIds;
+                try {
+                    Files.move(tmp, entry.path, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    logger.warn("Failed to cache zip for " + key + ": " + e.getMessage());
+                    delete(tmp);
+                    return;
+                }
+                entries.put(key, entry);
+                totalBytes += size;
+                logger.debug("Cached zip for " + key + " of " + size + " bytes");
+                evict();
+            }
+        }
+
+        /**
+         * Give up on caching the zip.
+         */
+        public void abort() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                file = null;
+            }
+            synchronized (entries) {
+                building.remove(key);
+            }
+            delete(tmp);
+        }
+    }
+
+    private static class Entry {
+        private String key;
+        private Path path;
+        private long size;
+        private Set<Long> dsIds;
+        private int users;
+        private boolean removed;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ZipCache.class);
+
+    private Path dir;
+    private long maxBytes;
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /* In order of access so that the first is the least recently used */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Builder> building = new HashMap<>();
+
+    @PostConstruct
+    private void init() {
+        PropertyHandler propertyHandler = PropertyHandler.getInstance();
+        long maxBytes = propertyHandler.getZipCacheMaxBytes();
+        if (maxBytes > 0) {
+            try {
+                configure(propertyHandler.getCacheDir().resolve("zip"), maxBytes);
+            } catch (IOException e) {
+                throw new RuntimeException("ZipCache reports " + e.getClass() + " " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Start with an empty cache in the directory, removing anything left
+     * there from before.
+     */
+    void configure(Path dir, long maxBytes) throws IOException {
+        Files.createDirectories(dir);
+        for (File file : dir.toFile().listFiles()) {
+            delete(file.toPath());
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        logger.info("Caching zips of prepared data in " + dir + " up to " + maxBytes + " bytes");
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Return the cached zip for the key, which must be released when it has
+     * been read, or null if there is none.
+     */
+    public Hit get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            entry.users++;
+            return new Hit(entry);
+        }
+    }
+
+    /**
+     * Return a Builder to capture the zip for the key or null if it is
+     * already cached or being captured or if caching is disabled.
+     *
+     * @param dsIds the datasets holding the data in the zip
+     */
+    public Builder build(String key, Set<Long> dsIds) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (entries) {
+            if (entries.containsKey(key) || building.containsKey(key)) {
+                return null;
+            }
+            try {
+                Builder builder = new Builder(key, new HashSet<>(dsIds), Files.createTempFile(dir, "tmp.", ".data"));
+                building.put(key, builder);
+                return builder;
+            } catch (IOException e) {
+                logger.warn("Unable to start caching zip for " + key + ": " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Drop the zips holding data from any of the datasets as they have been
+     * modified.
+     */
+    public void invalidate(Collection<Long> dsIds) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            Iterator<Entry> iter = entries.values().iterator();
+            while (iter.hasNext()) {
+                Entry entry = iter.next();
+                if (!Collections.disjoint(entry.dsIds, dsIds)) {
+                    iter.remove();
+                    remove(entry);
+                    invalidations++;
+                    logger.debug("Dropped cached zip " + entry.key + " as its data have been modified");
+                }
+            }
+            for (Builder builder : building.values()) {
+                if (!Collections.disjoint(builder.dsIds, dsIds)) {
+                    builder.stale = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the archives of preparedIds which have expired.
+     */
+    public void invalidatePrepared(Collection<String> preparedIds) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            for (String preparedId : preparedIds) {
+                Entry entry = entries.remove(preparedId);
+                if (entry != null) {
+                    remove(entry);
+                    invalidations++;
+                    logger.debug("Dropped cached archive " + preparedId + " as it has expired");
+                }
+                Builder builder = building.get(preparedId);
+                if (builder != null) {
+                    builder.stale = true;
+                }
+            }
+        }
+    }
+
+    /* Must be called holding the lock on entries */
+    private void evict() {
+        Iterator<Entry> iter = entries.values().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            Entry entry = iter.next();
+            iter.remove();
+            remove(entry);
+            evictions++;
+            logger.debug("Evicted cached zip " + entry.key);
+        }
+    }
+
+    /* Must be called holding the lock on entries */
+    private void remove(Entry entry) {
+        totalBytes -= entry.size;
+        entry.removed = true;
+        if (entry.users == 0) {
+            delete(entry.path);
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Failed to delete " + path + " " + e.getClass() + " " + e.getMessage());
+        }
+    }
+
+    long getTotalBytes() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * Write the statistics of the cache as an object with the given name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        synchronized (entries) {
+            gen.writeStartObject(name).write("enabled", isEnabled()).write("entries", entries.size())
+                    .write("bytes", totalBytes).write("maxBytes", maxBytes).write("hits", hits)
+                    .write("misses", misses).write("evictions", evictions).write("invalidations", invalidations)
+                    .writeEnd();
+        }
+    }
+
+}
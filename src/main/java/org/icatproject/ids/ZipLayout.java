@@ -0,0 +1,355 @@
+package org.icatproject.ids;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.icatproject.ids.plugin.DsInfo;
+import org.icatproject.ids.plugin.ZipMapperInterface;
+
+/**
+ * Precomputed layout of a zip file in which every entry is STORED.
+ *
+ * As the size and CRC of each datafile are recorded in ICAT the position of
+ * every header and of the data of every entry is known before anything is
+ * written. A download may then be resumed from any offset by going straight
+ * to the right entry and position within it rather than by generating the
+ * whole zip again and discarding the part before the offset. Zip64 records
+ * are written where the sizes, offsets or number of entries require them.
+ */
+class ZipLayout implements ArchiveLayout {
+
+    private static class Entry {
+        private DfInfoImpl dfInfo;
+        private byte[] name;
+        private long size;
+        private int crc;
+        private long offset;
+    }
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int ZIP64_ENDHDR = 56;
+    private static final int ZIP64_LOCHDR = 20;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    static final int USE_DATA_DESCRIPTOR = 0x8;
+    static final int USE_UTF8 = 0x800;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    /**
+     * Build the layout for the datafiles in the order in which they will be
+     * written. Entries whose name duplicates that of an earlier entry are left
+     * out just as ZipOutputStream would reject them. Returns null if the
+     * checksums in ICAT are not known to be CRC32 values or if the size or
+     * CRC of any datafile is not known.
+     *
+     * @param time              the modification time in milliseconds to
+     *                          record for every entry
+     * @param checksumsAreCrc32 whether the checksums recorded in ICAT may be
+     *                          trusted to be CRC32 values
+     */
+    static ZipLayout create(Map<Long, DsInfo> dsInfos, Collection<DfInfoImpl> dfInfos, ZipMapperInterface zipMapper,
+                            long time, boolean checksumsAreCrc32) {
+        if (!checksumsAreCrc32) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>(dfInfos.size());
+        Set<String> names = new HashSet<>();
+        long offset = 0;
+        for (DfInfoImpl dfInfo : dfInfos) {
+            Long size = dfInfo.getFileSize();
+            Long crc = parseCrc(dfInfo.getChecksum());
+            if (size == null || size < 0 || crc == null) {
+                return null;
+            }
+            String name = zipMapper.getFullEntryName(dsInfos.get(dfInfo.getDsId()), dfInfo);
+            if (!names.add(name)) {
+                continue;
+            }
+            Entry entry = new Entry();
+            entry.dfInfo = dfInfo;
+            entry.name = name.getBytes(StandardCharsets.UTF_8);
+            entry.size = size;
+            entry.crc = (int) crc.longValue();
+            entry.offset = offset;
+            entries.add(entry);
+            offset += localHeaderLength(entry) + size;
+        }
+        return new ZipLayout(entries, offset, dosTime(time));
+    }
+
+    /**
+     * The IDS records checksums as the hexadecimal representation of the
+     * CRC32 of the file. Other clients of ICAT may record other checksums so
+     * this is only to be used when the checksums are known to be CRC32 values.
+     */
+    static Long parseCrc(String checksum) {
+        if (checksum == null || checksum.isEmpty() || checksum.length() > 8) {
+            return null;
+        }
+        try {
+            return Long.parseLong(checksum, 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Convert a time in milliseconds to the MS-DOS time (low 16 bits) and date
+     * (high 16 bits) recorded in zip headers.
+     */
+    static int dosTime(long time) {
+        LocalDateTime ldt = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        int year = ldt.getYear();
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | ldt.getMonthValue() << 21 | ldt.getDayOfMonth() << 16 | ldt.getHour() << 11
+                | ldt.getMinute() << 5 | ldt.getSecond() >> 1;
+    }
+
+    private static int localHeaderLength(Entry entry) {
+        return LOCHDR + entry.name.length + (entry.size >= ZIP64_MAGIC ? 20 : 0);
+    }
+
+    private static int centralExtraLength(long csize, long size, long offset) {
+        int n = 0;
+        if (csize >= ZIP64_MAGIC || size >= ZIP64_MAGIC) {
+            n += 2;
+        }
+        if (offset >= ZIP64_MAGIC) {
+            n++;
+        }
+        return n == 0 ? 0 : 4 + 8 * n;
+    }
+
+    /**
+     * The central directory header of an entry with a Zip64 extra field if the
+     * sizes or the offset of its local header require one.
+     */
+    static byte[] centralHeader(byte[] name, int method, int flags, int dosTime, int crc, long csize, long size,
+                                long offset) {
+        boolean zip64Size = csize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+        boolean zip64Offset = offset >= ZIP64_MAGIC;
+        int extra = centralExtraLength(csize, size, offset);
+        int version = extra != 0 ? VERSION_ZIP64 : method == STORED ? VERSION_STORED : VERSION_DEFLATED;
+        ByteBuffer b = ByteBuffer.allocate(CENHDR + name.length + extra).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(CENSIG);
+        b.putShort((short) version);
+        b.putShort((short) version);
+        b.putShort((short) flags);
+        b.putShort((short) method);
+        b.putInt(dosTime);
+        b.putInt(crc);
+        b.putInt((int) (zip64Size ? ZIP64_MAGIC : csize));
+        b.putInt((int) (zip64Size ? ZIP64_MAGIC : size));
+        b.putShort((short) name.length);
+        b.putShort((short) extra);
+        b.putShort((short) 0); // comment length
+        b.putShort((short) 0); // disk number start
+        b.putShort((short) 0); // internal attributes
+        b.putInt(0); // external attributes
+        b.putInt((int) (zip64Offset ? ZIP64_MAGIC : offset));
+        b.put(name);
+        if (extra != 0) {
+            b.putShort((short) 1);
+            b.putShort((short) (extra - 4));
+            if (zip64Size) {
+                b.putLong(size);
+                b.putLong(csize);
+            }
+            if (zip64Offset) {
+                b.putLong(offset);
+            }
+        }
+        return b.array();
+    }
+
+    private static boolean isZip64End(long count, long centralDirectoryOffset, long centralDirectorySize) {
+        return count >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC
+                || centralDirectorySize >= ZIP64_MAGIC;
+    }
+
+    /**
+     * The end of central directory record preceded, if the number of entries
+     * or the size or offset of the central directory require them, by the
+     * Zip64 end record and its locator.
+     */
+    static byte[] end(long count, long centralDirectoryOffset, long centralDirectorySize) {
+        boolean zip64End = isZip64End(count, centralDirectoryOffset, centralDirectorySize);
+        ByteBuffer b = ByteBuffer.allocate((zip64End ? ZIP64_ENDHDR + ZIP64_LOCHDR : 0) + ENDHDR)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (zip64End) {
+            long zip64EndOffset = centralDirectoryOffset + centralDirectorySize;
+            b.putInt(ZIP64_ENDSIG);
+            b.putLong(ZIP64_ENDHDR - 12);
+            b.putShort((short) VERSION_ZIP64);
+            b.putShort((short) VERSION_ZIP64);
+            b.putInt(0); // number of this disk
+            b.putInt(0); // disk with the central directory
+            b.putLong(count);
+            b.putLong(count);
+            b.putLong(centralDirectorySize);
+            b.putLong(centralDirectoryOffset);
+
+            b.putInt(ZIP64_LOCSIG);
+            b.putInt(0); // disk with the zip64 end record
+            b.putLong(zip64EndOffset);
+            b.putInt(1); // total number of disks
+        }
+        b.putInt(ENDSIG);
+        b.putShort((short) 0); // number of this disk
+        b.putShort((short) 0); // disk with the central directory
+        b.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+        b.putShort((short) Math.min(count, ZIP64_MAGIC_COUNT));
+        b.putInt((int) Math.min(centralDirectorySize, ZIP64_MAGIC));
+        b.putInt((int) Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        b.putShort((short) 0); // comment length
+        return b.array();
+    }
+
+    private final List<Entry> entries;
+    private final long centralDirectoryOffset;
+    private final long centralDirectorySize;
+    private final long length;
+    private final int dosTime;
+
+    private ZipLayout(List<Entry> entries, long centralDirectoryOffset, int dosTime) {
+        this.entries = entries;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+        long size = 0;
+        for (Entry entry : entries) {
+            size += CENHDR + entry.name.length + centralExtraLength(entry.size, entry.size, entry.offset);
+        }
+        centralDirectorySize = size;
+        length = centralDirectoryOffset + centralDirectorySize
+                + (isZip64End(entries.size(), centralDirectoryOffset, centralDirectorySize)
+                        ? ZIP64_ENDHDR + ZIP64_LOCHDR : 0)
+                + ENDHDR;
+        this.dosTime = dosTime;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public List<DfInfoImpl> getDfInfos(long offset, Long count) {
+        long end = count == null ? length : Math.min(length, offset + count);
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        if (offset >= end) {
+            return dfInfos;
+        }
+        for (Entry entry : entries) {
+            long dataOffset = entry.offset + localHeaderLength(entry);
+            if (dataOffset >= end) {
+                break;
+            }
+            if (dataOffset + entry.size > offset && entry.size > 0) {
+                dfInfos.add(entry.dfInfo);
+            }
+        }
+        return dfInfos;
+    }
+
+    @Override
+    public Long getCrc(DfInfoImpl dfInfo, long position, long length) {
+        return position == 0 && length == dfInfo.getFileSize() ? parseCrc(dfInfo.getChecksum()) : null;
+    }
+
+    @Override
+    public void write(OutputStream output, long offset, Long count, DataSource source) throws IOException {
+        long end = count == null ? length : Math.min(length, offset + count);
+        long pos = 0;
+        for (Entry entry : entries) {
+            if (pos >= end) {
+                return;
+            }
+            pos = emit(output, localHeader(entry), pos, offset, end);
+            long from = Math.max(pos, offset);
+            long to = Math.min(pos + entry.size, end);
+            if (from < to) {
+                source.write(entry.dfInfo, from - pos, to - from, output);
+            }
+            pos += entry.size;
+        }
+        for (Entry entry : entries) {
+            if (pos >= end) {
+                return;
+            }
+            pos = emit(output, centralHeader(entry.name, STORED, USE_UTF8, dosTime, entry.crc, entry.size,
+                    entry.size, entry.offset), pos, offset, end);
+        }
+        emit(output, end(entries.size(), centralDirectoryOffset, centralDirectorySize), pos, offset, end);
+    }
+
+    private static long emit(OutputStream output, byte[] bytes, long pos, long offset, long end)
+            throws IOException {
+        long from = Math.max(pos, offset);
+        long to = Math.min(pos + bytes.length, end);
+        if (from < to) {
+            output.write(bytes, (int) (from - pos), (int) (to - from));
+        }
+        return pos + bytes.length;
+    }
+
+    private byte[] localHeader(Entry entry) {
+        return storedLocalHeader(entry.name, dosTime, entry.crc, entry.size);
+    }
+
+    /**
+     * The local header of a STORED entry, whose size and CRC are known before
+     * its data are written, with a Zip64 extra field if its size requires
+     * one.
+     */
+    static byte[] storedLocalHeader(byte[] name, int dosTime, int crc, long size) {
+        boolean zip64 = size >= ZIP64_MAGIC;
+        ByteBuffer b = ByteBuffer.allocate(LOCHDR + name.length + (zip64 ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(LOCSIG);
+        b.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_STORED));
+        b.putShort((short) USE_UTF8);
+        b.putShort((short) STORED);
+        b.putInt(dosTime);
+        b.putInt(crc);
+        b.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        b.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        b.putShort((short) name.length);
+        b.putShort((short) (zip64 ? 20 : 0));
+        b.put(name);
+        if (zip64) {
+            b.putShort((short) 1);
+            b.putShort((short) 16);
+            b.putLong(size);
+            b.putLong(size);
+        }
+        return b.array();
+    }
+
+}
@@ -0,0 +1,11 @@
+package org.icatproject.ids.exceptions;
+
+@SuppressWarnings("serial")
+public class RangeNotSatisfiableException extends IdsException {
+
+    public static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    public RangeNotSatisfiableException(String message) {
+        super(HTTP_RANGE_NOT_SATISFIABLE, message);
+    }
+}
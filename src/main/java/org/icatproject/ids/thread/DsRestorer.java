@@ -16,6 +16,7 @@ import org.slf4j.LoggerFactory;
 
 import org.icatproject.Datafile;
 import org.icatproject.Dataset;
+import org.icatproject.ids.BufferPool;
 import org.icatproject.ids.FiniteStateMachine;
 import org.icatproject.ids.IcatReader;
 import org.icatproject.ids.IdsBean;
@@ -93,7 +94,8 @@ public class DsRestorer implements Runnable {
             // Now split file and store it locally
             logger.debug("Unpacking dataset " + dsInfo.getInvId() + "/" + dsInfo.getDsId() + " with " + n
                     + " files of total size " + size);
-            ZipInputStream zis = new ZipInputStream(Files.newInputStream(datasetCachePath));
+            ZipInputStream zis = new ZipInputStream(
+                    BufferPool.getInstance().bufferedInputStream(Files.newInputStream(datasetCachePath)));
             ZipEntry ze = zis.getNextEntry();
             Set<String> seen = new HashSet<>();
             while (ze != null) {
@@ -14,6 +14,7 @@ import org.slf4j.LoggerFactory;
 
 import org.icatproject.Datafile;
 import org.icatproject.Dataset;
+import org.icatproject.ids.BufferPool;
 import org.icatproject.ids.DfInfoImpl;
 import org.icatproject.ids.FiniteStateMachine;
 import org.icatproject.ids.IcatReader;
@@ -31,7 +32,6 @@ import org.icatproject.ids.plugin.ZipMapperInterface;
 public class DsWriter implements Runnable {
 
     private final static Logger logger = LoggerFactory.getLogger(DsWriter.class);
-    private static final int BUFSIZ = 1024;
     private DsInfo dsInfo;
 
     private FiniteStateMachine fsm;
@@ -67,33 +67,37 @@ public class DsWriter implements Runnable {
                 List<Datafile> datafiles = ((Dataset) reader.get("Dataset INCLUDE Datafile", dsInfo.getDsId()))
                         .getDatafiles();
 
-                ZipOutputStream zos = new ZipOutputStream(
-                        Files.newOutputStream(datasetCachePath, StandardOpenOption.CREATE));
-                for (Datafile datafile : datafiles) {
-                    if (datafile.getLocation() == null) {
-                        continue;
-                    }
-                    String location = IdsBean.getLocation(datafile.getId(), datafile.getLocation());
-                    InputStream is = null;
-                    try {
-                        zos.putNextEntry(new ZipEntry(
-                                zipMapper.getFullEntryName(dsInfo, new DfInfoImpl(datafile.getId(), datafile.getName(),
-                                        location, datafile.getCreateId(), datafile.getModId(), 0L))));
-                        is = mainStorageInterface.get(location, datafile.getCreateId(), datafile.getModId());
-                        int bytesRead = 0;
-                        byte[] buffer = new byte[BUFSIZ];
-                        while ((bytesRead = is.read(buffer)) > 0) {
-                            zos.write(buffer, 0, bytesRead);
+                BufferPool bufferPool = BufferPool.getInstance();
+                byte[] buffer = bufferPool.acquire();
+                try (ZipOutputStream zos = new ZipOutputStream(bufferPool
+                        .bufferedOutputStream(Files.newOutputStream(datasetCachePath, StandardOpenOption.CREATE)))) {
+                    for (Datafile datafile : datafiles) {
+                        if (datafile.getLocation() == null) {
+                            continue;
                         }
-                    } catch (ZipException e) {
-                        logger.debug("Skipping duplicate location " + location);
-                    }
-                    zos.closeEntry();
-                    if (is != null) {
-                        is.close();
+                        String location = IdsBean.getLocation(datafile.getId(), datafile.getLocation());
+                        InputStream is = null;
+                        try {
+                            zos.putNextEntry(new ZipEntry(zipMapper.getFullEntryName(dsInfo,
+                                    new DfInfoImpl(datafile.getId(), datafile.getName(), location,
+                                            datafile.getCreateId(), datafile.getModId(), 0L))));
+                            is = mainStorageInterface.get(location, datafile.getCreateId(), datafile.getModId());
+                            int bytesRead = 0;
+                            while ((bytesRead = is.read(buffer)) > 0) {
+                                zos.write(buffer, 0, bytesRead);
+                            }
+                        } catch (ZipException e) {
+                            logger.debug("Skipping duplicate location " + location);
+                        } finally {
+                            if (is != null) {
+                                is.close();
+                            }
+                        }
+                        zos.closeEntry();
                     }
+                } finally {
+                    bufferPool.release(buffer);
                 }
-                zos.close();
 
                 InputStream is = Files.newInputStream(datasetCachePath);
                 archiveStorageInterface.put(dsInfo, is);
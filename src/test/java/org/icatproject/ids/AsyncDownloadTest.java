@@ -0,0 +1,242 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.ext.RuntimeDelegate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.icatproject.ids.exceptions.InternalException;
+
+public class AsyncDownloadTest {
+
+    /*
+     * Accepts one write in three before it is not ready, and then tells the
+     * listener from another thread that it is, as a container would
+     */
+    private static class Output extends ServletOutputStream {
+
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private WriteListener listener;
+        private int calls;
+
+        @Override
+        public synchronized boolean isReady() {
+            if (++calls % 3 == 0) {
+                wake();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            this.listener = listener;
+            wake();
+        }
+
+        private void wake() {
+            new Thread(() -> {
+                try {
+                    listener.onWritePossible();
+                } catch (IOException e) {
+                    listener.onError(e);
+                }
+            }).start();
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            data.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            data.write(b, off, len);
+        }
+    }
+
+    private static class Source implements AsyncDownload.Source {
+
+        private final InputStream content;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private IOException failure;
+
+        Source(InputStream content) {
+            this.content = content;
+        }
+
+        @Override
+        public InputStream openContent() throws IOException {
+            if (content == null) {
+                throw new IOException("Gone");
+            }
+            return content;
+        }
+
+        @Override
+        public void done(IOException e) {
+            failure = e;
+            done.countDown();
+        }
+    }
+
+    private ExecutorService readers;
+    private BufferPool bufferPool;
+    private Output output;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private AsyncContext context;
+    private AsyncResponse asyncResponse;
+    private CountDownLatch completed;
+    private Response ended;
+    private Response.ResponseBuilder endedBuilder;
+
+    @Before
+    public void setup() throws Exception {
+        readers = Executors.newFixedThreadPool(2);
+        bufferPool = new BufferPool(1000, 4);
+        output = new Output();
+        completed = new CountDownLatch(1);
+        context = mock(AsyncContext.class);
+        request = mock(HttpServletRequest.class);
+        when(request.isAsyncStarted()).thenReturn(true);
+        when(request.getAsyncContext()).thenReturn(context);
+        response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(output);
+        asyncResponse = mock(AsyncResponse.class);
+        doAnswer(invocation -> {
+            completed.countDown();
+            return true;
+        }).when(asyncResponse).resume(any(Object.class));
+        doAnswer(invocation -> {
+            completed.countDown();
+            return true;
+        }).when(asyncResponse).resume(any(Throwable.class));
+
+        /* The response without an entity with which the asyncResponse is resumed at the end */
+        ended = mock(Response.class);
+        endedBuilder = mock(Response.ResponseBuilder.class, RETURNS_SELF);
+        when(endedBuilder.build()).thenReturn(ended);
+        RuntimeDelegate delegate = mock(RuntimeDelegate.class);
+        when(delegate.createResponseBuilder()).thenReturn(endedBuilder);
+        RuntimeDelegate.setInstance(delegate);
+    }
+
+    @After
+    public void shutdown() {
+        readers.shutdownNow();
+        RuntimeDelegate.setInstance(null);
+    }
+
+    private Response built(Object entity) {
+        Response built = mock(Response.class);
+        when(built.getEntity()).thenReturn(entity);
+        when(built.getStatus()).thenReturn(200);
+        when(built.getStringHeaders()).thenReturn(new MultivaluedHashMap<>());
+        return built;
+    }
+
+    @Test
+    public void sent() throws Exception {
+        byte[] bytes = new byte[123456];
+        new Random(1).nextBytes(bytes);
+        Source source = new Source(new ByteArrayInputStream(bytes));
+        assertTrue(AsyncDownload.start(asyncResponse, request, response, built(source), bufferPool, readers));
+        assertTrue(source.done.await(10, TimeUnit.SECONDS));
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertNull(source.failure);
+        assertArrayEquals(bytes, output.data.toByteArray());
+        verify(response).setStatus(200);
+        verify(endedBuilder).status(200);
+        verify(asyncResponse).resume(ended);
+        verify(asyncResponse, never()).resume(any(Throwable.class));
+    }
+
+    @Test
+    public void readFailed() throws Exception {
+        InputStream failing = new InputStream() {
+            private int n;
+
+            @Override
+            public int read() throws IOException {
+                if (++n > 5000) {
+                    throw new IOException("Broken");
+                }
+                return 0;
+            }
+        };
+        when(response.isCommitted()).thenReturn(true);
+        Source source = new Source(failing);
+        assertTrue(AsyncDownload.start(asyncResponse, request, response, built(source), bufferPool, readers));
+        assertTrue(source.done.await(10, TimeUnit.SECONDS));
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals("Broken", source.failure.getMessage());
+        verify(response, never()).reset();
+        verify(asyncResponse).resume(ended);
+    }
+
+    @Test
+    public void failedBeforeSent() throws Exception {
+        InputStream failing = new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Broken");
+            }
+        };
+        Source source = new Source(failing);
+        assertTrue(AsyncDownload.start(asyncResponse, request, response, built(source), bufferPool, readers));
+        assertTrue(source.done.await(10, TimeUnit.SECONDS));
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals("Broken", source.failure.getMessage());
+        verify(response).reset();
+        verify(asyncResponse).resume(any(InternalException.class));
+    }
+
+    @Test
+    public void notStarted() throws Exception {
+        Source source = new Source(null);
+        assertTrue(AsyncDownload.start(asyncResponse, request, response, built(source), bufferPool, readers));
+        assertEquals(0, source.done.getCount());
+        verify(response).reset();
+        verify(asyncResponse).resume(any(InternalException.class));
+    }
+
+    @Test
+    public void notASource() throws Exception {
+        assertFalse(AsyncDownload.start(asyncResponse, request, response, built("data"), bufferPool, readers));
+        verify(response, never()).setStatus(200);
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reuse() throws Exception {
+        BufferPool pool = new BufferPool(16, 2);
+        byte[] a = pool.acquire();
+        byte[] b = pool.acquire();
+        byte[] c = pool.acquire();
+        assertEquals(16, a.length);
+        assertEquals(0, pool.getHits());
+        assertEquals(3, pool.getMisses());
+
+        pool.release(a);
+        pool.release(b);
+        pool.release(c); // Pool is full
+        pool.release(new byte[8]); // Wrong size
+        assertEquals(2, pool.getIdle());
+        assertEquals(2, pool.getDiscards());
+
+        assertSame(a, pool.acquire());
+        assertSame(b, pool.acquire());
+        assertEquals(2, pool.getHits());
+        assertEquals(0, pool.getIdle());
+    }
+
+    @Test
+    public void streams() throws Exception {
+        BufferPool pool = new BufferPool(16, 4);
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream in = pool.bufferedInputStream(new ByteArrayInputStream(data));
+             OutputStream out = pool.bufferedOutputStream(baos)) {
+            byte[] bytes = new byte[7];
+            int n;
+            while ((n = in.read(bytes)) >= 0) {
+                out.write(bytes, 0, n);
+            }
+            assertEquals(2, pool.getMisses());
+        }
+        assertArrayEquals(data, baos.toByteArray());
+        assertEquals(2, pool.getIdle());
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.icatproject.ids;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.icatproject.ids.exceptions.BadRequestException;
+
+public class ByteRangeTest {
+
+    @Test
+    public void parse() throws Exception {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99, 200-,-50");
+        assertEquals(3, ranges.size());
+        assertEquals("0-99", ranges.get(0).toString());
+        assertEquals((Long) 100L, ranges.get(0).getLength());
+        assertEquals("200-", ranges.get(1).toString());
+        assertNull(ranges.get(1).getLength());
+        assertEquals("-50", ranges.get(2).toString());
+        assertTrue(ranges.get(2).isSuffix());
+    }
+
+    @Test
+    public void resolve() throws Exception {
+        List<ByteRange> ranges = ByteRange.parse("bytes=10-20,90-200,-30,100-,-0");
+        assertEquals("10-20", ranges.get(0).resolve(100).toString());
+        assertEquals("90-99", ranges.get(1).resolve(100).toString());
+        assertEquals("70-99", ranges.get(2).resolve(100).toString());
+        assertEquals("0-19", ranges.get(2).resolve(20).toString());
+        assertNull(ranges.get(3).resolve(100));
+        assertNull(ranges.get(4).resolve(100));
+        assertEquals("bytes 90-99/100", ranges.get(1).resolve(100).getContentRange(100L));
+        assertEquals("bytes 10-20/*", ranges.get(0).getContentRange(null));
+    }
+
+    @Test
+    public void merge() throws Exception {
+        List<ByteRange> requested = ByteRange.parse("bytes=50-59,0-9,5-19,20-29,-5,90-");
+        assertEquals("[0-29, 50-59, 90-99]", String.valueOf(ByteRange.resolve(requested, 100, 3)));
+        assertNull(ByteRange.resolve(requested, 100, 2));
+
+        StringBuilder sb = new StringBuilder("bytes=0-");
+        for (int i = 0; i < 5000; i++) {
+            sb.append(",0-");
+        }
+        assertEquals("[0-99]", String.valueOf(ByteRange.resolve(ByteRange.parse(sb.toString()), 100, 1)));
+        assertTrue(ByteRange.resolve(ByteRange.parse("bytes=200-,-0"), 100, 1).isEmpty());
+    }
+
+    @Test
+    public void tooMany() throws Exception {
+        StringBuilder sb = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 17; i++) {
+            sb.append(',').append(2 * i).append('-').append(2 * i);
+        }
+        List<ByteRange> requested = ByteRange.parse(sb.toString());
+        assertEquals(17, ByteRange.resolve(requested, 100, 17).size());
+        assertNull(ByteRange.resolve(requested, 100, 16));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void badUnit() throws Exception {
+        ByteRange.parse("items=0-10");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void backwards() throws Exception {
+        ByteRange.parse("bytes=10-0");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void empty() throws Exception {
+        ByteRange.parse("bytes=-");
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class CompressionPolicyTest {
+
+    private static byte[] text(int length) {
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) ('a' + i % 7);
+        }
+        return text;
+    }
+
+    private static byte[] noise(int length) {
+        byte[] noise = new byte[length];
+        new Random(42).nextBytes(noise);
+        return noise;
+    }
+
+    @Test
+    public void extensions() throws Exception {
+        CompressionPolicy policy = new CompressionPolicy(new HashSet<>(Arrays.asList("gz", "JPG")), 0);
+        assertTrue(policy.isStored("ds/data.gz"));
+        assertTrue(policy.isStored("ds/image.jpg"));
+        assertTrue(policy.isStored("ds/IMAGE.JPG"));
+        assertFalse(policy.isStored("ds/data.txt"));
+        assertFalse(policy.isStored("ds/gz"));
+        assertFalse(policy.isStored("ds.gz/data"));
+        assertFalse(policy.isStored("ds/data.gz.txt"));
+
+        byte[] buffer = new byte[1024];
+        assertEquals(0, policy.sample("ds/data.txt", new ByteArrayInputStream(noise(100)), buffer));
+        assertTrue(policy.shouldDeflate("ds/data.txt", buffer, 0));
+        assertFalse(policy.shouldDeflate("ds/data.gz", buffer, 0));
+    }
+
+    @Test
+    public void sampling() throws Exception {
+        CompressionPolicy policy = new CompressionPolicy(new HashSet<>(Arrays.asList("gz")), 512);
+        byte[] buffer = new byte[1024];
+
+        assertEquals(0, policy.sample("ds/data.gz", new ByteArrayInputStream(text(2000)), buffer));
+
+        int length = policy.sample("ds/text", new ByteArrayInputStream(text(2000)), buffer);
+        assertEquals(512, length);
+        assertTrue(policy.shouldDeflate("ds/text", buffer, length));
+
+        length = policy.sample("ds/noise", new ByteArrayInputStream(noise(2000)), buffer);
+        assertEquals(512, length);
+        assertFalse(policy.shouldDeflate("ds/noise", buffer, length));
+
+        length = policy.sample("ds/short", new ByteArrayInputStream(noise(10)), buffer);
+        assertEquals(10, length);
+        assertFalse(policy.shouldDeflate("ds/short", buffer, length));
+
+        /* The sample is limited by the buffer */
+        assertEquals(100, policy.sample("ds/text", new ByteArrayInputStream(text(2000)), new byte[100]));
+    }
+
+    @Test
+    public void counts() throws Exception {
+        CompressionPolicy policy = new CompressionPolicy(new HashSet<>(), 0);
+        policy.count(true, 100);
+        policy.count(false, 30);
+        policy.count(true, 5);
+        assertEquals(105, policy.getBytesDeflated());
+        assertEquals(30, policy.getBytesStored());
+    }
+
+}
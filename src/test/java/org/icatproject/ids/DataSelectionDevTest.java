@@ -93,6 +93,9 @@ public class DataSelectionDevTest {
         JsonReader parser = Json.createReader(new ByteArrayInputStream(restIcat.getProperties().getBytes()));
         maxEntities = parser.readObject().getInt("maxEntities");
         when(mockedPropertyHandler.getMaxEntities()).thenReturn(maxEntities);
+        when(mockedPropertyHandler.getMaxIdsInQuery()).thenReturn(1000);
+        when(mockedPropertyHandler.getDsInfoCache()).thenReturn(new DsInfoCache(0, 0));
+        when(mockedPropertyHandler.getSessionCache()).thenReturn(new SessionCache(1, 0));
         when(mockedPropertyHandler.getIcatService()).thenReturn(icatService);
         when(mockedPropertyHandler.getRestIcat()).thenReturn(restIcat);
         when(mockedPropertyHandler.getReader()).thenReturn(readerCreds);
@@ -0,0 +1,189 @@
+package org.icatproject.ids;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Test;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.icatproject.ICAT;
+import org.icatproject.icat.client.IcatException;
+import org.icatproject.icat.client.IcatException.IcatExceptionType;
+import org.icatproject.icat.client.Session;
+import org.icatproject.ids.exceptions.InsufficientPrivilegesException;
+import org.icatproject.ids.exceptions.InternalException;
+import org.icatproject.ids.plugin.DsInfo;
+
+/**
+ * Resolves an investigation against a fake ICAT, which answers the REST
+ * queries of a DataSelection from datasets 100 to 119 where dataset 100 + n
+ * has n datafiles. With maxEntities of 4 both the datasets and the datafiles
+ * of the larger datasets are split into several queries.
+ */
+public class DataSelectionTest {
+
+    private static final Pattern BETWEEN = Pattern.compile("BETWEEN (\\d+) AND (\\d+)");
+    private static final Pattern DATASET = Pattern.compile("df\\.dataset\\.id = (\\d+)");
+    private static final Pattern LIMIT = Pattern.compile("LIMIT (\\d+), (\\d+)");
+
+    private ExecutorService pool;
+    private Long failingDataset;
+
+    @After
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    private String search(String query) throws IcatException {
+        if (query.startsWith("SELECT DISTINCT")) {
+            /* The datasets with datafiles, which are all but the first */
+            Matcher m = LIMIT.matcher(query);
+            m.find();
+            long offset = Long.parseLong(m.group(1));
+            long count = Long.parseLong(m.group(2));
+            StringBuilder sb = new StringBuilder("[");
+            for (long dsid = 101 + offset; dsid < Math.min(120, 101 + offset + count); dsid++) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append("[" + dsid + ",\"ds" + dsid + "\",null,1,\"inv\",\"visit\",1,\"fac\"]");
+            }
+            return sb.append(']').toString();
+        }
+        Matcher m = BETWEEN.matcher(query);
+        boolean between = m.find();
+        long from = between ? Long.parseLong(m.group(1)) : Long.MIN_VALUE;
+        long to = between ? Long.parseLong(m.group(2)) : Long.MAX_VALUE;
+        Set<Long> ids = new HashSet<>();
+        m = DATASET.matcher(query);
+        if (m.find()) {
+            long dsid = Long.parseLong(m.group(1));
+            if (failingDataset != null && failingDataset == dsid) {
+                throw new IcatException(IcatExceptionType.INSUFFICIENT_PRIVILEGES, "Dataset " + dsid);
+            }
+            for (long dfid = dsid * 1000 + 1; dfid <= dsid * 1000 + dsid - 100; dfid++) {
+                ids.add(dfid);
+            }
+        } else if (query.startsWith("SELECT inv.name")) {
+            return "[[\"inv\",\"visit\",1,\"fac\"]]";
+        } else {
+            for (long dsid = 100; dsid < 120; dsid++) {
+                ids.add(dsid);
+            }
+        }
+        ids.removeIf(id -> id < from || id > to);
+        if (query.startsWith("SELECT min")) {
+            long min = ids.stream().mapToLong(Long::longValue).min().orElse(0);
+            long max = ids.stream().mapToLong(Long::longValue).max().orElse(0);
+            return "[[" + min + "," + max + "," + ids.size() + "]]";
+        }
+        StringBuilder sb = new StringBuilder("[");
+        for (long id : ids) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            if (query.startsWith("SELECT ds.id")) {
+                sb.append("[" + id + ",\"ds" + id + "\",null]");
+            } else {
+                sb.append("[" + id + ",\"f" + id + "\",\"ds" + id / 1000 + "/f" + id + "\",\"c\",\"m\",10,null]");
+            }
+        }
+        return sb.append(']').toString();
+    }
+
+    private DataSelection select(int concurrentQueries) throws Exception {
+        if (concurrentQueries > 1) {
+            pool = Executors.newFixedThreadPool(concurrentQueries);
+        }
+        return select();
+    }
+
+    private DataSelection select() throws Exception {
+        return select(false);
+    }
+
+    private DataSelection select(boolean incremental) throws Exception {
+        Session session = mock(Session.class);
+        when(session.search(anyString())).thenAnswer(invocation -> search(invocation.getArgument(0)));
+        org.icatproject.icat.client.ICAT restIcat = mock(org.icatproject.icat.client.ICAT.class);
+        when(restIcat.getSession(anyString())).thenReturn(session);
+
+        PropertyHandler propertyHandler = mock(PropertyHandler.class);
+        when(propertyHandler.getIcatService()).thenReturn(mock(ICAT.class));
+        when(propertyHandler.getRestIcat()).thenReturn(restIcat);
+        when(propertyHandler.getMaxEntities()).thenReturn(4);
+        when(propertyHandler.getMaxIdsInQuery()).thenReturn(1000);
+        when(propertyHandler.getIcatQueryPool()).thenReturn(pool);
+        when(propertyHandler.getDsInfoCache()).thenReturn(new DsInfoCache(0, 0));
+        when(propertyHandler.getSessionCache()).thenReturn(new SessionCache(1, 0));
+
+        return new DataSelection(propertyHandler, mock(IcatReader.class), "sessionId", "1", null, null,
+                DataSelection.Returns.DATASETS_AND_DATAFILES, incremental);
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentMatchesSequential() throws Exception {
+        DataSelection sequential = select(1);
+        assertEquals(20, sequential.getDsInfo().size());
+        assertEquals(190, sequential.getDfInfo().size());
+        assertEquals(Set.of(100L), sequential.getEmptyDatasets());
+
+        DataSelection concurrent = select(4);
+        assertEquals(sequential.getDsInfo(), concurrent.getDsInfo());
+        assertEquals(sequential.getDfInfo(), concurrent.getDfInfo());
+        assertEquals(sequential.getEmptyDatasets(), concurrent.getEmptyDatasets());
+    }
+
+    @Test(timeout = 10000)
+    public void failingQuery() throws Exception {
+        failingDataset = 113L;
+        try {
+            select(4);
+            fail();
+        } catch (InsufficientPrivilegesException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void rejectedQuery() throws Exception {
+        pool = Executors.newFixedThreadPool(4);
+        pool.shutdown();
+        try {
+            select();
+            fail();
+        } catch (InternalException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void datasetsWithData() throws Exception {
+        DataSelection selection = select(true);
+        Set<Long> dsids = new HashSet<>();
+        for (DsInfo dsInfo : selection.getDatasetsWithData()) {
+            dsids.add(dsInfo.getDsId());
+        }
+        assertEquals(19, dsids.size());
+        Set<Long> resolved = new HashSet<>();
+        for (Set<DfInfoImpl> dfInfos = selection.nextDatafiles(); dfInfos != null; dfInfos = selection
+                .nextDatafiles()) {
+            for (DfInfoImpl dfInfo : dfInfos) {
+                resolved.add(dfInfo.getDsId());
+            }
+        }
+        assertEquals(resolved, dsids);
+    }
+
+}
@@ -0,0 +1,141 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class DfInfoSetTest {
+
+    private static void assertSame(DfInfoImpl expected, DfInfoImpl actual) {
+        assertEquals(expected.getDfId(), actual.getDfId());
+        assertEquals(expected.getDfName(), actual.getDfName());
+        assertEquals(expected.getDfLocation(), actual.getDfLocation());
+        assertEquals(expected.getCreateId(), actual.getCreateId());
+        assertEquals(expected.getModId(), actual.getModId());
+        assertEquals(expected.getDsId(), actual.getDsId());
+        assertEquals(expected.getFileSize(), actual.getFileSize());
+        assertEquals(expected.getChecksum(), actual.getChecksum());
+    }
+
+    private static List<DfInfoImpl> dfInfos() {
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        dfInfos.add(new DfInfoImpl(42L, "a.dat", "inv/ds1/a.dat", "fred", "fred", 1L, 100L, "crc1"));
+        dfInfos.add(new DfInfoImpl(7L, "b.dat", "inv/ds1/b.dat", "fred", "bill", 1L, null, null));
+        dfInfos.add(new DfInfoImpl(13L, "renamed", "inv/ds2/c.dat", "bill", "bill", 2L, 0L, "crc3"));
+        dfInfos.add(new DfInfoImpl(99L, "d", "d", null, null, 2L));
+        dfInfos.add(new DfInfoImpl(3L, "e", null, "fred", "fred", 3L, 5L, null));
+        return dfInfos;
+    }
+
+    @Test
+    public void sameAsTreeSet() {
+        List<DfInfoImpl> dfInfos = dfInfos();
+        TreeSet<DfInfoImpl> expected = new TreeSet<>(dfInfos);
+        DfInfoSet set = DfInfoSet.of(dfInfos);
+
+        assertEquals(expected.size(), set.size());
+        assertEquals(expected, set);
+        assertEquals(set, expected);
+        assertEquals(expected.hashCode(), set.hashCode());
+        Iterator<DfInfoImpl> iter = set.iterator();
+        for (DfInfoImpl dfInfo : expected) {
+            assertSame(dfInfo, iter.next());
+        }
+        assertFalse(iter.hasNext());
+
+        assertSame(expected.first(), set.first());
+        assertSame(expected.last(), set.last());
+        for (DfInfoImpl dfInfo : dfInfos) {
+            assertTrue(set.contains(dfInfo));
+        }
+        assertFalse(set.contains(new DfInfoImpl(8L, "x", "x", null, null, 1L)));
+        assertNull(set.comparator());
+    }
+
+    @Test
+    public void duplicates() {
+        List<DfInfoImpl> dfInfos = dfInfos();
+        dfInfos.addAll(dfInfos());
+        DfInfoSet set = DfInfoSet.of(dfInfos);
+        assertEquals(5, set.size());
+        assertEquals(new TreeSet<>(dfInfos), set);
+    }
+
+    @Test
+    public void manyUnsorted() {
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            long dfId = random.nextInt(3000);
+            dfInfos.add(new DfInfoImpl(dfId, "f\u00e9" + i, "inv/ds" + dfId % 7 + "/f" + i, "fred", "fred", dfId % 7,
+                    (long) i, Integer.toHexString(i)));
+        }
+        TreeSet<DfInfoImpl> expected = new TreeSet<>(dfInfos);
+        DfInfoSet set = DfInfoSet.of(dfInfos);
+        assertEquals(expected.size(), set.size());
+        Iterator<DfInfoImpl> iter = set.iterator();
+        for (DfInfoImpl dfInfo : expected) {
+            /* The first added of any repeated dfId is kept, as by a TreeSet */
+            assertSame(dfInfo, iter.next());
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void alreadySorted() {
+        DfInfoSet.Builder builder = new DfInfoSet.Builder(1);
+        for (DfInfoImpl dfInfo : new TreeSet<>(dfInfos())) {
+            builder.add(dfInfo);
+        }
+        DfInfoSet set = builder.build();
+        assertEquals(new TreeSet<>(dfInfos()), set);
+        assertEquals(0, DfInfoSet.of(new ArrayList<>()).size());
+    }
+
+    @Test
+    public void views() {
+        TreeSet<DfInfoImpl> expected = new TreeSet<>(dfInfos());
+        DfInfoSet set = DfInfoSet.of(dfInfos());
+        DfInfoImpl d7 = new DfInfoImpl(7L, null, null, null, null, 0L);
+        DfInfoImpl d50 = new DfInfoImpl(50L, null, null, null, null, 0L);
+
+        assertEquals(expected.headSet(d50), set.headSet(d50));
+        assertEquals(expected.tailSet(d7), set.tailSet(d7));
+        assertEquals(expected.subSet(d7, d50), set.subSet(d7, d50));
+        SortedSet<DfInfoImpl> sub = set.subSet(d7, d50);
+        assertEquals(3, sub.size());
+        assertEquals(Long.valueOf(7L), sub.first().getDfId());
+        assertEquals(Long.valueOf(42L), sub.last().getDfId());
+        assertEquals(Arrays.asList(7L), Arrays.asList(sub.headSet(new DfInfoImpl(13L, null, null, null, null,
+                0L)).first().getDfId()));
+        assertEquals(0, set.subSet(d50, d7).size());
+    }
+
+    @Test
+    public void smaller() {
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        for (long i = 0; i < 10000; i++) {
+            dfInfos.add(new DfInfoImpl(i, "file" + i, "inv/ds" + i / 100 + "/file" + i, "fred", "fred", i / 100,
+                    1000L, null));
+        }
+        Prepared prepared = new Prepared();
+        prepared.dfInfos = new TreeSet<>(dfInfos);
+        prepared.dsInfos = new java.util.TreeMap<>();
+        prepared.emptyDatasets = new java.util.HashSet<>();
+        long tree = PreparedCache.weight(prepared);
+        prepared.dfInfos = DfInfoSet.of(dfInfos);
+        long compact = PreparedCache.weight(prepared);
+        assertTrue(compact + " vs " + tree, compact * 2 < tree);
+    }
+
+}
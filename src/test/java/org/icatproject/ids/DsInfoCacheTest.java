@@ -0,0 +1,82 @@
+package org.icatproject.ids;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+import org.icatproject.ids.plugin.DsInfo;
+
+public class DsInfoCacheTest {
+
+    private int loads;
+
+    private DsInfo load(long dsId) {
+        loads++;
+        return new DsInfoImpl(dsId, "ds" + dsId, null, 10L, "inv", "visit", 1L, "fac");
+    }
+
+    @Test
+    public void hitsAndMisses() throws Exception {
+        DsInfoCache cache = new DsInfoCache(10, 60000);
+        DsInfo first = cache.get(1L, this::load);
+        assertSame(first, cache.get(1L, this::load));
+        cache.get(2L, this::load);
+        assertEquals(2, loads);
+        assertEquals(2, cache.getCount());
+    }
+
+    @Test
+    public void put() throws Exception {
+        DsInfoCache cache = new DsInfoCache(10, 60000);
+        DsInfo dsInfo = load(3L);
+        cache.put(dsInfo);
+        assertSame(dsInfo, cache.get(3L, this::load));
+        assertEquals(1, loads);
+    }
+
+    @Test
+    public void leastRecentlyUsedDropped() throws Exception {
+        DsInfoCache cache = new DsInfoCache(2, 60000);
+        cache.get(1L, this::load);
+        cache.get(2L, this::load);
+        cache.get(1L, this::load);
+        cache.get(3L, this::load);
+        assertEquals(2, cache.getCount());
+        cache.get(1L, this::load);
+        assertEquals(3, loads);
+        cache.get(2L, this::load);
+        assertEquals(4, loads);
+    }
+
+    @Test
+    public void expired() throws Exception {
+        DsInfoCache cache = new DsInfoCache(10, -1);
+        cache.get(1L, this::load);
+        cache.get(1L, this::load);
+        assertEquals(2, loads);
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        DsInfoCache cache = new DsInfoCache(10, 60000);
+        cache.get(1L, this::load);
+        cache.get(2L, this::load);
+        cache.invalidate(Arrays.asList(1L, 5L));
+        assertEquals(1, cache.getCount());
+        cache.get(1L, this::load);
+        cache.get(2L, this::load);
+        assertEquals(3, loads);
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        DsInfoCache cache = new DsInfoCache(0, 60000);
+        cache.get(1L, this::load);
+        cache.get(1L, this::load);
+        assertEquals(2, loads);
+        assertEquals(0, cache.getCount());
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.icatproject.ids;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import org.icatproject.ICAT;
+import org.icatproject.IcatException;
+import org.icatproject.IcatException_Exception;
+
+public class IcatPoolTest {
+
+    private interface Behaviour {
+        Object call(String method) throws Throwable;
+    }
+
+    private final AtomicInteger made = new AtomicInteger();
+
+    private ICAT port(Behaviour behaviour) {
+        made.incrementAndGet();
+        return (ICAT) Proxy.newProxyInstance(ICAT.class.getClassLoader(), new Class<?>[]{ICAT.class},
+                (proxy, method, args) -> behaviour.call(method.getName()));
+    }
+
+    @Test
+    public void portsReused() throws Exception {
+        IcatPool pool = new IcatPool(() -> port(m -> "fred"), 4, 0, 0);
+        ICAT icat = pool.getIcat();
+        for (int i = 0; i < 5; i++) {
+            assertEquals("fred", icat.getUserName("s"));
+        }
+        assertEquals(1, made.get());
+        assertEquals(1, pool.getPortCount());
+        assertEquals(5, pool.getOperation("getUserName").getCount());
+        assertEquals(5, pool.getWaits().getCount());
+    }
+
+    @Test
+    public void icatExceptionKeepsPort() throws Exception {
+        IcatPool pool = new IcatPool(() -> port(m -> {
+            throw new IcatException_Exception("no", new IcatException());
+        }), 4, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            try {
+                pool.getIcat().getUserName("s");
+                fail();
+            } catch (IcatException_Exception e) {
+                // expected
+            }
+        }
+        assertEquals(1, made.get());
+    }
+
+    @Test
+    public void failureDropsPort() throws Exception {
+        IcatPool pool = new IcatPool(() -> port(m -> {
+            throw new IllegalStateException("timed out");
+        }), 4, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            try {
+                pool.getIcat().getUserName("s");
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        assertEquals(3, made.get());
+        assertEquals(0, pool.getPortCount());
+    }
+
+    @Test
+    public void inFlightLimited() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger most = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        IcatPool pool = new IcatPool(() -> port(m -> {
+            most.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            release.await(10, TimeUnit.SECONDS);
+            inFlight.decrementAndGet();
+            return "fred";
+        }), 2, 0, 0);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    pool.getIcat().getUserName("s");
+                } catch (IcatException_Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (inFlight.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(2, inFlight.get());
+        release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(2, most.get());
+        assertTrue(pool.getPortCount() <= 2);
+        assertEquals(6, pool.getOperation("getUserName").getCount());
+    }
+
+    @Test
+    public void histogramBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(3);
+        histogram.record(60000);
+        assertEquals(2, histogram.getCount(0));
+        assertEquals(1, histogram.getCount(2));
+        assertEquals(1, histogram.getCount(LatencyHistogram.BOUNDS.length));
+        assertEquals(4, histogram.getCount());
+    }
+
+}
@@ -0,0 +1,229 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ParallelZipOutputStreamTest {
+
+    private ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private Map<String, byte[]> contents() {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        Random random = new Random(42);
+        contents.put("empty", new byte[0]);
+        contents.put("small", "Some small text".getBytes());
+        byte[] text = new byte[3 * ParallelZipOutputStream.BLOCK_SIZE + 1234];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(4));
+        }
+        contents.put("dir/text", text);
+        byte[] noise = new byte[ParallelZipOutputStream.BLOCK_SIZE];
+        random.nextBytes(noise);
+        contents.put("dir/noise", noise);
+        contents.put("dir/caf\u00e9", "accents".getBytes());
+        return contents;
+    }
+
+    private byte[] zip(Map<String, byte[]> contents, int threads) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(baos, executor, threads,
+                Deflater.DEFAULT_COMPRESSION, 1500000000000L)) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                zos.putNextEntry(entry.getKey());
+                byte[] data = entry.getValue();
+                /* Write in odd sized pieces to cross block boundaries */
+                for (int off = 0; off < data.length; off += 10007) {
+                    zos.write(data, off, Math.min(10007, data.length - off));
+                }
+                zos.closeEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void readWithZipInputStream() throws Exception {
+        Map<String, byte[]> contents = contents();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip(contents, 3)))) {
+            for (Map.Entry<String, byte[]> expected : contents.entrySet()) {
+                ZipEntry ze = zis.getNextEntry();
+                assertEquals(expected.getKey(), ze.getName());
+                assertArrayEquals(expected.getValue(), zis.readAllBytes());
+                assertEquals(expected.getValue().length, ze.getSize());
+            }
+            assertNull(zis.getNextEntry());
+        }
+    }
+
+    @Test
+    public void readWithZipFile() throws Exception {
+        Map<String, byte[]> contents = contents();
+        Path path = Files.createTempFile("parallel", ".zip");
+        try {
+            Files.write(path, zip(contents, 4));
+            try (ZipFile zipFile = new ZipFile(path.toFile())) {
+                assertEquals(contents.size(), zipFile.size());
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                for (Map.Entry<String, byte[]> expected : contents.entrySet()) {
+                    ZipEntry ze = entries.nextElement();
+                    assertEquals(expected.getKey(), ze.getName());
+                    assertEquals(ZipEntry.DEFLATED, ze.getMethod());
+                    assertEquals(expected.getValue().length, ze.getSize());
+                    CRC32 crc = new CRC32();
+                    crc.update(expected.getValue());
+                    assertEquals(crc.getValue(), ze.getCrc());
+                    assertArrayEquals(expected.getValue(), zipFile.getInputStream(ze).readAllBytes());
+                }
+                assertFalse(entries.hasMoreElements());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void sameOutputForAnyThreads() throws Exception {
+        Map<String, byte[]> contents = contents();
+        assertArrayEquals(zip(contents, 1), zip(contents, 4));
+    }
+
+    @Test
+    public void levelPerEntry() throws Exception {
+        Map<String, byte[]> contents = contents();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(baos, executor, 3,
+                Deflater.DEFAULT_COMPRESSION, 1500000000000L)) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                zos.putNextEntry(entry.getKey());
+                zos.setLevel(entry.getKey().equals("dir/noise") ? Deflater.NO_COMPRESSION
+                        : Deflater.DEFAULT_COMPRESSION);
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        }
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            for (Map.Entry<String, byte[]> expected : contents.entrySet()) {
+                ZipEntry ze = zis.getNextEntry();
+                assertEquals(expected.getKey(), ze.getName());
+                assertArrayEquals(expected.getValue(), zis.readAllBytes());
+                if (ze.getName().equals("dir/noise")) {
+                    /* Stored deflate blocks add only a few bytes */
+                    assertTrue(ze.getCompressedSize() < ze.getSize() + 64);
+                } else if (ze.getName().equals("dir/text")) {
+                    assertTrue(ze.getCompressedSize() < ze.getSize() / 2);
+                }
+            }
+            assertNull(zis.getNextEntry());
+        }
+    }
+
+    @Test
+    public void duplicate() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(baos, executor, 2,
+                Deflater.DEFAULT_COMPRESSION, System.currentTimeMillis())) {
+            zos.putNextEntry("a");
+            zos.write("first".getBytes());
+            try {
+                zos.putNextEntry("a");
+                fail("Duplicate accepted");
+            } catch (ZipException e) {
+                // Expected
+            }
+            zos.putNextEntry("b");
+            zos.write("second".getBytes());
+        }
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            assertEquals("a", zis.getNextEntry().getName());
+            assertEquals("first", new String(zis.readAllBytes()));
+            assertEquals("b", zis.getNextEntry().getName());
+            assertEquals("second", new String(zis.readAllBytes()));
+            assertNull(zis.getNextEntry());
+        }
+    }
+
+    @Test
+    public void storedEntries() throws Exception {
+        Map<String, byte[]> contents = contents();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(baos, executor, 3,
+                Deflater.DEFAULT_COMPRESSION, 1500000000000L)) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                byte[] data = entry.getValue();
+                if (entry.getKey().startsWith("dir/")) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    zos.putNextStoredEntry(entry.getKey(), data.length, crc.getValue());
+                } else {
+                    zos.putNextEntry(entry.getKey());
+                }
+                for (int off = 0; off < data.length; off += 10007) {
+                    zos.write(data, off, Math.min(10007, data.length - off));
+                }
+                zos.closeEntry();
+            }
+        }
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            for (Map.Entry<String, byte[]> expected : contents.entrySet()) {
+                ZipEntry ze = zis.getNextEntry();
+                assertEquals(expected.getKey(), ze.getName());
+                assertArrayEquals(expected.getValue(), zis.readAllBytes());
+            }
+            assertNull(zis.getNextEntry());
+        }
+        Path path = Files.createTempFile("parallel", ".zip");
+        try {
+            Files.write(path, baos.toByteArray());
+            try (ZipFile zipFile = new ZipFile(path.toFile())) {
+                for (Map.Entry<String, byte[]> expected : contents.entrySet()) {
+                    ZipEntry ze = zipFile.getEntry(expected.getKey());
+                    assertEquals(expected.getKey().startsWith("dir/") ? ZipEntry.STORED : ZipEntry.DEFLATED,
+                            ze.getMethod());
+                    assertArrayEquals(expected.getValue(), zipFile.getInputStream(ze).readAllBytes());
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void storedEntryWithWrongCrc() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(baos, executor, 2,
+                Deflater.DEFAULT_COMPRESSION, System.currentTimeMillis())) {
+            byte[] data = "Some data".getBytes();
+            zos.putNextStoredEntry("a", data.length, 12345L);
+            zos.write(data);
+            try {
+                zos.closeEntry();
+                fail("Wrong crc accepted");
+            } catch (ZipException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("invalid entry crc-32"));
+            }
+        }
+    }
+
+}
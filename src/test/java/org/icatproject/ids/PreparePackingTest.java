@@ -5,6 +5,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -18,12 +21,18 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Test;
 
+import org.icatproject.ids.exceptions.InternalException;
 import org.icatproject.ids.plugin.DsInfo;
 
 public class PreparePackingTest {
 
     @Test
     public void packAndUnpack() throws Exception {
+        packAndUnpack(false);
+        packAndUnpack(true);
+    }
+
+    private void packAndUnpack(boolean deflateFile) throws Exception {
         boolean zip = true;
         boolean compress = false;
         Map<Long, DsInfo> dsInfos = new HashMap<>();
@@ -34,7 +43,7 @@ public class PreparePackingTest {
         long dsid2 = 18L;
         long invId = 15L;
         long facilityId = 45L;
-        dfInfos.add(new DfInfoImpl(5L, "dfName", "dfLocation", "createId", "modId", dsid1));
+        dfInfos.add(new DfInfoImpl(5L, "dfName", "dfLocation", "createId", "modId", dsid1, 1234L, "3c5e0b51"));
 
         dfInfos.add(new DfInfoImpl(51L, "dfName2", null, "createId", "modId", dsid1));
 
@@ -48,20 +57,24 @@ public class PreparePackingTest {
 
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (OutputStream stream = new BufferedOutputStream(baos)) {
-            IdsBean.pack(stream, zip, compress, dsInfos, dfInfos, emptyDatasets);
+            IdsBean.pack(stream, zip, ArchiveFormat.TAR, compress, dsInfos, dfInfos, emptyDatasets, deflateFile);
         }
-        System.out.println(baos.toString());
         InputStream stream = new ByteArrayInputStream(baos.toByteArray());
         Prepared prepared = IdsBean.unpack(stream);
         assertTrue(prepared.zip);
+        assertEquals(ArchiveFormat.TAR, prepared.format);
         assertFalse(prepared.compress);
         for (DfInfoImpl dfInfo : prepared.dfInfos) {
             if (dfInfo.getDfId() == 5L) {
                 assertEquals("dfName", dfInfo.getDfName());
                 assertEquals("dfLocation", dfInfo.getDfLocation());
+                assertEquals((Long) 1234L, dfInfo.getFileSize());
+                assertEquals("3c5e0b51", dfInfo.getChecksum());
             } else if (dfInfo.getDfId() == 51L) {
                 assertEquals("dfName2", dfInfo.getDfName());
                 assertNull(dfInfo.getDfLocation());
+                assertNull(dfInfo.getFileSize());
+                assertNull(dfInfo.getChecksum());
             } else {
                 fail();
             }
@@ -93,4 +106,142 @@ public class PreparePackingTest {
         assertEquals(1, prepared.emptyDatasets.size());
         assertEquals((Long) dsid2, prepared.emptyDatasets.iterator().next());
     }
+
+    @Test
+    public void unpackLegacyJson() throws Exception {
+        String json = "{\"zip\":true,\"compress\":true,\"dsInfo\":[{\"dsId\":17,\"dsName\":\"dsName\","
+                + "\"facilityId\":45,\"facilityName\":\"facilityName\",\"invId\":15,\"invName\":\"invName\","
+                + "\"visitId\":\"visitId\",\"dsLocation\":\"dsLocation\"}],\"dfInfo\":[{\"dsId\":17,\"dfId\":5,"
+                + "\"dfName\":\"dfName\",\"createId\":\"createId\",\"modId\":\"modId\",\"dfLocation\":\"dfLocation\","
+                + "\"fileSize\":1234,\"checksum\":\"3c5e0b51\"},{\"dsId\":17,\"dfId\":51,\"dfName\":\"dfName2\","
+                + "\"createId\":\"createId\",\"modId\":\"modId\",\"dfLocation\":null}],\"emptyDs\":[]}";
+        Prepared prepared = IdsBean.unpack(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(prepared.zip);
+        assertEquals(ArchiveFormat.ZIP, prepared.format);
+        assertTrue(prepared.compress);
+        assertEquals(2, prepared.dfInfos.size());
+        DfInfoImpl first = prepared.dfInfos.first();
+        assertEquals(5L, (long) first.getDfId());
+        assertEquals("dfLocation", first.getDfLocation());
+        assertEquals((Long) 1234L, first.getFileSize());
+        assertNull(prepared.dfInfos.last().getDfLocation());
+        assertEquals("dsLocation", prepared.dsInfos.get(17L).getDsLocation());
+        assertTrue(prepared.emptyDatasets.isEmpty());
+    }
+
+    @Test
+    public void manyDatafiles() throws Exception {
+        Map<Long, DsInfo> dsInfos = new HashMap<>();
+        Set<DfInfoImpl> dfInfos = new HashSet<>();
+        for (long dsId = 1; dsId <= 10; dsId++) {
+            dsInfos.put(dsId, new DsInfoImpl(dsId, "ds" + dsId, "inv/ds" + dsId, 3L, "inv", "visit", 4L, "facility"));
+            for (long i = 0; i < 1000; i++) {
+                long dfId = dsId * 100000 + i * 7;
+                dfInfos.add(new DfInfoImpl(dfId, "df" + i + ".dat", "inv/ds" + dsId + "/df" + i + ".dat",
+                        "creator" + dsId % 2, "modifier", dsId, i * 1000, i % 3 == 0 ? null : Long.toHexString(i)));
+            }
+        }
+        for (boolean deflateFile : new boolean[] { false, true }) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            IdsBean.pack(baos, true, ArchiveFormat.ZIP, false, dsInfos, dfInfos, new HashSet<>(), deflateFile);
+            /* Far less than the json which took about 200 bytes per datafile */
+            assertTrue(baos.size() < dfInfos.size() * (deflateFile ? 10 : 30));
+
+            Prepared prepared = IdsBean.unpack(new ByteArrayInputStream(baos.toByteArray()));
+            assertEquals(dfInfos.size(), prepared.dfInfos.size());
+            for (DfInfoImpl dfInfo : prepared.dfInfos) {
+                long dsId = dfInfo.getDsId();
+                long i = (dfInfo.getDfId() - dsId * 100000) / 7;
+                assertEquals("df" + i + ".dat", dfInfo.getDfName());
+                assertEquals("inv/ds" + dsId + "/df" + i + ".dat", dfInfo.getDfLocation());
+                assertEquals("creator" + dsId % 2, dfInfo.getCreateId());
+                assertEquals("modifier", dfInfo.getModId());
+                assertEquals((Long) (i * 1000), dfInfo.getFileSize());
+                assertEquals(i % 3 == 0 ? null : Long.toHexString(i), dfInfo.getChecksum());
+            }
+            assertEquals(10, prepared.dsInfos.size());
+            assertEquals("inv/ds7", prepared.dsInfos.get(7L).getDsLocation());
+        }
+    }
+
+    @Test
+    public void cursor() throws Exception {
+        Map<Long, DsInfo> dsInfos = new HashMap<>();
+        Set<DfInfoImpl> dfInfos = new HashSet<>();
+        dsInfos.put(2L, new DsInfoImpl(2L, "ds2", "inv/ds2", 3L, "inv", "visit", 4L, "facility"));
+        for (long dfId = 100; dfId > 0; dfId -= 3) {
+            dfInfos.add(new DfInfoImpl(dfId, "df" + dfId, "inv/ds2/df" + dfId, "creator", "modifier", 2L));
+        }
+        Set<Long> emptyDatasets = new HashSet<>(Arrays.asList(5L, 6L));
+        for (boolean deflateFile : new boolean[] { false, true }) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            IdsBean.pack(baos, true, ArchiveFormat.TAR, true, dsInfos, dfInfos, emptyDatasets, deflateFile);
+            try (PreparedFile.Cursor cursor = PreparedFile
+                    .open(new ByteArrayInputStream(baos.toByteArray()))) {
+                assertTrue(cursor.isZip());
+                assertEquals(ArchiveFormat.TAR, cursor.getFormat());
+                assertTrue(cursor.isCompress());
+                assertEquals("inv/ds2", cursor.getDsInfos().get(2L).getDsLocation());
+                assertEquals(dfInfos.size(), cursor.getDfCount());
+                long last = 0;
+                int n = 0;
+                DfInfoImpl dfInfo;
+                while ((dfInfo = cursor.next()) != null) {
+                    assertTrue(dfInfo.getDfId() > last);
+                    last = dfInfo.getDfId();
+                    assertEquals("inv/ds2/df" + last, dfInfo.getDfLocation());
+                    n++;
+                }
+                assertEquals(dfInfos.size(), n);
+                assertNull(cursor.next());
+                assertEquals(emptyDatasets, cursor.readEmptyDatasets());
+            }
+        }
+    }
+
+    @Test
+    public void sizes() throws Exception {
+        Map<Long, DsInfo> dsInfos = new HashMap<>();
+        Set<DfInfoImpl> dfInfos = new HashSet<>();
+        for (long dsId = 1; dsId <= 3; dsId++) {
+            dsInfos.put(dsId, new DsInfoImpl(dsId, "ds" + dsId, "ds" + dsId, 3L, "inv", "visit", 4L, "facility"));
+        }
+        dfInfos.add(new DfInfoImpl(10L, "a", "ds1/a", "c", "m", 1L, 100L, null));
+        dfInfos.add(new DfInfoImpl(11L, "b", "ds1/b", "c", "m", 1L, 20L, null));
+        dfInfos.add(new DfInfoImpl(12L, "c", "ds2/c", "c", "m", 2L, 3L, null));
+        dfInfos.add(new DfInfoImpl(13L, "d", "ds2/d", "c", "m", 2L));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IdsBean.pack(baos, true, ArchiveFormat.ZIP, false, dsInfos, dfInfos, Collections.singleton(3L), false);
+
+        Prepared prepared = IdsBean.unpack(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals((Long) 123L, prepared.size);
+        assertEquals((Long) 120L, prepared.dsSizes.get(1L));
+        assertEquals((Long) 3L, prepared.dsSizes.get(2L));
+        assertEquals((Long) 0L, prepared.dsSizes.get(3L));
+
+        try (PreparedFile.Cursor cursor = PreparedFile.open(new ByteArrayInputStream(baos.toByteArray()))) {
+            assertEquals((Long) 123L, cursor.getSize());
+        }
+    }
+
+    @Test
+    public void version1() throws Exception {
+        /* An empty selection as written before sizes were recorded */
+        byte[] bytes = { 'I', 'D', 'S', 'P', 1, 0, 1, 2, 6, 'Z', 'I', 'P', 0, 0, 0, 0 };
+        Prepared prepared = IdsBean.unpack(new ByteArrayInputStream(bytes));
+        assertTrue(prepared.zip);
+        assertEquals(ArchiveFormat.ZIP, prepared.format);
+        assertTrue(prepared.dfInfos.isEmpty());
+        assertNull(prepared.size);
+        assertNull(prepared.dsSizes);
+    }
+
+    @Test(expected = InternalException.class)
+    public void unknownVersion() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IdsBean.pack(baos, true, ArchiveFormat.ZIP, false, new HashMap<>(), new HashSet<>(), new HashSet<>(), false);
+        byte[] bytes = baos.toByteArray();
+        bytes[4] = (byte) (PreparedFile.VERSION + 1);
+        IdsBean.unpack(new ByteArrayInputStream(bytes));
+    }
 }
@@ -0,0 +1,98 @@
+package org.icatproject.ids;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PreparedCacheTest {
+
+    private PreparedCache cache;
+
+    @Before
+    public void before() {
+        cache = new PreparedCache();
+    }
+
+    private Prepared prepared(int nDatafiles) {
+        Prepared prepared = new Prepared();
+        prepared.format = ArchiveFormat.ZIP;
+        prepared.dfInfos = new TreeSet<>();
+        for (long i = 0; i < nDatafiles; i++) {
+            prepared.dfInfos.add(new DfInfoImpl(i, "df" + i, "a/df" + i, "createId", "modId", 1L));
+        }
+        prepared.dsInfos = new TreeMap<>();
+        prepared.dsInfos.put(1L, new DsInfoImpl(1L, "ds", "a", 2L, "inv", "visit", 3L, "facility"));
+        prepared.emptyDatasets = new HashSet<>();
+        return prepared;
+    }
+
+    @Test
+    public void hitAndMiss() {
+        cache.configure(100000);
+        assertNull(cache.get("a"));
+        Prepared prepared = prepared(3);
+        cache.put("a", prepared);
+        assertSame(prepared, cache.get("a"));
+        assertEquals(PreparedCache.weight(prepared), cache.getTotalBytes());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void unmodifiable() {
+        cache.configure(100000);
+        Prepared prepared = prepared(3);
+        cache.put("a", prepared);
+        cache.get("a").dfInfos.clear();
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() {
+        long weight = PreparedCache.weight(prepared(10));
+        cache.configure(3 * weight);
+        cache.put("a", prepared(10));
+        cache.put("b", prepared(10));
+        cache.put("c", prepared(10));
+        cache.get("a");
+        cache.put("d", prepared(10));
+        assertNull(cache.get("b"));
+        for (String key : Arrays.asList("a", "c", "d")) {
+            assertEquals(key, 10, cache.get(key).dfInfos.size());
+        }
+        assertEquals(3 * weight, cache.getTotalBytes());
+    }
+
+    @Test
+    public void tooBig() {
+        cache.configure(PreparedCache.weight(prepared(10)) - 1);
+        cache.put("a", prepared(10));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void disabled() {
+        cache.configure(0);
+        cache.put("a", prepared(0));
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void invalidate() {
+        cache.configure(100000);
+        cache.put("a", prepared(1));
+        cache.put("b", prepared(1));
+        cache.invalidate(Arrays.asList("a", "x"));
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.get("b").dfInfos.size());
+        cache.invalidate(Collections.singleton("b"));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+}
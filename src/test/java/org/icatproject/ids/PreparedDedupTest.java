@@ -0,0 +1,80 @@
+package org.icatproject.ids;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PreparedDedupTest {
+
+    private PreparedDedup dedup;
+
+    private static final List<Long> none = Collections.emptyList();
+
+    @Before
+    public void before() {
+        dedup = new PreparedDedup();
+        dedup.configure(60000);
+    }
+
+    @Test
+    public void key() {
+        String key = PreparedDedup.key("fred", none, Arrays.asList(2L, 1L), Arrays.asList(5L), true, false,
+                ArchiveFormat.ZIP);
+        assertEquals(key, PreparedDedup.key("fred", none, Arrays.asList(1L, 2L, 1L), Arrays.asList(5L), true, false,
+                ArchiveFormat.ZIP));
+        assertEquals(64, key.length());
+
+        assertFalse(key.equals(PreparedDedup.key("bill", none, Arrays.asList(1L, 2L), Arrays.asList(5L), true,
+                false, ArchiveFormat.ZIP)));
+        assertFalse(key.equals(PreparedDedup.key("fred", Arrays.asList(1L, 2L), none, Arrays.asList(5L), true,
+                false, ArchiveFormat.ZIP)));
+        assertFalse(key.equals(PreparedDedup.key("fred", none, Arrays.asList(1L, 2L), Arrays.asList(5L), false,
+                false, ArchiveFormat.ZIP)));
+        assertFalse(key.equals(PreparedDedup.key("fred", none, Arrays.asList(1L, 2L), Arrays.asList(5L), true,
+                true, ArchiveFormat.ZIP)));
+        assertFalse(key.equals(PreparedDedup.key("fred", none, Arrays.asList(1L, 2L), Arrays.asList(5L), true,
+                false, ArchiveFormat.TAR)));
+        assertFalse(key.equals(PreparedDedup.key("fred", none, Arrays.asList(12L), none, true, false,
+                ArchiveFormat.ZIP)));
+    }
+
+    @Test
+    public void getAndPut() {
+        assertNull(dedup.get("k1"));
+        dedup.put("k1", "p1");
+        dedup.put("k2", "p2");
+        assertEquals("p1", dedup.get("k1"));
+        dedup.put("k1", "p3");
+        assertEquals("p3", dedup.get("k1"));
+        assertEquals(2, dedup.getCount());
+    }
+
+    @Test
+    public void expired() throws Exception {
+        dedup.configure(50);
+        dedup.put("k1", "p1");
+        Thread.sleep(100);
+        assertNull(dedup.get("k1"));
+        dedup.put("k2", "p2");
+        assertEquals(1, dedup.getCount());
+        assertEquals("p2", dedup.get("k2"));
+    }
+
+    @Test
+    public void invalidate() {
+        dedup.put("k1", "p1");
+        dedup.put("k2", "p2");
+        dedup.put("k3", "p1");
+        dedup.invalidate(Arrays.asList("p1", "p4"));
+        assertNull(dedup.get("k1"));
+        assertNull(dedup.get("k3"));
+        assertEquals("p2", dedup.get("k2"));
+    }
+
+}
@@ -0,0 +1,121 @@
+package org.icatproject.ids;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PreparedStoreTest {
+
+    private Path dir;
+    private PreparedStore store;
+
+    @Before
+    public void before() throws Exception {
+        dir = Files.createTempDirectory("prepared");
+        store = new PreparedStore();
+        store.configure(dir);
+    }
+
+    private String add() throws Exception {
+        String preparedId = UUID.randomUUID().toString();
+        Path tmp = store.createTempFile();
+        Files.write(tmp, new byte[] { 1, 2, 3 });
+        store.add(preparedId, tmp);
+        assertFalse(Files.exists(tmp));
+        return preparedId;
+    }
+
+    private void expire(int maxCount, long maxAgeMillis, String... expected) throws Exception {
+        List<String> expired = store.expire(maxCount, maxAgeMillis);
+        assertEquals(Arrays.asList(expected), expired);
+        store.delete(expired);
+        for (String preparedId : expected) {
+            assertFalse(Files.exists(store.resolve(preparedId)));
+        }
+    }
+
+    @Test
+    public void sharded() throws Exception {
+        String preparedId = add();
+        Path path = store.resolve(preparedId);
+        assertEquals(dir.resolve(preparedId.substring(0, 2)), path.getParent());
+        assertEquals(3, Files.size(path));
+    }
+
+    @Test
+    public void expireByCount() throws Exception {
+        String pa = add();
+        String pb = add();
+        String pc = add();
+        String pd = add();
+        String pe = add();
+        String pf = add();
+        expire(8, 0);
+        expire(4, 0, pa, pb);
+        expire(2, 0, pc, pd);
+        assertTrue(Files.exists(store.resolve(pe)));
+        assertTrue(Files.exists(store.resolve(pf)));
+        expire(0, 0, pe, pf);
+        assertEquals(0, store.getCount());
+    }
+
+    @Test
+    public void expireByAge() throws Exception {
+        String pa = add();
+        Thread.sleep(200);
+        String pb = add();
+        expire(10, 100, pa);
+        expire(10, 0);
+        Thread.sleep(200);
+        expire(10, 100, pb);
+    }
+
+    @Test
+    public void restart() throws Exception {
+        String pa = add();
+        String pb = add();
+        String pc = add();
+        expire(2, 0, pa);
+        /* Lost without being expired */
+        Files.delete(store.resolve(pb));
+
+        store = new PreparedStore();
+        store.configure(dir);
+        assertEquals(1, store.getCount());
+        String pd = add();
+        expire(1, 0, pc);
+        assertTrue(Files.exists(store.resolve(pd)));
+    }
+
+    @Test
+    public void migrate() throws Exception {
+        String old = UUID.randomUUID().toString();
+        String older = UUID.randomUUID().toString();
+        Files.write(dir.resolve(old), new byte[10]);
+        Files.write(dir.resolve(older), new byte[10]);
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(dir.resolve(older), FileTime.fromMillis(now - 20000));
+        Files.setLastModifiedTime(dir.resolve(old), FileTime.fromMillis(now - 10000));
+
+        store = new PreparedStore();
+        store.configure(dir);
+        assertFalse(Files.exists(dir.resolve(old)));
+        assertEquals(10, Files.size(store.resolve(old)));
+        String pc = add();
+        expire(10, 15000, older);
+        expire(1, 0, old);
+        assertEquals(Collections.emptyList(), store.expire(1, 0));
+        assertTrue(Files.exists(store.resolve(pc)));
+    }
+
+}
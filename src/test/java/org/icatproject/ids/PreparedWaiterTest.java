@@ -0,0 +1,171 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.TimeoutHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.icatproject.ids.exceptions.InternalException;
+
+public class PreparedWaiterTest {
+
+    /* Records what the call was resumed with */
+    private static class Recorder implements AsyncResponse {
+
+        private List<Object> resumed = new ArrayList<>();
+
+        public boolean resume(Object response) {
+            resumed.add(response);
+            return true;
+        }
+
+        public boolean resume(Throwable response) {
+            resumed.add(response);
+            return true;
+        }
+
+        public boolean cancel() {
+            return false;
+        }
+
+        public boolean cancel(int retryAfter) {
+            return false;
+        }
+
+        public boolean cancel(Date retryAfter) {
+            return false;
+        }
+
+        public boolean isSuspended() {
+            return resumed.isEmpty();
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return !resumed.isEmpty();
+        }
+
+        public boolean setTimeout(long time, TimeUnit unit) {
+            return true;
+        }
+
+        public void setTimeoutHandler(TimeoutHandler handler) {
+        }
+
+        public Collection<Class<?>> register(Class<?> callback) {
+            return null;
+        }
+
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            return null;
+        }
+
+        public Collection<Class<?>> register(Object callback) {
+            return null;
+        }
+
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            return null;
+        }
+    }
+
+    private static HashSet<Long> ids(Long... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+    @Test
+    public void nothingToWaitFor() {
+        Recorder recorder = new Recorder();
+        PreparedWaiter waiter = new PreparedWaiter(recorder, id -> false);
+        assertTrue(waiter.start(ids()));
+        assertEquals(Arrays.asList(true), recorder.resumed);
+        assertFalse(waiter.timeout());
+    }
+
+    @Test
+    public void restored() {
+        Recorder recorder = new Recorder();
+        PreparedWaiter waiter = new PreparedWaiter(recorder, id -> false);
+        assertFalse(waiter.start(ids(1L, 2L)));
+        assertFalse(waiter.changed(3L, true));
+        assertFalse(waiter.changed(1L, false));
+        assertTrue(recorder.resumed.isEmpty());
+        assertTrue(waiter.changed(2L, false));
+        assertEquals(Arrays.asList(true), recorder.resumed);
+        assertTrue(waiter.changed(2L, false));
+        assertEquals(1, recorder.resumed.size());
+    }
+
+    @Test
+    public void failed() {
+        Recorder recorder = new Recorder();
+        PreparedWaiter waiter = new PreparedWaiter(recorder, id -> false);
+        assertFalse(waiter.start(ids(1L, 2L)));
+        assertFalse(waiter.changed(1L, true));
+        assertTrue(waiter.changed(2L, false));
+        assertEquals(1, recorder.resumed.size());
+        assertTrue(recorder.resumed.get(0) instanceof InternalException);
+    }
+
+    @Test
+    public void changedWhileChecking() {
+        Recorder recorder = new Recorder();
+        PreparedWaiter waiter = new PreparedWaiter(recorder, id -> false);
+        assertFalse(waiter.changed(1L, false));
+        assertFalse(waiter.changed(5L, true));
+        assertFalse(waiter.start(ids(1L, 2L)));
+        assertTrue(waiter.changed(2L, false));
+        assertEquals(Arrays.asList(true), recorder.resumed);
+
+        recorder = new Recorder();
+        waiter = new PreparedWaiter(recorder, id -> false);
+        assertFalse(waiter.changed(1L, true));
+        assertTrue(waiter.start(ids(1L)));
+        assertTrue(recorder.resumed.get(0) instanceof InternalException);
+    }
+
+    @Test
+    public void archivedDuringWait() {
+        /* Dataset 1 was being archived when its restoration was queued */
+        Set<Long> queued = ids(1L);
+        Recorder recorder = new Recorder();
+        PreparedWaiter waiter = new PreparedWaiter(recorder, queued::contains);
+        assertFalse(waiter.changed(1L, false));
+        assertFalse(waiter.start(ids(1L, 2L)));
+        assertFalse(waiter.changed(2L, false));
+        assertFalse(waiter.changed(1L, false));
+        assertTrue(recorder.resumed.isEmpty());
+
+        queued.remove(1L);
+        assertTrue(waiter.changed(1L, false));
+        assertEquals(Arrays.asList(true), recorder.resumed);
+    }
+
+    @Test
+    public void timedOut() {
+        Recorder recorder = new Recorder();
+        PreparedWaiter waiter = new PreparedWaiter(recorder, id -> false);
+        assertFalse(waiter.start(ids(1L)));
+        assertTrue(waiter.timeout());
+        assertEquals(Arrays.asList(false), recorder.resumed);
+        assertTrue(waiter.changed(1L, false));
+        assertEquals(1, recorder.resumed.size());
+    }
+
+}
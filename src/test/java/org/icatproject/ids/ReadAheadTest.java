@@ -0,0 +1,100 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ReadAheadTest {
+
+    private ExecutorService executor = Executors.newCachedThreadPool();
+    private Set<InputStream> open = ConcurrentHashMap.newKeySet();
+
+    private List<DfInfoImpl> dfInfos(int n) {
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        for (long i = 0; i < n; i++) {
+            dfInfos.add(new DfInfoImpl(i, "df" + i, "loc" + i, "createId", "modId", 1L));
+        }
+        return dfInfos;
+    }
+
+    private InputStream open(DfInfoImpl dfInfo) throws IOException {
+        if (dfInfo.getDfLocation().equals("loc3")) {
+            throw new IOException("Failed to open loc3");
+        }
+        InputStream stream = new ByteArrayInputStream(content(dfInfo).getBytes()) {
+            @Override
+            public void close() throws IOException {
+                open.remove(this);
+            }
+        };
+        open.add(stream);
+        return stream;
+    }
+
+    private String content(DfInfoImpl dfInfo) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= dfInfo.getDfId(); i++) {
+            sb.append(dfInfo.getDfLocation());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void inOrder() throws Exception {
+        List<DfInfoImpl> dfInfos = dfInfos(3);
+        // Budget of 6 bytes per datafile so only the first is read completely
+        try (ReadAhead readAhead = new ReadAhead(dfInfos, executor, this::open, 2, 12)) {
+            for (DfInfoImpl dfInfo : dfInfos) {
+                try (InputStream stream = readAhead.next()) {
+                    assertEquals(content(dfInfo), new String(stream.readAllBytes()));
+                }
+            }
+        }
+        assertTrue(open.isEmpty());
+    }
+
+    @Test
+    public void skip() throws Exception {
+        List<DfInfoImpl> dfInfos = dfInfos(3);
+        try (ReadAhead readAhead = new ReadAhead(dfInfos, executor, this::open, 2, 4)) {
+            try (InputStream stream = readAhead.next()) {
+                assertEquals(3, IdsBean.skip(stream, 3));
+                assertEquals("0", new String(stream.readAllBytes()));
+            }
+            try (InputStream stream = readAhead.next()) {
+                assertEquals(4, IdsBean.skip(stream, 4));
+                assertEquals("loc1", new String(stream.readAllBytes()));
+            }
+        }
+        assertTrue(open.isEmpty());
+    }
+
+    @Test
+    public void failure() throws Exception {
+        List<DfInfoImpl> dfInfos = dfInfos(6);
+        try (ReadAhead readAhead = new ReadAhead(dfInfos, executor, this::open, 3, 1000)) {
+            for (int i = 0; i < 3; i++) {
+                readAhead.next().close();
+            }
+            try {
+                readAhead.next();
+                fail();
+            } catch (IOException e) {
+                assertEquals("Failed to open loc3", e.getMessage());
+            }
+        }
+        assertTrue(open.isEmpty());
+    }
+
+}
@@ -0,0 +1,120 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class SegmentInputStreamTest {
+
+    private int opened;
+
+    private SegmentInputStream.Opener opener(String text, long skip) {
+        return () -> {
+            opened++;
+            InputStream stream = new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+            stream.skip(skip);
+            return stream;
+        };
+    }
+
+    private static String readAll(InputStream stream, int chunk) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        byte[] b = new byte[chunk];
+        int n;
+        while ((n = stream.read(b)) >= 0) {
+            sb.append(new String(b, 0, n, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void segments() throws Exception {
+        for (int chunk : new int[] { 1, 3, 100 }) {
+            opened = 0;
+            SegmentInputStream content = new SegmentInputStream();
+            content.add("<".getBytes(StandardCharsets.UTF_8));
+            content.add(opener("Hello World", 6), 5L, true, "first");
+            content.add(new byte[0]);
+            content.add(opener("unused", 0), 0L, false, "empty");
+            content.add(opener("abcdef", 1), 3L, false, "part");
+            content.add(opener("to the end", 0), null, false, "rest");
+            content.add(">".getBytes(StandardCharsets.UTF_8));
+            assertEquals(0, opened);
+            assertEquals("<Worldbcdto the end>", readAll(content, chunk));
+            assertEquals(3, opened); // Not the one of length 0
+            assertEquals(-1, content.read());
+            content.close();
+        }
+    }
+
+    @Test
+    public void opensLazily() throws Exception {
+        SegmentInputStream content = new SegmentInputStream();
+        content.add(opener("abc", 0), 3L, true, "first");
+        content.add(opener("def", 0), 3L, true, "second");
+        assertEquals('a', content.read());
+        assertEquals(1, opened);
+        content.close();
+        assertEquals(1, opened);
+        assertEquals(-1, content.read());
+    }
+
+    @Test
+    public void tooShort() throws Exception {
+        SegmentInputStream content = new SegmentInputStream();
+        content.add(opener("abc", 0), 4L, true, "short");
+        try {
+            readAll(content, 10);
+            fail("No exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("short"));
+        }
+    }
+
+    @Test
+    public void tooLong() throws Exception {
+        SegmentInputStream content = new SegmentInputStream();
+        content.add(opener("abcd", 0), 3L, true, "long");
+        try {
+            readAll(content, 10);
+            fail("No exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("long"));
+        }
+
+        content = new SegmentInputStream();
+        content.add(opener("abcd", 0), 3L, false, "part");
+        assertEquals("abc", readAll(content, 10));
+    }
+
+    @Test
+    public void openFile() throws Exception {
+        Path path = Files.createTempFile("segment", ".dat");
+        try {
+            byte[] data = new byte[10000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            Files.write(path, data);
+            SegmentInputStream content = new SegmentInputStream();
+            content.add(() -> IdsBean.openFile(path, 9000), 1000L, true, path);
+            try (InputStream stream = content) {
+                byte[] expected = new byte[1000];
+                System.arraycopy(data, 9000, expected, 0, 1000);
+                assertArrayEquals(expected, stream.readAllBytes());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.icatproject.ids;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class SessionCacheTest {
+
+    @Test
+    public void allowed() {
+        SessionCache cache = new SessionCache(10, 60000);
+        assertFalse(cache.isAllowed("s1", "Dataset", 1L));
+        cache.allow("s1", "Dataset", 1L);
+        assertTrue(cache.isAllowed("s1", "Dataset", 1L));
+        assertFalse(cache.isAllowed("s1", "Datafile", 1L));
+        assertFalse(cache.isAllowed("s1", "Dataset", 2L));
+        assertFalse(cache.isAllowed("s2", "Dataset", 1L));
+    }
+
+    @Test
+    public void userName() {
+        SessionCache cache = new SessionCache(10, 60000);
+        assertNull(cache.getUserName("s1"));
+        cache.putUserName("s1", "db/fred");
+        assertEquals("db/fred", cache.getUserName("s1"));
+        assertNull(cache.getUserName("s2"));
+    }
+
+    @Test
+    public void flush() {
+        SessionCache cache = new SessionCache(10, 60000);
+        cache.allow("s1", "Dataset", 1L);
+        cache.putUserName("s1", "db/fred");
+        cache.allow("s2", "Dataset", 1L);
+        cache.flush("s1");
+        assertFalse(cache.isAllowed("s1", "Dataset", 1L));
+        assertNull(cache.getUserName("s1"));
+        assertTrue(cache.isAllowed("s2", "Dataset", 1L));
+    }
+
+    @Test
+    public void leastRecentlyUsedDropped() {
+        SessionCache cache = new SessionCache(2, 60000);
+        cache.allow("s1", "Dataset", 1L);
+        cache.allow("s2", "Dataset", 1L);
+        cache.isAllowed("s1", "Dataset", 1L);
+        cache.allow("s3", "Dataset", 1L);
+        assertEquals(2, cache.getCount());
+        assertTrue(cache.isAllowed("s1", "Dataset", 1L));
+        assertFalse(cache.isAllowed("s2", "Dataset", 1L));
+    }
+
+    @Test
+    public void disabled() {
+        SessionCache cache = new SessionCache(10, 0);
+        assertFalse(cache.isEnabled());
+        cache.allow("s1", "Dataset", 1L);
+        cache.putUserName("s1", "db/fred");
+        assertFalse(cache.isAllowed("s1", "Dataset", 1L));
+        assertNull(cache.getUserName("s1"));
+        assertEquals(0, cache.getCount());
+    }
+
+}
@@ -0,0 +1,162 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.icatproject.ids.plugin.DfInfo;
+import org.icatproject.ids.plugin.DsInfo;
+import org.icatproject.ids.plugin.ZipMapperInterface;
+
+public class TarLayoutTest {
+
+    private static ZipMapperInterface zipMapper = new ZipMapperInterface() {
+
+        @Override
+        public String getFullEntryName(DsInfo dsInfo, DfInfo dfInfo) {
+            return dsInfo.getDsName() + "/" + dfInfo.getDfName();
+        }
+
+        @Override
+        public String getFileName(String fullEntryName) {
+            return fullEntryName.substring(fullEntryName.indexOf('/') + 1);
+        }
+    };
+
+    private Map<Long, DsInfo> dsInfos = new HashMap<>();
+    private Map<Long, byte[]> contents = new HashMap<>();
+    private ArchiveLayout.DataSource source = (dfInfo, position, length, output) -> output
+            .write(contents.get(dfInfo.getDfId()), (int) position, (int) length);
+
+    private DfInfoImpl add(long dfId, String name, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        contents.put(dfId, bytes);
+        return new DfInfoImpl(dfId, name, "loc" + dfId, "createId", "modId", 1L, (long) bytes.length, null);
+    }
+
+    private byte[] write(TarLayout layout, long offset, Long count) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        layout.write(baos, offset, count, source);
+        return baos.toByteArray();
+    }
+
+    private static String string(byte[] tar, int offset, int len) {
+        int end = offset;
+        while (end < offset + len && tar[end] != 0) {
+            end++;
+        }
+        return new String(tar, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /* Read the entries of a tar file as a reader would */
+    private static Map<String, String> read(byte[] tar) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        int pos = 0;
+        String paxPath = null;
+        while (true) {
+            byte[] header = Arrays.copyOfRange(tar, pos, pos + 512);
+            if (Arrays.equals(header, new byte[512])) {
+                assertEquals(tar.length, pos + 1024);
+                assertArrayEquals(new byte[1024], Arrays.copyOfRange(tar, pos, tar.length));
+                return entries;
+            }
+            long sum = 0;
+            for (int i = 0; i < 512; i++) {
+                sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+            }
+            assertEquals(sum, Long.parseLong(string(header, 148, 8).trim(), 8));
+            assertEquals("ustar", string(header, 257, 6));
+            int size = Integer.parseInt(string(header, 124, 12), 8);
+            String data = new String(tar, pos + 512, size, StandardCharsets.UTF_8);
+            pos += 512 + (size + 511) / 512 * 512;
+            if (header[156] == 'x') {
+                for (String record : data.split("\n")) {
+                    String kv = record.substring(record.indexOf(' ') + 1);
+                    assertEquals(Integer.parseInt(record.substring(0, record.indexOf(' '))),
+                            record.getBytes(StandardCharsets.UTF_8).length + 1);
+                    if (kv.startsWith("path=")) {
+                        paxPath = kv.substring(5);
+                    }
+                }
+            } else {
+                assertEquals('0', header[156]);
+                String prefix = string(header, 345, 155);
+                String name = paxPath != null ? paxPath
+                        : prefix.isEmpty() ? string(header, 0, 100) : prefix + "/" + string(header, 0, 100);
+                entries.put(name, data);
+                paxPath = null;
+            }
+        }
+    }
+
+    @Test
+    public void layout() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds", "dsLocation", 2L, "inv", "visit", 3L, "facility"));
+        TreeSet<DfInfoImpl> dfInfos = new TreeSet<>();
+        String longDir = "d".repeat(120);
+        String longName = "n".repeat(120);
+        dfInfos.add(add(10L, "a", "Hello World"));
+        dfInfos.add(add(11L, "b", ""));
+        dfInfos.add(add(12L, "cé", "More text in a file"));
+        dfInfos.add(add(13L, "a", "Duplicate name"));
+        dfInfos.add(add(14L, longDir + "/e", "x".repeat(600)));
+        dfInfos.add(add(15L, longName, "Long name"));
+
+        TarLayout layout = TarLayout.create(dsInfos, dfInfos, zipMapper, 1500000000000L);
+        byte[] tar = write(layout, 0, null);
+        assertEquals(layout.getLength(), tar.length);
+        assertEquals(0, tar.length % 512);
+
+        Map<String, String> entries = read(tar);
+        assertEquals(Arrays.asList("ds/a", "ds/b", "ds/cé", "ds/" + longDir + "/e", "ds/" + longName),
+                Arrays.asList(entries.keySet().toArray()));
+        assertEquals("Hello World", entries.get("ds/a"));
+        assertEquals("", entries.get("ds/b"));
+        assertEquals("x".repeat(600), entries.get("ds/" + longDir + "/e"));
+        assertEquals("Long name", entries.get("ds/" + longName));
+
+        /* Every range must match the corresponding part of the whole */
+        for (int offset = 0; offset <= tar.length; offset += 97) {
+            assertArrayEquals(Arrays.copyOfRange(tar, offset, tar.length), write(layout, offset, null));
+            for (long count : new long[] { 0, 1, 511, 1000 }) {
+                int end = (int) Math.min(tar.length, offset + count);
+                assertArrayEquals(Arrays.copyOfRange(tar, offset, end), write(layout, offset, count));
+            }
+        }
+
+        List<DfInfoImpl> none = layout.getDfInfos(tar.length - 1024, null);
+        assertTrue(none.isEmpty());
+        assertEquals(1, layout.getDfInfos(512, 1L).size());
+    }
+
+    @Test
+    public void largeSize() throws Exception {
+        byte[] header = TarLayout.header("big", 10L * 1024 * 1024 * 1024, 0L);
+        assertEquals(3 * 512, header.length);
+        String pax = string(header, 512, 512);
+        assertEquals("20 size=10737418240\n", pax);
+        assertEquals("00000000000", string(header, 1024 + 124, 12));
+    }
+
+    @Test
+    public void unknownSize() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds", "dsLocation", 2L, "inv", "visit", 3L, "facility"));
+        TreeSet<DfInfoImpl> dfInfos = new TreeSet<>();
+        dfInfos.add(add(10L, "a", "Hello World"));
+        dfInfos.add(new DfInfoImpl(11L, "b", "loc11", "createId", "modId", 1L));
+        assertNull(TarLayout.create(dsInfos, dfInfos, zipMapper, 0L));
+    }
+
+}
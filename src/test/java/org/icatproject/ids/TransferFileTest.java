@@ -0,0 +1,68 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TransferFileTest {
+
+    private static Path path;
+    private static byte[] content;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31 + i / 256);
+        }
+        path = Files.createTempFile("transfer", ".dat");
+        Files.write(path, content);
+    }
+
+    @AfterClass
+    public static void afterClass() throws Exception {
+        Files.deleteIfExists(path);
+    }
+
+    private static byte[] transfer(long position, long count, long expected) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertEquals(expected, IdsBean.transferFile(path, position, count, baos));
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void whole() throws Exception {
+        assertArrayEquals(content, transfer(0, Long.MAX_VALUE, content.length));
+    }
+
+    @Test
+    public void offsetAndCount() throws Exception {
+        assertArrayEquals(Arrays.copyOfRange(content, 12345, 12345 + 5000), transfer(12345, 5000, 5000));
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 1), transfer(0, 1, 1));
+    }
+
+    @Test
+    public void toTheEnd() throws Exception {
+        assertArrayEquals(Arrays.copyOfRange(content, 99000, content.length), transfer(99000, Long.MAX_VALUE, 1000));
+        assertArrayEquals(Arrays.copyOfRange(content, 99990, content.length), transfer(99990, 50, 10));
+    }
+
+    @Test
+    public void beyondTheEnd() throws Exception {
+        assertEquals(0, transfer(content.length, 10, 0).length);
+        assertEquals(0, transfer(content.length + 1000, Long.MAX_VALUE, 0).length);
+    }
+
+    @Test
+    public void nothing() throws Exception {
+        assertEquals(0, transfer(10, 0, 0).length);
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZipCacheTest {
+
+    private Path dir;
+    private ZipCache cache;
+
+    @Before
+    public void before() throws Exception {
+        dir = Files.createTempDirectory("zipCache");
+        cache = new ZipCache();
+        cache.configure(dir, 100);
+    }
+
+    private void add(String key, int size, Long... dsIds) throws Exception {
+        ZipCache.Builder builder = cache.build(key, new TreeSet<>(Arrays.asList(dsIds)));
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        OutputStream out = builder.wrap(client);
+        for (int i = 0; i < size; i++) {
+            out.write(i);
+        }
+        builder.commit();
+        assertEquals(size, client.size());
+    }
+
+    private void assertCached(String key, boolean expected) {
+        ZipCache.Hit hit = cache.get(key);
+        assertEquals(key, expected, hit != null);
+        if (hit != null) {
+            hit.release();
+        }
+    }
+
+    @Test
+    public void captureAndServe() throws Exception {
+        add("a", 40, 1L);
+        assertNull(cache.build("a", Collections.singleton(1L)));
+        try (ZipCache.Hit hit = cache.get("a")) {
+            assertEquals(40, hit.getSize());
+            byte[] bytes = Files.readAllBytes(hit.getPath());
+            assertEquals(40, bytes.length);
+            assertEquals(39, bytes[39]);
+        }
+        assertCached("b", false);
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        add("a", 40, 1L);
+        add("b", 40, 2L);
+        assertCached("a", true); // Now b is the least recently used
+        add("c", 40, 3L);
+        assertCached("a", true);
+        assertCached("b", false);
+        assertCached("c", true);
+        assertEquals(80, cache.getTotalBytes());
+        assertEquals(2, dir.toFile().listFiles().length);
+    }
+
+    @Test
+    public void tooLarge() throws Exception {
+        add("a", 101, 1L);
+        assertCached("a", false);
+        assertEquals(0, dir.toFile().listFiles().length);
+    }
+
+    @Test
+    public void abort() throws Exception {
+        ZipCache.Builder builder = cache.build("a", Collections.singleton(1L));
+        builder.wrap(new ByteArrayOutputStream()).write(new byte[10]);
+        builder.abort();
+        assertCached("a", false);
+        assertEquals(0, dir.toFile().listFiles().length);
+        add("a", 10, 1L);
+        assertCached("a", true);
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        add("a", 10, 1L, 2L);
+        add("b", 10, 3L);
+        ZipCache.Hit hit = cache.get("a");
+        cache.invalidate(Collections.singleton(2L));
+        assertCached("a", false);
+        assertCached("b", true);
+
+        /* The file stays until the last reader has finished */
+        assertTrue(Files.exists(hit.getPath()));
+        hit.release();
+        assertFalse(Files.exists(hit.getPath()));
+
+        /* Data modified while the zip was being captured */
+        ZipCache.Builder builder = cache.build("c", Collections.singleton(3L));
+        builder.wrap(new ByteArrayOutputStream()).write(new byte[10]);
+        cache.invalidate(Collections.singleton(3L));
+        builder.commit();
+        assertCached("c", false);
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void invalidatePrepared() throws Exception {
+        add("a", 10, 1L);
+        add("b", 10, 1L);
+        ZipCache.Builder builder = cache.build("c", Collections.singleton(2L));
+        builder.wrap(new ByteArrayOutputStream()).write(new byte[10]);
+        cache.invalidatePrepared(Arrays.asList("a", "c", "d"));
+        builder.commit();
+        assertCached("a", false);
+        assertCached("b", true);
+        assertCached("c", false);
+        assertEquals(10, cache.getTotalBytes());
+        assertEquals(1, dir.toFile().listFiles().length);
+    }
+
+}
@@ -0,0 +1,219 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import org.icatproject.ids.plugin.DfInfo;
+import org.icatproject.ids.plugin.DsInfo;
+import org.icatproject.ids.plugin.ZipMapperInterface;
+
+public class ZipLayoutTest {
+
+    private static ZipMapperInterface zipMapper = new ZipMapperInterface() {
+
+        @Override
+        public String getFullEntryName(DsInfo dsInfo, DfInfo dfInfo) {
+            return dsInfo.getDsName() + "/" + dfInfo.getDfName();
+        }
+
+        @Override
+        public String getFileName(String fullEntryName) {
+            return fullEntryName.substring(fullEntryName.indexOf('/') + 1);
+        }
+    };
+
+    private Map<Long, DsInfo> dsInfos = new HashMap<>();
+    private Map<Long, byte[]> contents = new HashMap<>();
+    private ZipLayout.DataSource source = (dfInfo, position, length, output) -> output
+            .write(contents.get(dfInfo.getDfId()), (int) position, (int) length);
+
+    private DfInfoImpl add(long dfId, String name, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        contents.put(dfId, bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return new DfInfoImpl(dfId, name, "loc" + dfId, "createId", "modId", 1L, (long) bytes.length,
+                Long.toHexString(crc.getValue()));
+    }
+
+    private byte[] write(ZipLayout layout, long offset, Long count) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        layout.write(baos, offset, count, source);
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void layout() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds", "dsLocation", 2L, "inv", "visit", 3L, "facility"));
+        TreeSet<DfInfoImpl> dfInfos = new TreeSet<>();
+        dfInfos.add(add(10L, "a", "Hello World"));
+        dfInfos.add(add(11L, "b", ""));
+        dfInfos.add(add(12L, "c\u00e9", "More text in a file"));
+        dfInfos.add(add(13L, "a", "Duplicate name"));
+
+        ZipLayout layout = ZipLayout.create(dsInfos, dfInfos, zipMapper, System.currentTimeMillis(), true);
+        byte[] full = write(layout, 0, null);
+        assertEquals(layout.getLength(), full.length);
+
+        List<String> names = Arrays.asList("ds/a", "ds/b", "ds/c\u00e9");
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(full))) {
+            ZipEntry ze;
+            int n = 0;
+            while ((ze = zis.getNextEntry()) != null) {
+                assertEquals(names.get(n), ze.getName());
+                assertEquals(ZipEntry.STORED, ze.getMethod());
+                assertArrayEquals(contents.get(10L + n), zis.readAllBytes());
+                n++;
+            }
+            assertEquals(3, n);
+        }
+
+        for (int offset = 0; offset <= full.length; offset++) {
+            assertArrayEquals(Arrays.copyOfRange(full, offset, full.length), write(layout, offset, null));
+            for (int count = 0; offset + count <= full.length; count += 7) {
+                assertArrayEquals(Arrays.copyOfRange(full, offset, offset + count),
+                        write(layout, offset, (long) count));
+            }
+        }
+    }
+
+    @Test
+    public void zip64End() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds", "dsLocation", 2L, "inv", "visit", 3L, "facility"));
+        TreeSet<DfInfoImpl> dfInfos = new TreeSet<>();
+        int count = 70000;
+        for (long i = 0; i < count; i++) {
+            dfInfos.add(add(i, "f" + i, "x"));
+        }
+        ZipLayout layout = ZipLayout.create(dsInfos, dfInfos, zipMapper, 0L, true);
+        byte[] full = write(layout, 0, null);
+        assertEquals(layout.getLength(), full.length);
+
+        Path path = Files.createTempFile("ZipLayoutTest", ".zip");
+        try {
+            try (OutputStream os = Files.newOutputStream(path)) {
+                os.write(full);
+            }
+            try (ZipFile zf = new ZipFile(path.toFile())) {
+                assertEquals(count, zf.size());
+                assertEquals("x", new String(zf.getInputStream(zf.getEntry("ds/f69999")).readAllBytes()));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void zip64Entry() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds", "dsLocation", 2L, "inv", "visit", 3L, "facility"));
+        TreeSet<DfInfoImpl> dfInfos = new TreeSet<>();
+        long size = 5_000_000_000L;
+        dfInfos.add(new DfInfoImpl(10L, "big", "loc10", "createId", "modId", 1L, size, "1234abcd"));
+        ZipLayout layout = ZipLayout.create(dsInfos, dfInfos, zipMapper, 0L, true);
+
+        int local = 30 + "ds/big".length() + 20;
+        int central = 46 + "ds/big".length() + 4 + 8 * 2;
+        int end = 56 + 20 + 22;
+        assertEquals(local + size + central + end, layout.getLength());
+
+        byte[] tail = write(layout, local + size, null);
+        assertEquals(central + end, tail.length);
+        ByteBuffer b = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x02014b50, b.getInt(0));
+        assertEquals(0x06064b50, b.getInt(central));
+        assertEquals(local + size, b.getLong(central + 48));
+        assertEquals(0x07064b50, b.getInt(central + 56));
+        assertEquals(0x06054b50, b.getInt(central + 76));
+    }
+
+    /*
+     * Write the whole zip as getData does, either synchronously or as the
+     * segments which are read when it is sent asynchronously
+     */
+    private byte[] write(ZipLayout layout, boolean async) throws IOException {
+        if (!async) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            layout.write(baos, 0, null, (dfInfo, position, length, out) -> IdsBean.writeChecked(layout, dfInfo,
+                    position, length, out, source));
+            return baos.toByteArray();
+        }
+        SegmentInputStream content = new SegmentInputStream();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        layout.write(baos, 0, null, (dfInfo, position, length, out) -> {
+            content.add(baos.toByteArray());
+            baos.reset();
+            content.add(() -> IdsBean.openChecked(layout, dfInfo, position, length,
+                    () -> new ByteArrayInputStream(contents.get(dfInfo.getDfId()), (int) position, (int) length)),
+                    length, true, dfInfo);
+        });
+        content.add(baos.toByteArray());
+        return content.readAllBytes();
+    }
+
+    @Test
+    public void corruptedDatafile() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds", "dsLocation", 2L, "inv", "visit", 3L, "facility"));
+        TreeSet<DfInfoImpl> dfInfos = new TreeSet<>();
+        dfInfos.add(add(10L, "a", "Hello World"));
+        dfInfos.add(add(11L, "b", "More text in a file"));
+        ZipLayout layout = ZipLayout.create(dsInfos, dfInfos, zipMapper, 0L, true);
+        byte[] full = write(layout, 0, null);
+        assertArrayEquals(full, write(layout, false));
+        assertArrayEquals(full, write(layout, true));
+
+        contents.get(11L)[3] ^= 1;
+        for (boolean async : new boolean[] { false, true }) {
+            try {
+                write(layout, async);
+                fail();
+            } catch (IOException e) {
+                assertEquals("CRC32 of " + dfInfos.last() + " does not match the checksum "
+                        + dfInfos.last().getChecksum() + " recorded in ICAT", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void unknownChecksum() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds", "dsLocation", 2L, "inv", "visit", 3L, "facility"));
+        TreeSet<DfInfoImpl> dfInfos = new TreeSet<>();
+        dfInfos.add(add(10L, "a", "Hello World"));
+        dfInfos.add(new DfInfoImpl(11L, "b", "loc11", "createId", "modId", 1L, 5L, null));
+        assertNull(ZipLayout.create(dsInfos, dfInfos, zipMapper, 0L, true));
+        assertNull(ZipLayout.parseCrc("not hex"));
+        assertEquals((Long) 0xffffffffL, ZipLayout.parseCrc("ffffffff"));
+    }
+
+    @Test
+    public void untrustedChecksums() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds", "dsLocation", 2L, "inv", "visit", 3L, "facility"));
+        TreeSet<DfInfoImpl> dfInfos = new TreeSet<>();
+        dfInfos.add(add(10L, "a", "Hello World"));
+        assertNull(ZipLayout.create(dsInfos, dfInfos, zipMapper, 0L, false));
+        assertNotNull(ZipLayout.create(dsInfos, dfInfos, zipMapper, 0L, true));
+    }
+
+}